@@ -0,0 +1,75 @@
+package org.plumelib.multiversioncontrol;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Computes canonical paths, resolving each directory only once. {@link File#getCanonicalPath}
+ * examines every component of a path, so when there are many clones under the same directories,
+ * most of its work is repeated. This class remembers the canonical path of each parent directory,
+ * and for the last component of a path it only checks whether it is a symbolic link.
+ *
+ * <p>The cache is shared by all threads. {@link #clear} discards it, so that a daemon that finds
+ * the clones again sees any symbolic links that have changed.
+ */
+final class CanonicalPaths {
+
+  /** Do not instantiate. */
+  private CanonicalPaths() {
+    throw new Error("Do not instantiate");
+  }
+
+  /** Maps an absolute directory name to its canonical path. */
+  private static final Map<String, String> cache = new ConcurrentHashMap<>();
+
+  /**
+   * Returns the canonical path of a file, like {@link File#getCanonicalPath}.
+   *
+   * @param file a file or directory
+   * @return the canonical path of the file
+   * @throws IOException if the canonical path cannot be determined
+   */
+  static String of(File file) throws IOException {
+    if (File.separatorChar != '/') {
+      // Elsewhere, canonicalization also changes the case of names.
+      return file.getCanonicalPath();
+    }
+    File absolute = file.getAbsoluteFile();
+    String parent = absolute.getParent();
+    String name = absolute.getName();
+    if (parent == null || name.isEmpty() || name.equals(".") || name.equals("..")) {
+      return absolute.getCanonicalPath();
+    }
+    File resolved = new File(ofDirectory(parent), name);
+    if (Files.isSymbolicLink(resolved.toPath())) {
+      return resolved.getCanonicalPath();
+    }
+    return resolved.getPath();
+  }
+
+  /**
+   * Returns the canonical path of a directory, from the cache if possible.
+   *
+   * @param dir the absolute name of a directory
+   * @return the canonical path of the directory
+   * @throws IOException if the canonical path cannot be determined
+   */
+  private static String ofDirectory(String dir) throws IOException {
+    String result = cache.get(dir);
+    if (result == null) {
+      // Not computeIfAbsent, which does not permit the recursive call to update the map.  If two
+      // threads compute the same entry, they get the same result.
+      result = of(new File(dir));
+      cache.put(dir, result);
+    }
+    return result;
+  }
+
+  /** Discards the cached canonical paths. */
+  static void clear() {
+    cache.clear();
+  }
+}
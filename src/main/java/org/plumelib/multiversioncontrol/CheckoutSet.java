@@ -0,0 +1,546 @@
+package org.plumelib.multiversioncontrol;
+
+import java.io.File;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.regex.Pattern;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.plumelib.multiversioncontrol.MultiVersionControl.Checkout;
+import org.plumelib.multiversioncontrol.MultiVersionControl.RepoType;
+
+/**
+ * A set of clones that uses much less memory than a {@code LinkedHashSet<Checkout>}, for when mvc
+ * finds hundreds of thousands of clones.
+ *
+ * <p>Clones are not stored as objects. Instead, the fields of the i-th clone are in the i-th
+ * element of several arrays. Directories are nodes of a trie of path components, so clones in the
+ * same parent directory share the storage for its path, and each repository and module is stored
+ * once. The iterator creates a {@link Checkout} for each element as it is visited.
+ *
+ * <p>Code that processes every clone, such as {@link MultiVersionControl#process}, should not keep
+ * a Checkout for each of them. It can instead hold the indices of the elements, from {@link
+ * #indices}, and create a Checkout with {@link #get} only while it works on that clone.
+ *
+ * <p>Like {@code LinkedHashSet}, this set iterates in insertion order, uses {@link Checkout#equals}
+ * (the type, canonical directory, and module), and is not thread-safe. However, several threads
+ * may call {@link #get} at once while the set is not modified.
+ */
+final class CheckoutSet extends AbstractSet<Checkout> {
+
+  /** The number of elements that the arrays can hold initially. */
+  private static final int INITIAL_CAPACITY = 16;
+
+  /** The value of {@link #types} for an element that has been removed. */
+  private static final byte REMOVED = -1;
+
+  /** The version control systems, indexed by {@link #types}. */
+  private static final RepoType[] REPO_TYPES = RepoType.values();
+
+  /** For each element, the ordinal of its type, or {@link #REMOVED}. */
+  private byte[] types = new byte[INITIAL_CAPACITY];
+
+  /** For each element, the node in {@link #paths} of its directory. */
+  private int[] directories = new int[INITIAL_CAPACITY];
+
+  /** For each element, the node in {@link #paths} of its canonical directory. */
+  private int[] canonicalDirectories = new int[INITIAL_CAPACITY];
+
+  /** For each element, the index in {@link #strings} of its repository, or -1. */
+  private int[] repositories = new int[INITIAL_CAPACITY];
+
+  /** For each element, the index in {@link #strings} of its module, or -1. */
+  private int[] modules = new int[INITIAL_CAPACITY];
+
+  /** For each element, the index in {@link #profiles} of its clone profile, or -1. */
+  private int[] cloneProfiles = new int[INITIAL_CAPACITY];
+
+  /** The number of elements in the arrays, including removed ones. */
+  private int count = 0;
+
+  /** The number of elements in the set. */
+  private int size = 0;
+
+  /**
+   * A hash table of the elements, with open addressing. Each slot holds 1 more than the index of
+   * an element, or 0 if it is empty. Removed elements stay in the table, until it is resized.
+   */
+  private int[] table = new int[2 * INITIAL_CAPACITY];
+
+  /** The directories of the elements. */
+  private PathTrie paths = new PathTrie();
+
+  /** The repositories and modules of the elements. */
+  private Interner<String> strings = new Interner<>();
+
+  /** The clone profiles of the elements. */
+  private Interner<CloneProfile> profiles = new Interner<>();
+
+  /** Creates an empty CheckoutSet. */
+  CheckoutSet() {}
+
+  /**
+   * Returns a CheckoutSet with the same elements as a collection, in the same order. Returns the
+   * collection itself if it is a CheckoutSet.
+   *
+   * @param checkouts the clones
+   * @return a CheckoutSet containing the clones
+   */
+  static CheckoutSet copyOf(Collection<Checkout> checkouts) {
+    if (checkouts instanceof CheckoutSet set) {
+      return set;
+    }
+    CheckoutSet result = new CheckoutSet();
+    result.addAll(checkouts);
+    return result;
+  }
+
+  @Override
+  public int size() {
+    return size;
+  }
+
+  @Override
+  public boolean contains(@Nullable Object o) {
+    return o instanceof Checkout c && find(c) != -1;
+  }
+
+  @Override
+  public boolean add(Checkout c) {
+    if (find(c) != -1) {
+      return false;
+    }
+    if (count == types.length) {
+      int capacity = 2 * count;
+      types = Arrays.copyOf(types, capacity);
+      directories = Arrays.copyOf(directories, capacity);
+      canonicalDirectories = Arrays.copyOf(canonicalDirectories, capacity);
+      repositories = Arrays.copyOf(repositories, capacity);
+      modules = Arrays.copyOf(modules, capacity);
+      cloneProfiles = Arrays.copyOf(cloneProfiles, capacity);
+    }
+    int i = count++;
+    types[i] = (byte) c.repoType.ordinal();
+    directories[i] = paths.intern(c.directory.getPath());
+    canonicalDirectories[i] = paths.intern(c.canonicalDirectory);
+    repositories[i] = (c.repository == null) ? -1 : strings.intern(c.repository);
+    modules[i] = (c.module == null) ? -1 : strings.intern(c.module);
+    cloneProfiles[i] = (c.cloneProfile == null) ? -1 : profiles.intern(c.cloneProfile);
+    size++;
+    if (2 * count > table.length) {
+      rehash(2 * table.length);
+    } else {
+      insert(i);
+    }
+    return true;
+  }
+
+  @Override
+  public boolean remove(@Nullable Object o) {
+    if (!(o instanceof Checkout c)) {
+      return false;
+    }
+    int i = find(c);
+    if (i == -1) {
+      return false;
+    }
+    types[i] = REMOVED;
+    size--;
+    return true;
+  }
+
+  @Override
+  public void clear() {
+    types = new byte[INITIAL_CAPACITY];
+    directories = new int[INITIAL_CAPACITY];
+    canonicalDirectories = new int[INITIAL_CAPACITY];
+    repositories = new int[INITIAL_CAPACITY];
+    modules = new int[INITIAL_CAPACITY];
+    cloneProfiles = new int[INITIAL_CAPACITY];
+    count = 0;
+    size = 0;
+    table = new int[2 * INITIAL_CAPACITY];
+    paths = new PathTrie();
+    strings = new Interner<>();
+    profiles = new Interner<>();
+  }
+
+  @Override
+  public Iterator<Checkout> iterator() {
+    return new Iterator<Checkout>() {
+      /** The index of the next element to return. */
+      private int next = skipRemoved(0);
+
+      /** The index of the element last returned, or -1. */
+      private int last = -1;
+
+      @Override
+      public boolean hasNext() {
+        return next < count;
+      }
+
+      @Override
+      public Checkout next() {
+        if (next >= count) {
+          throw new NoSuchElementException();
+        }
+        last = next;
+        next = skipRemoved(next + 1);
+        return get(last);
+      }
+
+      @Override
+      public void remove() {
+        if (last == -1 || types[last] == REMOVED) {
+          throw new IllegalStateException();
+        }
+        types[last] = REMOVED;
+        size--;
+      }
+    };
+  }
+
+  /**
+   * Returns the indices of the elements, in insertion order. An index stays valid until the element
+   * is removed or the set is cleared.
+   *
+   * @return the indices of the elements
+   */
+  int[] indices() {
+    int[] result = new int[size];
+    int n = 0;
+    for (int i = skipRemoved(0); i < count; i = skipRemoved(i + 1)) {
+      result[n++] = i;
+    }
+    return result;
+  }
+
+  /**
+   * Returns the type of an element, without creating a Checkout for it.
+   *
+   * @param i the index of an element that has not been removed
+   * @return the type of the element
+   */
+  RepoType repoType(int i) {
+    return REPO_TYPES[types[i]];
+  }
+
+  /**
+   * Returns the index of the first element, at or after {@code i}, that has not been removed.
+   *
+   * @param i an index
+   * @return the index of the next element that has not been removed, or {@link #count}
+   */
+  private int skipRemoved(int i) {
+    while (i < count && types[i] == REMOVED) {
+      i++;
+    }
+    return i;
+  }
+
+  /**
+   * Returns a new Checkout for an element.
+   *
+   * @param i the index of an element that has not been removed
+   * @return a Checkout for the element
+   */
+  Checkout get(int i) {
+    return new Checkout(
+        REPO_TYPES[types[i]],
+        new File(paths.path(directories[i])),
+        paths.path(canonicalDirectories[i]),
+        (repositories[i] == -1) ? null : strings.get(repositories[i]),
+        (modules[i] == -1) ? null : strings.get(modules[i]),
+        (cloneProfiles[i] == -1) ? null : profiles.get(cloneProfiles[i]));
+  }
+
+  /**
+   * Returns the index of the element that equals a clone, or -1 if there is none.
+   *
+   * @param c a clone
+   * @return the index of the element equal to {@code c}, or -1
+   */
+  private int find(Checkout c) {
+    int directory = paths.find(c.canonicalDirectory);
+    int module = (c.module == null) ? -1 : strings.find(c.module);
+    if (directory == -1 || (c.module != null && module == -1)) {
+      return -1;
+    }
+    byte type = (byte) c.repoType.ordinal();
+    int mask = table.length - 1;
+    for (int slot = hash(type, directory, module) & mask;
+        table[slot] != 0;
+        slot = (slot + 1) & mask) {
+      int i = table[slot] - 1;
+      if (types[i] == type && canonicalDirectories[i] == directory && modules[i] == module) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Adds an element to {@link #table}, which must have an empty slot.
+   *
+   * @param i the index of an element
+   */
+  private void insert(int i) {
+    int mask = table.length - 1;
+    int slot = hash(types[i], canonicalDirectories[i], modules[i]) & mask;
+    while (table[slot] != 0) {
+      slot = (slot + 1) & mask;
+    }
+    table[slot] = i + 1;
+  }
+
+  /**
+   * Replaces {@link #table} by one of the given size that holds the elements that have not been
+   * removed.
+   *
+   * @param length the size of the new table, a power of 2
+   */
+  private void rehash(int length) {
+    table = new int[length];
+    for (int i = 0; i < count; i++) {
+      if (types[i] != REMOVED) {
+        insert(i);
+      }
+    }
+  }
+
+  /**
+   * Returns the hash code of the parts of an element that determine equality.
+   *
+   * @param type the ordinal of the element's type
+   * @param directory the node of the element's canonical directory
+   * @param module the index of the element's module, or -1
+   * @return a hash code
+   */
+  private static int hash(int type, int directory, int module) {
+    return mix((mix(type) + directory) * 31 + module);
+  }
+
+  /**
+   * Scrambles the bits of a hash code, so that nearby values go to distant slots.
+   *
+   * @param h a hash code
+   * @return the scrambled hash code
+   */
+  private static int mix(int h) {
+    h *= 0x9E3779B9;
+    return h ^ (h >>> 16);
+  }
+
+  /**
+   * A trie of file names. Each node is a path, represented by its parent node and its last
+   * component. A path is split at every separator, so that joining its components gives back the
+   * same string, and two paths are the same node if and only if they are equal strings.
+   */
+  private static final class PathTrie {
+
+    /** Splits a path into its components. */
+    private static final Pattern SEPARATOR = Pattern.compile(Pattern.quote(File.separator));
+
+    /** For each node, its parent node, or -1 for a node with no parent. */
+    private int[] parents = new int[INITIAL_CAPACITY];
+
+    /** For each node, the index in {@link #names} of its last component. */
+    private int[] lastNames = new int[INITIAL_CAPACITY];
+
+    /** The number of nodes. */
+    private int count = 0;
+
+    /**
+     * A hash table of the nodes, with open addressing. Each slot holds 1 more than a node, or 0 if
+     * it is empty.
+     */
+    private int[] table = new int[2 * INITIAL_CAPACITY];
+
+    /** The path components. */
+    private final Interner<String> names = new Interner<>();
+
+    /**
+     * Returns the node for a path, adding it and its ancestors if necessary.
+     *
+     * @param path a path
+     * @return the node for the path
+     */
+    int intern(String path) {
+      int node = -1;
+      for (String component : SEPARATOR.split(path, -1)) {
+        int name = names.intern(component);
+        int child = child(node, name);
+        node = (child != -1) ? child : add(node, name);
+      }
+      return node;
+    }
+
+    /**
+     * Returns the node for a path, or -1 if it has not been added.
+     *
+     * @param path a path
+     * @return the node for the path, or -1
+     */
+    int find(String path) {
+      int node = -1;
+      for (String component : SEPARATOR.split(path, -1)) {
+        int name = names.find(component);
+        if (name == -1) {
+          return -1;
+        }
+        node = child(node, name);
+        if (node == -1) {
+          return -1;
+        }
+      }
+      return node;
+    }
+
+    /**
+     * Returns the path of a node.
+     *
+     * @param node a node
+     * @return the path
+     */
+    String path(int node) {
+      List<String> components = new ArrayList<>();
+      for (int n = node; n != -1; n = parents[n]) {
+        components.add(names.get(lastNames[n]));
+      }
+      StringBuilder result = new StringBuilder();
+      for (int i = components.size() - 1; i >= 0; i--) {
+        result.append(components.get(i));
+        if (i != 0) {
+          result.append(File.separatorChar);
+        }
+      }
+      return result.toString();
+    }
+
+    /**
+     * Returns the child of a node with the given last component, or -1 if there is none.
+     *
+     * @param parent a node, or -1 for the top level
+     * @param name the index in {@link #names} of the child's last component
+     * @return the child, or -1
+     */
+    private int child(int parent, int name) {
+      int mask = table.length - 1;
+      for (int slot = hash(parent, name) & mask; table[slot] != 0; slot = (slot + 1) & mask) {
+        int node = table[slot] - 1;
+        if (parents[node] == parent && lastNames[node] == name) {
+          return node;
+        }
+      }
+      return -1;
+    }
+
+    /**
+     * Adds a node, which must not already exist.
+     *
+     * @param parent the parent of the new node, or -1 for the top level
+     * @param name the index in {@link #names} of the new node's last component
+     * @return the new node
+     */
+    private int add(int parent, int name) {
+      if (count == parents.length) {
+        parents = Arrays.copyOf(parents, 2 * count);
+        lastNames = Arrays.copyOf(lastNames, 2 * count);
+      }
+      int node = count++;
+      parents[node] = parent;
+      lastNames[node] = name;
+      if (2 * count > table.length) {
+        table = new int[2 * table.length];
+        for (int n = 0; n < count; n++) {
+          insert(n);
+        }
+      } else {
+        insert(node);
+      }
+      return node;
+    }
+
+    /**
+     * Adds a node to {@link #table}, which must have an empty slot.
+     *
+     * @param node a node
+     */
+    private void insert(int node) {
+      int mask = table.length - 1;
+      int slot = hash(parents[node], lastNames[node]) & mask;
+      while (table[slot] != 0) {
+        slot = (slot + 1) & mask;
+      }
+      table[slot] = node + 1;
+    }
+
+    /**
+     * Returns the hash code of a node.
+     *
+     * @param parent the node's parent
+     * @param name the index of the node's last component
+     * @return a hash code
+     */
+    private static int hash(int parent, int name) {
+      return mix(mix(parent) + name);
+    }
+  }
+
+  /**
+   * Stores each distinct value once, and numbers the values in the order they were added.
+   *
+   * @param <T> the type of the values
+   */
+  private static final class Interner<T extends Object> {
+
+    /** The values, in the order they were added. */
+    private final List<T> values = new ArrayList<>();
+
+    /** The index in {@link #values} of each value. */
+    private final Map<T, Integer> indices = new HashMap<>();
+
+    /**
+     * Returns the index of a value, adding it if necessary.
+     *
+     * @param value a value
+     * @return the index of the value
+     */
+    int intern(T value) {
+      Integer index = indices.get(value);
+      if (index == null) {
+        index = values.size();
+        values.add(value);
+        indices.put(value, index);
+      }
+      return index;
+    }
+
+    /**
+     * Returns the index of a value, or -1 if it has not been added.
+     *
+     * @param value a value
+     * @return the index of the value, or -1
+     */
+    int find(T value) {
+      Integer index = indices.get(value);
+      return (index == null) ? -1 : index;
+    }
+
+    /**
+     * Returns the value with the given index.
+     *
+     * @param index the index of a value
+     * @return the value
+     */
+    T get(int index) {
+      return values.get(index);
+    }
+  }
+}
@@ -0,0 +1,147 @@
+package org.plumelib.multiversioncontrol;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * How much of a repository the clone command fetches and checks out. A profile is written as a
+ * comma-separated list of settings, such as "blobless,depth=1,sparse=src:docs,timeout=900":
+ *
+ * <ul>
+ *   <li>{@code full}: the whole history and working tree; this is the default.
+ *   <li>{@code blobless}: a partial clone that fetches file contents only when they are needed.
+ *   <li>{@code depth=N}: a shallow clone of the most recent N commits.
+ *   <li>{@code sparse=DIR:DIR...}: check out only the given directories (and the files at the top
+ *       level).
+ *   <li>{@code timeout=N}: the time limit, in seconds, for each command that makes the clone.
+ * </ul>
+ *
+ * Git supports all the settings. Subversion supports {@code sparse} (via {@code --set-depth}).
+ * Other version control systems make a full clone regardless of the profile.
+ */
+final class CloneProfile {
+
+  /** The profile that makes a full clone. */
+  static final CloneProfile FULL = new CloneProfile(false, 0, List.of(), 0);
+
+  /**
+   * How much longer than {@code --timeout} a full clone may take, if its profile does not specify
+   * a time limit. Cloning can be much slower than other operations.
+   */
+  private static final int FULL_TIMEOUT_FACTOR = 10;
+
+  /**
+   * How much longer than {@code --timeout} a reduced (blobless, shallow, or sparse) clone may take,
+   * if its profile does not specify a time limit.
+   */
+  private static final int REDUCED_TIMEOUT_FACTOR = 3;
+
+  /** If true, make a partial clone that omits file contents ("--filter=blob:none"). */
+  final boolean blobless;
+
+  /** The number of commits of history to fetch, or 0 for all of them. */
+  final int depth;
+
+  /** The directories to check out, or the empty list to check out everything. */
+  final List<String> sparse;
+
+  /** The time limit for each command, in seconds, or 0 to derive it from {@code --timeout}. */
+  private final int timeout;
+
+  /**
+   * Creates a CloneProfile.
+   *
+   * @param blobless if true, make a partial clone that omits file contents
+   * @param depth the number of commits of history to fetch, or 0 for all of them
+   * @param sparse the directories to check out, or the empty list to check out everything
+   * @param timeout the time limit for each command, in seconds, or 0 for the default
+   */
+  private CloneProfile(boolean blobless, int depth, List<String> sparse, int timeout) {
+    this.blobless = blobless;
+    this.depth = depth;
+    this.sparse = sparse;
+    this.timeout = timeout;
+  }
+
+  /**
+   * Parses a profile, in the format described in the class comment.
+   *
+   * @param spec a profile, such as "blobless,depth=1"
+   * @return the profile
+   * @throws IllegalArgumentException if the profile is malformed
+   */
+  static CloneProfile parse(String spec) {
+    boolean blobless = false;
+    int depth = 0;
+    List<String> sparse = new ArrayList<>();
+    int timeout = 0;
+    for (String setting : spec.split(",", -1)) {
+      setting = setting.trim();
+      int equals = setting.indexOf('=');
+      String name = (equals == -1) ? setting : setting.substring(0, equals);
+      String value = (equals == -1) ? null : setting.substring(equals + 1);
+      switch (name) {
+        case "full" -> {}
+        case "blobless" -> blobless = true;
+        case "depth" -> depth = positiveInt(setting, value);
+        case "sparse" -> {
+          if (value == null || value.isEmpty()) {
+            throw new IllegalArgumentException("No directories in \"" + setting + "\"");
+          }
+          for (String dir : value.split(":", -1)) {
+            if (!dir.isEmpty()) {
+              sparse.add(dir);
+            }
+          }
+        }
+        case "timeout" -> timeout = positiveInt(setting, value);
+        default -> throw new IllegalArgumentException("Unknown clone profile setting: " + setting);
+      }
+    }
+    return new CloneProfile(blobless, depth, List.copyOf(sparse), timeout);
+  }
+
+  /**
+   * Parses the value of a setting that must be a positive integer.
+   *
+   * @param setting the whole setting, for the error message
+   * @param value the value of the setting, or null if there was none
+   * @return the value, as an integer
+   * @throws IllegalArgumentException if the value is not a positive integer
+   */
+  private static int positiveInt(String setting, @Nullable String value) {
+    int result;
+    try {
+      result = (value == null) ? 0 : Integer.parseInt(value);
+    } catch (NumberFormatException e) {
+      result = 0;
+    }
+    if (result <= 0) {
+      throw new IllegalArgumentException("Expected a positive integer in \"" + setting + "\"");
+    }
+    return result;
+  }
+
+  /**
+   * Returns true if this profile fetches or checks out less than a full clone.
+   *
+   * @return true if this is not a full clone
+   */
+  boolean isReduced() {
+    return blobless || depth > 0 || !sparse.isEmpty();
+  }
+
+  /**
+   * Returns the time limit for each command that makes a clone with this profile.
+   *
+   * @param defaultTimeout the value of {@code --timeout}, in seconds
+   * @return the time limit, in seconds
+   */
+  int timeout(int defaultTimeout) {
+    if (timeout > 0) {
+      return timeout;
+    }
+    return defaultTimeout * (isReduced() ? REDUCED_TIMEOUT_FACTOR : FULL_TIMEOUT_FACTOR);
+  }
+}
@@ -0,0 +1,33 @@
+package org.plumelib.multiversioncontrol;
+
+import java.util.List;
+
+/**
+ * The outcome of running one external command, such as {@code git pull}, for one clone.
+ *
+ * @param command the command and its arguments
+ * @param exitValue the exit status of the command; 0 means success
+ * @param timedOut true if the command was killed because it exceeded its time limit
+ * @param spawnNanos the time, in nanoseconds, to start the process
+ * @param wallNanos the time, in nanoseconds, from starting the process until it exited
+ * @param transientFailure true if the command failed in a way that may not recur, such as a
+ *     dropped network connection
+ */
+record CommandRecord(
+    List<String> command,
+    int exitValue,
+    boolean timedOut,
+    long spawnNanos,
+    long wallNanos,
+    boolean transientFailure) {
+
+  /**
+   * Returns a record for a command that was not run, as with {@code --dry-run}.
+   *
+   * @param command the command and its arguments
+   * @return a record for the command, which succeeded and took no time
+   */
+  static CommandRecord notRun(List<String> command) {
+    return new CommandRecord(command, 0, false, 0, 0, false);
+  }
+}
@@ -0,0 +1,335 @@
+package org.plumelib.multiversioncontrol;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Pattern;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * Computes the status of a CVS working copy without contacting the server, by comparing the
+ * timestamps recorded in each {@code CVS/Entries} file with the modification times of the files.
+ * This is the same test that CVS itself uses to decide which files to send to the server.
+ *
+ * <p>The output has the same form as the filtered output of {@code cvs diff}: one line per locally
+ * modified, added, or removed file, naming the file as {@code dir/file}. A subdirectory that is
+ * listed in {@code CVS/Entries} but has no {@code CVS} directory of its own is missing, and is
+ * reported the same way. Files that are unknown to CVS are reported as {@code ? dir/file}, as
+ * {@code cvs update} does.
+ */
+final class CvsStatus {
+
+  /**
+   * The format of timestamps in {@code CVS/Entries}, which is that of the C library's {@code
+   * asctime}, in UTC. The day of the month is padded with a space, as in "Sun Apr&nbsp;&nbsp;7
+   * 01:29:26 1996".
+   */
+  private static final DateTimeFormatter ENTRIES_TIMESTAMP =
+      DateTimeFormatter.ofPattern("EEE MMM ppd HH:mm:ss yyyy", Locale.US);
+
+  /**
+   * File names that CVS ignores by default when looking for unknown files. This is the built-in
+   * list of CVS 1.12.
+   */
+  private static final List<String> DEFAULT_IGNORES =
+      List.of(
+          "RCS", "SCCS", "CVS", "CVS.adm", "RCSLOG", "cvslog.*", "tags", "TAGS", ".make.state",
+          ".nse_depinfo", "*~", "#*", ".#*", ",*", "_$*", "*$", "*.old", "*.bak", "*.BAK",
+          "*.orig", "*.rej", ".del-*", "*.a", "*.olb", "*.o", "*.obj", "*.so", "*.exe", "*.Z",
+          "*.elc", "*.ln", "core");
+
+  /**
+   * One line of a {@code CVS/Entries} file that describes a file (not a directory).
+   *
+   * @param name the file name, relative to the directory that contains the {@code CVS} directory
+   * @param revision the revision; "0" for an added file, and a leading "-" for a removed file
+   * @param timestamp the recorded timestamp, or a marker such as "Result of merge"
+   */
+  private static record Entry(String name, String revision, String timestamp) {}
+
+  /** Do not instantiate. */
+  private CvsStatus() {
+    throw new Error("Do not instantiate");
+  }
+
+  /**
+   * Returns the status of the CVS working copy rooted at {@code dir}, in the format described in
+   * the class comment. Returns the empty string if nothing is changed.
+   *
+   * @param dir the top-level directory of a CVS working copy
+   * @return the status output, one line per changed or unknown file
+   * @throws IOException if a {@code CVS/Entries} file cannot be read
+   */
+  static String status(File dir) throws IOException {
+    StringBuilder result = new StringBuilder();
+    List<Pattern> globalIgnores = new ArrayList<>();
+    for (String glob : DEFAULT_IGNORES) {
+      globalIgnores.add(globToPattern(glob));
+    }
+    File homeIgnore = new File(System.getProperty("user.home"), ".cvsignore");
+    addIgnores(readTrimmed(homeIgnore), globalIgnores);
+    addIgnores(System.getenv("CVSIGNORE"), globalIgnores);
+    statusOfDirectory(dir, dir.toString(), globalIgnores, result);
+    return result.toString();
+  }
+
+  /**
+   * Appends the status of one directory of a CVS working copy, and of its subdirectories that are
+   * also part of the working copy, to {@code result}.
+   *
+   * @param dir a directory that contains a {@code CVS} subdirectory
+   * @param displayName the name of {@code dir} to use in the output
+   * @param globalIgnores patterns for file names that are never reported as unknown
+   * @param result where to append the status output
+   * @throws IOException if a {@code CVS/Entries} file cannot be read
+   */
+  private static void statusOfDirectory(
+      File dir, String displayName, List<Pattern> globalIgnores, StringBuilder result)
+      throws IOException {
+    File cvsDir = new File(dir, "CVS");
+    Map<String, Entry> entries = new LinkedHashMap<>();
+    List<String> subdirs = new ArrayList<>();
+    readEntries(new File(cvsDir, "Entries"), entries, subdirs);
+    readEntriesLog(new File(cvsDir, "Entries.Log"), entries, subdirs);
+
+    for (Entry entry : entries.values()) {
+      File file = new File(dir, entry.name());
+      String revision = entry.revision();
+      boolean changed;
+      if (revision.equals("0") || revision.startsWith("-")) {
+        // added or removed
+        changed = true;
+      } else if (!file.exists()) {
+        // lost: "cvs diff -N" reports it as deleted
+        changed = true;
+      } else {
+        changed = !timestampMatches(entry.timestamp(), file);
+      }
+      if (changed) {
+        result.append(displayName).append('/').append(entry.name()).append('\n');
+      }
+    }
+
+    List<String> missingSubdirs = new ArrayList<>();
+    for (String subdir : subdirs) {
+      if (!new File(new File(dir, subdir), "CVS").isDirectory()) {
+        // lost, like a missing file: "cvs update" would check it out again
+        missingSubdirs.add(subdir);
+        result.append(displayName).append('/').append(subdir).append('\n');
+      }
+    }
+
+    List<Pattern> ignores = new ArrayList<>(globalIgnores);
+    addIgnores(readTrimmed(new File(dir, ".cvsignore")), ignores);
+    File[] children = dir.listFiles();
+    if (children == null) {
+      return;
+    }
+    Arrays.sort(children, Comparator.comparing(File::getName));
+    for (File child : children) {
+      String name = child.getName();
+      // CVS never reports its own administrative directory, even if "!" cleared the ignore list.
+      if (name.equals("CVS")
+          || entries.containsKey(name)
+          || missingSubdirs.contains(name)
+          || isIgnored(name, ignores)) {
+        continue;
+      }
+      if (child.isDirectory() && new File(child, "CVS").isDirectory()) {
+        if (subdirs.contains(name) || isSameRepository(cvsDir, new File(child, "CVS"))) {
+          statusOfDirectory(child, displayName + "/" + name, globalIgnores, result);
+          continue;
+        }
+      }
+      result.append("? ").append(displayName).append('/').append(name).append('\n');
+    }
+  }
+
+  /**
+   * Reads a {@code CVS/Entries} file.
+   *
+   * @param entriesFile the file to read
+   * @param entries the file entries; is side-effected by this method
+   * @param subdirs the names of the subdirectories; is side-effected by this method
+   * @throws IOException if the file cannot be read
+   */
+  private static void readEntries(
+      File entriesFile, Map<String, Entry> entries, List<String> subdirs) throws IOException {
+    for (String line : Files.readAllLines(entriesFile.toPath(), UTF_8)) {
+      addEntryLine(line, entries, subdirs);
+    }
+  }
+
+  /**
+   * Reads a {@code CVS/Entries.Log} file, if it exists. Each of its lines adds ("A") or removes
+   * ("R") one line of the {@code CVS/Entries} file.
+   *
+   * @param logFile the file to read
+   * @param entries the file entries; is side-effected by this method
+   * @param subdirs the names of the subdirectories; is side-effected by this method
+   * @throws IOException if the file cannot be read
+   */
+  private static void readEntriesLog(
+      File logFile, Map<String, Entry> entries, List<String> subdirs) throws IOException {
+    if (!logFile.exists()) {
+      return;
+    }
+    for (String line : Files.readAllLines(logFile.toPath(), UTF_8)) {
+      if (line.startsWith("A ")) {
+        addEntryLine(line.substring(2), entries, subdirs);
+      } else if (line.startsWith("R ")) {
+        Map<String, Entry> removed = new LinkedHashMap<>();
+        List<String> removedDirs = new ArrayList<>();
+        addEntryLine(line.substring(2), removed, removedDirs);
+        entries.keySet().removeAll(removed.keySet());
+        subdirs.removeAll(removedDirs);
+      }
+    }
+  }
+
+  /**
+   * Parses one line of a {@code CVS/Entries} file.
+   *
+   * @param line a line of the file
+   * @param entries the file entries; is side-effected by this method
+   * @param subdirs the names of the subdirectories; is side-effected by this method
+   */
+  private static void addEntryLine(String line, Map<String, Entry> entries, List<String> subdirs) {
+    // File lines look like "/name/revision/timestamp/options/tagdate".
+    // Directory lines look like "D/name////".  A line that is just "D" means that the Entries file
+    // lists every subdirectory.
+    if (line.startsWith("D/")) {
+      String[] fields = line.split("/", -1);
+      if (fields.length > 1 && !fields[1].isEmpty()) {
+        subdirs.add(fields[1]);
+      }
+    } else if (line.startsWith("/")) {
+      String[] fields = line.split("/", -1);
+      if (fields.length >= 4) {
+        entries.put(fields[1], new Entry(fields[1], fields[2], fields[3]));
+      }
+    }
+  }
+
+  /**
+   * Returns true if the timestamp recorded in {@code CVS/Entries} is the modification time of the
+   * file, meaning that the file has not been changed since it was checked out.
+   *
+   * @param timestamp the timestamp field of a {@code CVS/Entries} line
+   * @param file the file that the line describes
+   * @return true if the file is unmodified
+   */
+  private static boolean timestampMatches(String timestamp, File file) {
+    // A timestamp of the form "<time>+conflict" indicates a file with merge conflicts, and
+    // "Result of merge" indicates a merged file whose contents differ from the repository.
+    // Both are modified files, and neither parses as a date.
+    try {
+      LocalDateTime recorded = LocalDateTime.parse(timestamp, ENTRIES_TIMESTAMP);
+      long recordedSeconds = recorded.toEpochSecond(ZoneOffset.UTC);
+      return recordedSeconds == file.lastModified() / 1000;
+    } catch (DateTimeParseException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Returns true if the two {@code CVS} directories refer to the same repository, so that the
+   * directory containing the second is a subdirectory of the working copy that contains the first,
+   * rather than a separate (nested) checkout.
+   *
+   * @param cvsDir a {@code CVS} directory
+   * @param childCvsDir a {@code CVS} directory in a subdirectory of the parent of {@code cvsDir}
+   * @return true if the two directories are in the same repository
+   */
+  private static boolean isSameRepository(File cvsDir, File childCvsDir) {
+    String root = readTrimmed(new File(cvsDir, "Root"));
+    String childRoot = readTrimmed(new File(childCvsDir, "Root"));
+    return root != null && root.equals(childRoot);
+  }
+
+  /**
+   * Returns the trimmed contents of the given file, or null if it cannot be read.
+   *
+   * @param file a file
+   * @return the contents of the file, trimmed, or null
+   */
+  private static @Nullable String readTrimmed(File file) {
+    try {
+      return Files.readString(file.toPath(), UTF_8).trim();
+    } catch (IOException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Adds the globs in a list of ignore patterns, such as the contents of a {@code .cvsignore} file,
+   * to {@code ignores}. As in CVS, the entry "!" clears the list, including the patterns that came
+   * from other sources.
+   *
+   * @param contents whitespace-separated shell globs, or null
+   * @param ignores patterns for the file names to ignore; is side-effected by this method
+   */
+  private static void addIgnores(@Nullable String contents, List<Pattern> ignores) {
+    if (contents == null) {
+      return;
+    }
+    for (String glob : contents.trim().split("\\s+", -1)) {
+      if (glob.equals("!")) {
+        ignores.clear();
+      } else if (!glob.isEmpty()) {
+        ignores.add(globToPattern(glob));
+      }
+    }
+  }
+
+  /**
+   * Returns true if the file name matches one of the patterns.
+   *
+   * @param name a file name
+   * @param ignores patterns for file names
+   * @return true if the file name is ignored
+   */
+  private static boolean isIgnored(String name, List<Pattern> ignores) {
+    for (Pattern p : ignores) {
+      if (p.matcher(name).matches()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Converts a shell glob, as used in {@code .cvsignore} files, to a regular expression.
+   *
+   * @param glob a shell glob that may contain "*" and "?"
+   * @return a pattern that matches the same file names as the glob
+   */
+  @SuppressWarnings("regex:argument") // quoted characters and ".*" and "." form a valid regex
+  static Pattern globToPattern(String glob) {
+    StringBuilder regex = new StringBuilder(glob.length() + 8);
+    for (int i = 0; i < glob.length(); i++) {
+      char ch = glob.charAt(i);
+      if (ch == '*') {
+        regex.append(".*");
+      } else if (ch == '?') {
+        regex.append('.');
+      } else {
+        regex.append(Pattern.quote(String.valueOf(ch)));
+      }
+    }
+    return Pattern.compile(regex.toString());
+  }
+}
@@ -0,0 +1,298 @@
+package org.plumelib.multiversioncontrol;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.plumelib.multiversioncontrol.MultiVersionControl.Action;
+import org.plumelib.multiversioncontrol.MultiVersionControl.Checkout;
+import org.plumelib.multiversioncontrol.MultiVersionControl.SharedResult;
+
+/**
+ * The {@code mvc daemon} action, and its client. The daemon listens on a Unix domain socket. A
+ * client sends its working directory, an action such as "status", and its command-line options,
+ * each terminated by a NUL character, and then closes its side of the connection. The daemon
+ * replies with a line that is either {@value #ACCEPTED} or {@value #REFUSED}. If it accepted the
+ * request, it performs the action on its clones, with the client's options, and sends back the
+ * output; then it closes the connection.
+ *
+ * <p>The daemon keeps the set of clones, so a request does not read the checkouts file or search
+ * the file system (unless the checkouts file has changed). Therefore, it refuses a request whose
+ * options would find a different set of clones; see {@link MultiVersionControl#sharedSettings}.
+ * Requests that run at the same time with the same options share their work: the commands for a
+ * given action and clone run only once.
+ */
+final class Daemon {
+
+  /** The longest request that a client may send, in bytes. */
+  private static final int MAX_REQUEST_LENGTH = 1 << 16;
+
+  /** The daemon's first line of output when it performs a request. */
+  private static final String ACCEPTED = "ok";
+
+  /** The daemon's first line of output when the client should perform the request itself. */
+  private static final String REFUSED = "refused";
+
+  /** The daemon's own configuration, from its command line. */
+  private final MultiVersionControl mvc;
+
+  /** The checkouts file. */
+  private final File checkoutsFile;
+
+  /** The clones, as of when the checkouts file last changed. */
+  private Set<Checkout> checkouts;
+
+  /** The modification time of the checkouts file when {@link #checkouts} was computed. */
+  private long checkoutsFileModified;
+
+  /** The work that is in progress for all the clients. */
+  private final Map<String, CompletableFuture<SharedResult>> inFlight = new ConcurrentHashMap<>();
+
+  /**
+   * Creates a Daemon.
+   *
+   * @param mvc the daemon's configuration
+   * @param checkouts the clones
+   */
+  Daemon(MultiVersionControl mvc, Set<Checkout> checkouts) {
+    this.mvc = mvc;
+    mvc.resolveFiles(System.getProperty("user.dir"));
+    this.checkoutsFile = new File(mvc.checkouts);
+    this.checkouts = checkouts;
+    this.checkoutsFileModified = checkoutsFile.lastModified();
+  }
+
+  /**
+   * Listens for requests until the process is killed.
+   *
+   * @throws IOException if the socket cannot be created, or another daemon is using it
+   */
+  void serve() throws IOException {
+    Path path = mvc.socketFile().toPath().toAbsolutePath();
+    Path dir = path.getParent();
+    if (dir == null) {
+      throw new IOException("No parent directory for " + path);
+    }
+    Files.createDirectories(dir);
+    if (Files.exists(path)) {
+      if (isListening(path)) {
+        throw new IOException("Another mvc daemon is listening on " + path);
+      }
+      // Left behind by a daemon that was killed.
+      Files.delete(path);
+    }
+
+    ExecutorService workers =
+        Executors.newCachedThreadPool(
+            r -> {
+              Thread t = new Thread(r, "mvc-daemon");
+              t.setDaemon(true);
+              return t;
+            });
+    try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+      server.bind(UnixDomainSocketAddress.of(path));
+      try {
+        // A client can run any action, including pull, so only this user may connect.
+        Files.setPosixFilePermissions(path, PosixFilePermissions.fromString("rw-------"));
+      } catch (UnsupportedOperationException e) {
+        // Not a POSIX file system.
+      }
+      System.err.println("mvc daemon listening on " + path);
+      while (true) {
+        SocketChannel client = server.accept();
+        workers.execute(() -> handle(client));
+      }
+    } finally {
+      workers.shutdownNow();
+      Files.deleteIfExists(path);
+    }
+  }
+
+  /**
+   * Returns true if a daemon is listening on the given socket.
+   *
+   * @param path a Unix domain socket
+   * @return true if a daemon is listening on the socket
+   */
+  private static boolean isListening(Path path) {
+    try {
+      SocketChannel.open(UnixDomainSocketAddress.of(path)).close();
+      return true;
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Handles one request: reads it, performs it, and writes the output to the client.
+   *
+   * @param client a connection to a client
+   */
+  private void handle(SocketChannel client) {
+    try (client;
+        PrintStream out = new PrintStream(Channels.newOutputStream(client), false, UTF_8)) {
+      List<String> fields = readRequest(Channels.newInputStream(client));
+      if (fields.size() < 2) {
+        out.println(ACCEPTED);
+        out.println("mvc daemon: malformed request");
+        return;
+      }
+      String workingDir = fields.get(0);
+      String actionString = fields.get(1);
+      List<String> options = fields.subList(2, fields.size());
+      Action action = MultiVersionControl.parseAction(actionString);
+      if (action == null || action == Action.DAEMON || action == Action.EXEC) {
+        out.println(ACCEPTED);
+        out.printf("mvc daemon: unrecognized action \"%s\"%n", actionString);
+        return;
+      }
+      MultiVersionControl request =
+          MultiVersionControl.forRequest(actionString, options, workingDir);
+      if (!request.sharedSettings().equals(mvc.sharedSettings())) {
+        out.println(REFUSED);
+        return;
+      }
+      out.println(ACCEPTED);
+      Set<Checkout> current;
+      try {
+        current = currentCheckouts();
+      } catch (MultiVersionControl.CheckoutsException e) {
+        out.println("mvc daemon: " + e.getMessage());
+        return;
+      }
+      request.stdout = out;
+      request.inFlight = inFlight;
+      request.process(current);
+      out.flush();
+    } catch (IOException e) {
+      System.err.println("Problem handling mvc daemon request: " + e.getMessage());
+    } catch (RuntimeException e) {
+      System.err.println("Problem handling mvc daemon request: " + e);
+    }
+  }
+
+  /**
+   * Returns the clones, first finding them again if the checkouts file has changed. If they cannot
+   * be found, keeps the previous clones, so that a later request tries again.
+   *
+   * @return the clones
+   * @throws MultiVersionControl.CheckoutsException if the checkouts file has changed and is
+   *     malformed, or a directory to search does not exist
+   */
+  private synchronized Set<Checkout> currentCheckouts()
+      throws MultiVersionControl.CheckoutsException {
+    long modified = checkoutsFile.lastModified();
+    if (modified != checkoutsFileModified) {
+      checkouts = mvc.collectCheckouts();
+      checkoutsFileModified = modified;
+    }
+    return checkouts;
+  }
+
+  /**
+   * Reads a request: UTF-8 fields, each terminated by a NUL character, up to the end of the stream.
+   * Does not close the stream.
+   *
+   * @param in the stream to read from
+   * @return the fields of the request
+   * @throws IOException if the request cannot be read or is too long
+   */
+  private static List<String> readRequest(InputStream in) throws IOException {
+    byte[] request = in.readNBytes(MAX_REQUEST_LENGTH + 1);
+    if (request.length > MAX_REQUEST_LENGTH) {
+      throw new IOException("Request too long");
+    }
+    List<String> fields = new ArrayList<>();
+    int start = 0;
+    for (int i = 0; i < request.length; i++) {
+      if (request[i] == 0) {
+        fields.add(new String(request, start, i - start, UTF_8));
+        start = i + 1;
+      }
+    }
+    return fields;
+  }
+
+  /**
+   * Reads one line of UTF-8 text, without its line terminator. Does not close the stream.
+   *
+   * @param in the stream to read from
+   * @return the line
+   * @throws IOException if the line cannot be read
+   */
+  private static String readLine(InputStream in) throws IOException {
+    ByteArrayOutputStream line = new ByteArrayOutputStream();
+    for (int b = in.read(); b != -1 && b != '\n'; b = in.read()) {
+      line.write(b);
+    }
+    return line.toString(UTF_8).strip();
+  }
+
+  /**
+   * Asks a running daemon to perform an action, and copies its output to {@code out}.
+   *
+   * @param socketFile the socket on which the daemon listens
+   * @param action the action, such as "status"
+   * @param options the command-line options, without the action
+   * @param out where to copy the daemon's output
+   * @return true if a daemon performed the action, false if no daemon is listening or it refused
+   *     the request
+   * @throws IOException if communication with the daemon fails
+   */
+  static boolean request(File socketFile, String action, List<String> options, PrintStream out)
+      throws IOException {
+    if (!socketFile.exists()) {
+      return false;
+    }
+    SocketChannel channel;
+    try {
+      channel = SocketChannel.open(UnixDomainSocketAddress.of(socketFile.toPath()));
+    } catch (IOException e) {
+      // The socket was left behind by a daemon that is no longer running.
+      return false;
+    }
+    try (channel) {
+      StringBuilder request = new StringBuilder();
+      request.append(System.getProperty("user.dir")).append('\0');
+      request.append(action).append('\0');
+      for (String option : options) {
+        request.append(option).append('\0');
+      }
+      ByteBuffer bytes = ByteBuffer.wrap(request.toString().getBytes(UTF_8));
+      while (bytes.hasRemaining()) {
+        channel.write(bytes);
+      }
+      channel.shutdownOutput();
+      InputStream in = Channels.newInputStream(channel);
+      if (!readLine(in).equals(ACCEPTED)) {
+        return false;
+      }
+      byte[] buffer = new byte[8192];
+      for (int n = in.read(buffer); n != -1; n = in.read(buffer)) {
+        out.write(buffer, 0, n);
+        out.flush();
+      }
+    }
+    return true;
+  }
+}
@@ -0,0 +1,182 @@
+package org.plumelib.multiversioncontrol;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.plumelib.multiversioncontrol.MultiVersionControl.Checkout;
+
+/**
+ * How long each action took for each clone, in past runs. The estimates are used to predict how
+ * long the remaining clones will take.
+ *
+ * <p>Each estimate is a moving average: a new duration is averaged with the previous estimate, so
+ * an occasional slow run does not dominate.
+ *
+ * <p>The file is plain text. Each line holds an estimate in milliseconds, the time the estimate
+ * was last updated, the action, and the clone's key.
+ */
+final class DurationHistory {
+
+  /** The first line of a history file. Change it if the format of the file changes. */
+  private static final String HEADER = "# mvc duration history, version 1";
+
+  /** Entries not updated for this many milliseconds are dropped when the history is written. */
+  private static final long EXPIRY_MILLIS = TimeUnit.DAYS.toMillis(90);
+
+  /** The weight of a new duration, relative to the previous estimate. */
+  private static final double NEW_WEIGHT = 0.5;
+
+  /**
+   * An estimate.
+   *
+   * @param millis the estimated duration, in milliseconds
+   * @param timeMillis when the estimate was last updated, in milliseconds since the epoch
+   */
+  private static record Entry(long millis, long timeMillis) {}
+
+  /** The file from which the history was read and to which it will be written. */
+  private final File file;
+
+  /** Maps an action and a clone's key to the estimate. */
+  private final Map<String, Entry> entries;
+
+  /** True if {@link #entries} has changed since the file was read. */
+  private boolean changed = false;
+
+  /**
+   * Creates a new DurationHistory.
+   *
+   * @param file the file to which to write the history
+   * @param entries the estimates
+   */
+  private DurationHistory(File file, Map<String, Entry> entries) {
+    this.file = file;
+    this.entries = entries;
+  }
+
+  /**
+   * Reads the history from a file. If the file does not exist or is from an incompatible version
+   * of mvc, the history is empty.
+   *
+   * @param file the file to read
+   * @return the history
+   */
+  static DurationHistory read(File file) {
+    Map<String, Entry> entries = new LinkedHashMap<>();
+    try (BufferedReader reader = Files.newBufferedReader(file.toPath(), UTF_8)) {
+      if (HEADER.equals(reader.readLine())) {
+        for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+          String[] fields = line.split("\t", 4);
+          if (fields.length != 4) {
+            continue;
+          }
+          try {
+            long millis = Long.parseLong(fields[0]);
+            long timeMillis = Long.parseLong(fields[1]);
+            entries.put(fields[2] + "\t" + fields[3], new Entry(millis, timeMillis));
+          } catch (NumberFormatException e) {
+            // A corrupt line; ignore it.
+          }
+        }
+      }
+    } catch (NoSuchFileException e) {
+      // No history yet.
+    } catch (IOException e) {
+      System.err.println("Problem reading duration history " + file + ": " + e.getMessage());
+    }
+    return new DurationHistory(file, entries);
+  }
+
+  /**
+   * Returns the estimated duration of an action for a clone, or -1 if there is no estimate.
+   *
+   * @param action the action, such as "pull"
+   * @param c a clone
+   * @return the estimated duration in nanoseconds, or -1
+   */
+  synchronized long estimateNanos(String action, Checkout c) {
+    Entry entry = entries.get(key(action, c));
+    return (entry == null) ? -1 : TimeUnit.MILLISECONDS.toNanos(entry.millis());
+  }
+
+  /**
+   * Records how long an action took for a clone.
+   *
+   * @param action the action, such as "pull"
+   * @param c a clone
+   * @param nanos the duration, in nanoseconds
+   */
+  synchronized void record(String action, Checkout c, long nanos) {
+    long millis = TimeUnit.NANOSECONDS.toMillis(Math.max(nanos, 0));
+    String key = key(action, c);
+    Entry old = entries.get(key);
+    if (old != null) {
+      millis = Math.round(NEW_WEIGHT * millis + (1 - NEW_WEIGHT) * old.millis());
+    }
+    entries.put(key, new Entry(millis, System.currentTimeMillis()));
+    changed = true;
+  }
+
+  /**
+   * Writes the history to the file it was read from, if it has changed. The file is replaced
+   * atomically, so a concurrent run of mvc never reads a partial file.
+   *
+   * @throws IOException if the file cannot be written
+   */
+  synchronized void write() throws IOException {
+    if (!changed) {
+      return;
+    }
+    Path path = file.toPath().toAbsolutePath();
+    Path dir = path.getParent();
+    if (dir == null) {
+      throw new IOException("No parent directory for " + path);
+    }
+    Files.createDirectories(dir);
+    Path tmp = Files.createTempFile(dir, file.getName(), ".tmp");
+    long oldest = System.currentTimeMillis() - EXPIRY_MILLIS;
+    try (BufferedWriter writer = Files.newBufferedWriter(tmp, UTF_8)) {
+      writer.write(HEADER);
+      writer.newLine();
+      for (Map.Entry<String, Entry> mapEntry : entries.entrySet()) {
+        Entry entry = mapEntry.getValue();
+        if (entry.timeMillis() < oldest) {
+          continue;
+        }
+        writer.write(Long.toString(entry.millis()));
+        writer.write('\t');
+        writer.write(Long.toString(entry.timeMillis()));
+        writer.write('\t');
+        writer.write(mapEntry.getKey());
+        writer.newLine();
+      }
+    }
+    Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * Returns the key under which the estimate for an action and a clone is stored.
+   *
+   * @param action the action, such as "pull"
+   * @param c a clone
+   * @return the key for the action and the clone
+   */
+  private static String key(String action, Checkout c) {
+    return action
+        + "\t"
+        + c.repoType
+        + " "
+        + c.canonicalDirectory
+        + (c.module == null ? "" : " " + c.module);
+  }
+}
@@ -0,0 +1,145 @@
+package org.plumelib.multiversioncontrol;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Locale;
+import java.util.stream.Stream;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.plumelib.multiversioncontrol.MultiVersionControl.Checkout;
+import org.plumelib.multiversioncontrol.MultiVersionControl.RepoType;
+
+/**
+ * The disk space used by a clone's version control metadata (its {@code .git}, {@code .hg}, or
+ * {@code .svn} directory), and for git, the number of pack files. The maintain command measures
+ * each clone before and after maintenance, to report what was reclaimed.
+ *
+ * @param bytes the total size of the files in the metadata directory
+ * @param packs the number of git pack files, or 0 for other version control systems
+ */
+record Footprint(long bytes, int packs) {
+
+  /**
+   * Measures a clone's metadata directory. Returns null if the clone has none, or it cannot be
+   * read.
+   *
+   * @param c a clone
+   * @return the footprint of the clone's metadata, or null
+   */
+  static @Nullable Footprint measure(Checkout c) {
+    File metadataDir = metadataDir(c);
+    if (metadataDir == null) {
+      return null;
+    }
+    try {
+      return new Footprint(size(metadataDir.toPath()), packCount(c.repoType, metadataDir));
+    } catch (IOException | UncheckedIOException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Returns a description of the change from {@code before} to this footprint, such as "reclaimed
+   * 12.3 MB, 14 packs -> 1", or the empty string if nothing changed.
+   *
+   * @param before the footprint before maintenance
+   * @return a description of the change, or the empty string
+   */
+  String changeSince(Footprint before) {
+    long reclaimed = before.bytes - bytes;
+    StringBuilder result = new StringBuilder();
+    if (reclaimed > 0) {
+      result.append("reclaimed ").append(formatBytes(reclaimed));
+    } else if (reclaimed < 0) {
+      result.append("grew by ").append(formatBytes(-reclaimed));
+    }
+    if (packs != before.packs) {
+      if (result.length() > 0) {
+        result.append(", ");
+      }
+      result.append(before.packs).append(" packs -> ").append(packs);
+    }
+    return result.toString();
+  }
+
+  /**
+   * Returns the metadata directory of a clone, or null if it has none.
+   *
+   * @param c a clone
+   * @return the clone's metadata directory, or null
+   */
+  private static @Nullable File metadataDir(Checkout c) {
+    @Nullable File dir =
+        switch (c.repoType) {
+          case GIT -> GitDir.find(c.directory);
+          case HG -> new File(c.directory, ".hg");
+          case SVN -> new File(c.directory, ".svn");
+          default -> null;
+        };
+    return (dir != null && dir.isDirectory()) ? dir : null;
+  }
+
+  /**
+   * Returns the total size of the regular files under a directory.
+   *
+   * @param dir a directory
+   * @return the total size of the files under the directory, in bytes
+   * @throws IOException if the directory cannot be read
+   */
+  private static long size(Path dir) throws IOException {
+    try (Stream<Path> files = Files.walk(dir)) {
+      return files
+          .mapToLong(
+              p -> {
+                try {
+                  BasicFileAttributes attrs = Files.readAttributes(p, BasicFileAttributes.class);
+                  return attrs.isRegularFile() ? attrs.size() : 0;
+                } catch (IOException e) {
+                  // Removed while the directory was being walked.
+                  return 0;
+                }
+              })
+          .sum();
+    }
+  }
+
+  /**
+   * Returns the number of pack files in a git directory, or 0 for other version control systems.
+   *
+   * @param repoType the version control system
+   * @param metadataDir the metadata directory
+   * @return the number of pack files
+   */
+  private static int packCount(RepoType repoType, File metadataDir) {
+    if (repoType != RepoType.GIT) {
+      return 0;
+    }
+    File[] packs =
+        new File(GitDir.objectsDir(metadataDir), "pack")
+            .listFiles((d, name) -> name.endsWith(".pack"));
+    return (packs == null) ? 0 : packs.length;
+  }
+
+  /**
+   * Formats a number of bytes for people to read, such as "12.3 MB".
+   *
+   * @param bytes a number of bytes
+   * @return the number, formatted for people to read
+   */
+  private static String formatBytes(long bytes) {
+    if (bytes < 1024) {
+      return bytes + " bytes";
+    }
+    String[] units = {"KB", "MB", "GB", "TB"};
+    double value = bytes;
+    int unit = -1;
+    while (value >= 1024 && unit < units.length - 1) {
+      value /= 1024;
+      unit++;
+    }
+    return String.format(Locale.ROOT, "%.1f %s", value, units[unit]);
+  }
+}
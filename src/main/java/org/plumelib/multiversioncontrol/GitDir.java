@@ -0,0 +1,458 @@
+package org.plumelib.multiversioncontrol;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * Reads refs directly from a {@code .git} directory, without running {@code git}. This handles
+ * loose refs and the {@code packed-refs} file, which is all that is needed for the clones that mvc
+ * manages. (It does not handle the reftable format.) It also reads the paths in the index.
+ *
+ * <p>A linked worktree has its own git directory, which holds its {@code HEAD} and index, but its
+ * other refs are in the git directory of the main clone, which {@link #commonDir} returns.
+ */
+final class GitDir {
+
+  /** Matches the setting, in a git config file, for a repository that uses SHA-256 hashes. */
+  private static final Pattern SHA256_FORMAT =
+      Pattern.compile("(?im)^\\s*objectformat\\s*=\\s*sha256\\s*$");
+
+  /**
+   * Matches a section header in a git config file, such as {@code [branch "main"]}. Group 1 is the
+   * section name, and group 2, if present, is the subsection name.
+   */
+  private static final Pattern CONFIG_SECTION =
+      Pattern.compile("^\\s*\\[\\s*([-.A-Za-z0-9]+)(?:\\s+\"((?:[^\"\\\\]|\\\\.)*)\")?\\s*\\]");
+
+  /** Matches a variable in a git config file. Group 1 is its name, and group 2 is its value. */
+  private static final Pattern CONFIG_VARIABLE =
+      Pattern.compile("^\\s*([A-Za-z][-A-Za-z0-9]*)\\s*=\\s*\"?([^\";#]*?)\"?\\s*(?:[;#].*)?$");
+
+  /** The maximum number of symbolic refs to follow, to prevent an infinite loop. */
+  private static final int MAX_SYMREF_DEPTH = 5;
+
+  /** Do not instantiate. */
+  private GitDir() {
+    throw new Error("Do not instantiate");
+  }
+
+  /**
+   * Returns the git directory of a working tree: its {@code .git} directory, or for a linked
+   * worktree or a submodule, the directory that its {@code .git} file names. Returns null if there
+   * is none.
+   *
+   * @param workTree the top-level directory of a git clone
+   * @return the git directory of the clone, or null
+   */
+  static @Nullable File find(File workTree) {
+    File dotGit = new File(workTree, ".git");
+    if (dotGit.isFile()) {
+      String contents;
+      try {
+        contents = Files.readString(dotGit.toPath(), UTF_8).trim();
+      } catch (IOException e) {
+        return null;
+      }
+      if (!contents.startsWith("gitdir: ")) {
+        return null;
+      }
+      File gitDir = new File(contents.substring("gitdir: ".length()));
+      dotGit = gitDir.isAbsolute() ? gitDir : new File(workTree, gitDir.getPath());
+    }
+    return dotGit.isDirectory() ? dotGit : null;
+  }
+
+  /**
+   * Returns the directory that holds the parts of a git directory that are shared by all its
+   * worktrees: the objects, the refs other than {@code HEAD}, and the configuration. For a linked
+   * worktree, that is the git directory of the main clone; otherwise, it is {@code gitDir} itself.
+   *
+   * @param gitDir a git directory
+   * @return the common directory
+   */
+  static File commonDir(File gitDir) {
+    File commonDir = new File(gitDir, "commondir");
+    if (commonDir.isFile()) {
+      try {
+        File common = new File(Files.readString(commonDir.toPath(), UTF_8).trim());
+        return common.isAbsolute() ? common : new File(gitDir, common.getPath());
+      } catch (IOException e) {
+        // Fall through to the git directory itself.
+      }
+    }
+    return gitDir;
+  }
+
+  /**
+   * Returns the directory that holds a git directory's objects. A linked worktree shares the
+   * objects of its main clone.
+   *
+   * @param gitDir a git directory
+   * @return the objects directory
+   */
+  static File objectsDir(File gitDir) {
+    return new File(commonDir(gitDir), "objects");
+  }
+
+  /**
+   * Returns the object name (the hash) that HEAD refers to, or null if it cannot be determined, for
+   * example because the current branch has no commits yet.
+   *
+   * @param gitDir a {@code .git} directory
+   * @return the hash of the commit that HEAD refers to, or null
+   */
+  static @Nullable String head(File gitDir) {
+    return resolve(gitDir, "HEAD");
+  }
+
+  /**
+   * Returns the object name (the hash) that a ref refers to, following symbolic refs, or null if it
+   * cannot be determined.
+   *
+   * @param gitDir a {@code .git} directory
+   * @param refName the full name of a ref, such as "HEAD" or "refs/heads/main"
+   * @return the hash that the ref refers to, or null
+   */
+  static @Nullable String resolve(File gitDir, String refName) {
+    String name = refName;
+    for (int depth = 0; depth < MAX_SYMREF_DEPTH; depth++) {
+      String value = readRef(gitDir, name);
+      if (value == null) {
+        return null;
+      }
+      if (!value.startsWith("ref: ")) {
+        return value;
+      }
+      name = value.substring("ref: ".length()).trim();
+    }
+    return null;
+  }
+
+  /**
+   * Returns the contents of a ref: either a hash or "ref: " followed by the name of another ref.
+   * Returns null if the ref does not exist.
+   *
+   * @param gitDir a {@code .git} directory
+   * @param refName the full name of a ref
+   * @return the contents of the ref, or null
+   */
+  private static @Nullable String readRef(File gitDir, String refName) {
+    String loose = readLooseRef(gitDir, refName);
+    if (loose != null) {
+      return loose;
+    }
+    return readPackedRef(gitDir, refName);
+  }
+
+  /**
+   * Returns the contents of a loose ref file, or null if there is no such file.
+   *
+   * @param gitDir a {@code .git} directory
+   * @param refName the full name of a ref
+   * @return the contents of the ref file, trimmed, or null
+   */
+  private static @Nullable String readLooseRef(File gitDir, String refName) {
+    File refFile = new File(gitDir, refName);
+    if (!refFile.isFile()) {
+      refFile = new File(commonDir(gitDir), refName);
+      if (!refFile.isFile()) {
+        return null;
+      }
+    }
+    try {
+      return Files.readString(refFile.toPath(), UTF_8).trim();
+    } catch (IOException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Returns the hash of a ref in the {@code packed-refs} file, or null if it is not there.
+   *
+   * @param gitDir a {@code .git} directory
+   * @param refName the full name of a ref
+   * @return the hash of the ref, or null
+   */
+  private static @Nullable String readPackedRef(File gitDir, String refName) {
+    for (String line : packedRefLines(gitDir)) {
+      // Lines look like "<hash> <refname>".  Lines starting with "#" are comments, and lines
+      // starting with "^" give the commit that the preceding annotated tag points to.
+      int space = line.indexOf(' ');
+      if (space != -1 && line.charAt(0) != '#' && line.charAt(0) != '^') {
+        if (line.substring(space + 1).equals(refName)) {
+          return line.substring(0, space);
+        }
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Returns the name of the current branch, such as "main", or null if HEAD is detached or
+   * unreadable.
+   *
+   * @param gitDir a {@code .git} directory
+   * @return the name of the current branch, or null
+   */
+  static @Nullable String currentBranch(File gitDir) {
+    String head = readLooseRef(gitDir, "HEAD");
+    if (head == null || !head.startsWith("ref: refs/heads/")) {
+      return null;
+    }
+    return head.substring("ref: refs/heads/".length());
+  }
+
+  /**
+   * Returns a setting of a branch, such as {@code branch.main.remote}, from the repository's config
+   * file. Returns null if the setting is absent or the file cannot be read. Included config files
+   * are not read.
+   *
+   * @param gitDir a {@code .git} directory
+   * @param branch the name of a branch
+   * @param name the name of the setting, such as "remote" or "merge"
+   * @return the value of the setting, or null
+   */
+  static @Nullable String branchSetting(File gitDir, String branch, String name) {
+    List<String> lines;
+    try {
+      lines = Files.readAllLines(new File(commonDir(gitDir), "config").toPath(), UTF_8);
+    } catch (IOException e) {
+      return null;
+    }
+    boolean inBranch = false;
+    String result = null;
+    for (String line : lines) {
+      Matcher section = CONFIG_SECTION.matcher(line);
+      if (section.lookingAt()) {
+        inBranch =
+            section.group(1).equalsIgnoreCase("branch") && branch.equals(section.group(2));
+        continue;
+      }
+      if (inBranch) {
+        Matcher variable = CONFIG_VARIABLE.matcher(line);
+        if (variable.matches() && variable.group(1).equalsIgnoreCase(name)) {
+          // The last setting wins.
+          result = variable.group(2);
+        }
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Returns the refs whose names start with the given prefix, from both loose ref files and the
+   * {@code packed-refs} file. Symbolic refs, such as {@code refs/remotes/origin/HEAD}, are omitted.
+   *
+   * @param gitDir a {@code .git} directory
+   * @param prefix a prefix of ref names, ending with "/", such as "refs/remotes/origin/"
+   * @return a map from each ref name, without the prefix, to its hash
+   */
+  static Map<String, String> refs(File gitDir, String prefix) {
+    Map<String, String> result = new TreeMap<>();
+    for (String line : packedRefLines(gitDir)) {
+      int space = line.indexOf(' ');
+      if (space != -1 && line.charAt(0) != '#' && line.charAt(0) != '^') {
+        String name = line.substring(space + 1);
+        if (name.startsWith(prefix)) {
+          result.put(name.substring(prefix.length()), line.substring(0, space));
+        }
+      }
+    }
+    // A loose ref overrides a packed one.
+    addLooseRefs(new File(commonDir(gitDir), prefix), "", result);
+    return result;
+  }
+
+  /**
+   * Adds the loose refs in a directory, and its subdirectories, to a map.
+   *
+   * @param dir a directory under {@code .git/refs}
+   * @param namePrefix the prefix of the names of the refs in {@code dir}
+   * @param refs a map from ref name to hash, to which this method adds
+   */
+  private static void addLooseRefs(File dir, String namePrefix, Map<String, String> refs) {
+    File[] files = dir.listFiles();
+    if (files == null) {
+      return;
+    }
+    for (File file : files) {
+      String name = namePrefix + file.getName();
+      if (file.isDirectory()) {
+        addLooseRefs(file, name + "/", refs);
+      } else if (!name.endsWith(".lock")) {
+        try {
+          String value = Files.readString(file.toPath(), UTF_8).trim();
+          if (value.startsWith("ref: ")) {
+            refs.remove(name);
+          } else {
+            refs.put(name, value);
+          }
+        } catch (IOException e) {
+          // Deleted by a concurrent git command.
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns the lines of the {@code packed-refs} file, or the empty list if it does not exist.
+   *
+   * @param gitDir a {@code .git} directory
+   * @return the lines of the {@code packed-refs} file
+   */
+  static List<String> packedRefLines(File gitDir) {
+    File packedRefs = new File(commonDir(gitDir), "packed-refs");
+    if (!packedRefs.isFile()) {
+      return List.of();
+    }
+    try {
+      return Files.readAllLines(packedRefs.toPath(), UTF_8);
+    } catch (IOException e) {
+      return List.of();
+    }
+  }
+
+  /**
+   * Returns the directories, relative to the top of the working tree and separated by "/", that
+   * contain a file in the index. The top-level directory itself is not included. Returns null if
+   * the index cannot be read, or is in a form that this method does not handle, such as a split
+   * index.
+   *
+   * @param gitDir a git directory
+   * @return the directories that contain tracked files, or null
+   */
+  static @Nullable Set<String> trackedDirectories(File gitDir) {
+    byte[] index;
+    try {
+      index = Files.readAllBytes(new File(gitDir, "index").toPath());
+    } catch (IOException e) {
+      return null;
+    }
+    ByteBuffer buf = ByteBuffer.wrap(index);
+    try {
+      // The header is the signature "DIRC", the version, and the number of entries.
+      if (buf.getInt() != 0x44495243) {
+        return null;
+      }
+      int version = buf.getInt();
+      if (version < 2 || version > 4) {
+        return null;
+      }
+      int entries = buf.getInt();
+      int hashLength = usesSha256(gitDir) ? 32 : 20;
+      Set<String> result = new HashSet<>();
+      byte[] path = new byte[0];
+      int pathLength = 0;
+      for (int i = 0; i < entries; i++) {
+        int start = buf.position();
+        // ctime, mtime, dev, ino, mode, uid, gid, size, and the object name
+        buf.position(start + 40 + hashLength);
+        int flags = buf.getShort() & 0xffff;
+        if (version >= 3 && (flags & 0x4000) != 0) {
+          buf.getShort();
+        }
+        if (version == 4) {
+          // The path is the previous one, less some bytes at the end, plus a new suffix.
+          pathLength -= readOffset(buf);
+        } else {
+          pathLength = 0;
+        }
+        int suffixStart = buf.position();
+        int nul = suffixStart;
+        while (index[nul] != 0) {
+          nul++;
+        }
+        int suffixLength = nul - suffixStart;
+        if (pathLength < 0) {
+          return null;
+        }
+        if (path.length < pathLength + suffixLength) {
+          path = Arrays.copyOf(path, 2 * (pathLength + suffixLength));
+        }
+        System.arraycopy(index, suffixStart, path, pathLength, suffixLength);
+        pathLength += suffixLength;
+        if (version == 4) {
+          buf.position(nul + 1);
+        } else {
+          // Entries are padded with 1 to 8 NUL bytes to a multiple of 8 bytes.
+          buf.position(start + ((nul - start + 8) & ~7));
+        }
+        addParents(new String(path, 0, pathLength, UTF_8), result);
+      }
+      // The extensions follow the entries, and the checksum follows the extensions.
+      while (buf.remaining() > hashLength) {
+        int signature = buf.getInt();
+        int size = buf.getInt();
+        if (signature == 0x6c696e6b) {
+          // "link": a split index, whose entries are mostly in another file
+          return null;
+        }
+        buf.position(buf.position() + size);
+      }
+      return result;
+    } catch (BufferUnderflowException | IllegalArgumentException | IndexOutOfBoundsException e) {
+      // A truncated or corrupt index.
+      return null;
+    }
+  }
+
+  /**
+   * Reads a variable-length offset from a version 4 index entry, in git's encoding.
+   *
+   * @param buf the index, positioned at the offset
+   * @return the offset
+   */
+  private static int readOffset(ByteBuffer buf) {
+    int b = buf.get() & 0xff;
+    int result = b & 0x7f;
+    while ((b & 0x80) != 0) {
+      b = buf.get() & 0xff;
+      result = ((result + 1) << 7) | (b & 0x7f);
+    }
+    return result;
+  }
+
+  /**
+   * Adds the directories that contain a file to a set.
+   *
+   * @param path a file name, relative to the top of the working tree and separated by "/"
+   * @param dirs the set of directories, to which this method adds
+   */
+  private static void addParents(String path, Set<String> dirs) {
+    for (int slash = path.lastIndexOf('/'); slash > 0; slash = path.lastIndexOf('/', slash - 1)) {
+      if (!dirs.add(path.substring(0, slash))) {
+        // Its parents were added along with it.
+        return;
+      }
+    }
+  }
+
+  /**
+   * Returns true if a repository names its objects by SHA-256 rather than SHA-1 hashes.
+   *
+   * @param gitDir a git directory
+   * @return true if the repository uses SHA-256
+   */
+  private static boolean usesSha256(File gitDir) {
+    try {
+      String config = Files.readString(new File(commonDir(gitDir), "config").toPath(), UTF_8);
+      return SHA256_FORMAT.matcher(config).find();
+    } catch (IOException e) {
+      return false;
+    }
+  }
+}
@@ -0,0 +1,154 @@
+package org.plumelib.multiversioncontrol;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The git features that make {@code git status} and other commands faster, for the tune command.
+ * Whether a clone uses each feature is determined from its configuration (as printed by {@code git
+ * config --list}) and the layout of its git directory.
+ */
+final class GitTuning {
+
+  /** Do not instantiate. */
+  private GitTuning() {
+    throw new Error("Do not instantiate");
+  }
+
+  /** A feature that speeds up git. */
+  static enum Feature {
+    /** A commit-graph file, which speeds up walking history. */
+    COMMIT_GRAPH(
+        "commit-graph",
+        List.of(
+            List.of("commit-graph", "write", "--reachable", "--changed-paths"),
+            // Keep the commit-graph up to date.
+            List.of("config", "fetch.writeCommitGraph", "true"))),
+    /** A multi-pack-index, which speeds up finding objects when there are several packs. */
+    MULTI_PACK_INDEX("multi-pack-index", List.of(List.of("multi-pack-index", "write"))),
+    /** The untracked cache, which speeds up finding untracked files. */
+    UNTRACKED_CACHE(
+        "untracked cache",
+        List.of(
+            List.of("config", "core.untrackedCache", "true"),
+            List.of("update-index", "--untracked-cache"))),
+    /** Version 4 of the index format, which is smaller because it compresses paths. */
+    INDEX_V4(
+        "index v4",
+        List.of(
+            List.of("config", "index.version", "4"),
+            List.of("update-index", "--index-version", "4"))),
+    /** The built-in file system monitor, which avoids scanning the working tree. */
+    FSMONITOR("fsmonitor", List.of(List.of("config", "core.fsmonitor", "true")));
+
+    /** The name of the feature, for people to read. */
+    final String description;
+
+    /** The git commands, without the executable, that enable the feature. */
+    final List<List<String>> enableCommands;
+
+    /**
+     * Creates a Feature.
+     *
+     * @param description the name of the feature, for people to read
+     * @param enableCommands the git commands, without the executable, that enable the feature
+     */
+    Feature(String description, List<List<String>> enableCommands) {
+      this.description = description;
+      this.enableCommands = enableCommands;
+    }
+  }
+
+  /**
+   * Returns the features that a clone does not use. Features that would not help the clone, such as
+   * a multi-pack-index for a clone with only one pack, are not included.
+   *
+   * @param gitDir the clone's git directory
+   * @param config the clone's configuration, as returned by {@link #parseConfigList}
+   * @return the features that the clone does not use
+   */
+  static Set<Feature> missing(File gitDir, Map<String, String> config) {
+    Set<Feature> result = EnumSet.noneOf(Feature.class);
+    File objects = GitDir.objectsDir(gitDir);
+    if (!new File(objects, "info/commit-graph").isFile()
+        && !new File(objects, "info/commit-graphs/commit-graph-chain").isFile()) {
+      result.add(Feature.COMMIT_GRAPH);
+    }
+    File packDir = new File(objects, "pack");
+    File[] packs = packDir.listFiles((d, name) -> name.endsWith(".pack"));
+    if (packs != null && packs.length > 1 && !new File(packDir, "multi-pack-index").isFile()) {
+      result.add(Feature.MULTI_PACK_INDEX);
+    }
+    if (!"true".equals(config.get("core.untrackedcache"))) {
+      result.add(Feature.UNTRACKED_CACHE);
+    }
+    int indexVersion = indexVersion(gitDir);
+    if (indexVersion != -1 && indexVersion < 4) {
+      result.add(Feature.INDEX_V4);
+    }
+    String fsmonitor = config.get("core.fsmonitor");
+    if (hasBuiltinFsmonitor() && (fsmonitor == null || fsmonitor.equals("false"))) {
+      result.add(Feature.FSMONITOR);
+    }
+    return result;
+  }
+
+  /**
+   * Parses the output of {@code git config --list}. Keys are lowercase, as git prints them, and
+   * values are converted to lowercase. If a key appears more than once, the last value wins, as it
+   * does for git.
+   *
+   * @param output the output of {@code git config --list}
+   * @return a map from each key to its value
+   */
+  static Map<String, String> parseConfigList(String output) {
+    Map<String, String> result = new HashMap<>();
+    for (String line : output.split("\n")) {
+      int equals = line.indexOf('=');
+      if (equals != -1) {
+        result.put(line.substring(0, equals), line.substring(equals + 1).toLowerCase(Locale.ROOT));
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Returns the version of a clone's index file, or -1 if it has none or it cannot be read.
+   *
+   * @param gitDir the clone's git directory
+   * @return the version of the index format, or -1
+   */
+  static int indexVersion(File gitDir) {
+    File index = new File(gitDir, "index");
+    try (InputStream in = Files.newInputStream(index.toPath());
+        DataInputStream data = new DataInputStream(in)) {
+      // The header is the signature "DIRC", then the version as a 4-byte big-endian integer.
+      if (data.readInt() != 0x44495243) {
+        return -1;
+      }
+      return data.readInt();
+    } catch (IOException e) {
+      return -1;
+    }
+  }
+
+  /**
+   * Returns true if git has a built-in file system monitor on this platform. It exists only for
+   * macOS and Windows.
+   *
+   * @return true if git's built-in file system monitor is available
+   */
+  private static boolean hasBuiltinFsmonitor() {
+    String os = System.getProperty("os.name", "").toLowerCase(Locale.ROOT);
+    return os.startsWith("mac") || os.startsWith("windows");
+  }
+}
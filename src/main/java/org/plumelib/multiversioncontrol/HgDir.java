@@ -0,0 +1,179 @@
+package org.plumelib.multiversioncontrol;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Set;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * Reads a {@code .hg} directory directly, without running {@code hg}, which is slow to start.
+ * This class reads the phases of changesets and the parent and paths in the dirstate.
+ *
+ * <p>Mercurial records the phase of each changeset: public (pushed, or pulled from a publishing
+ * repository), draft (committed locally and not yet pushed), or secret (never pushed). The file
+ * {@code store/phaseroots} lists the roots of the draft and secret changesets, so a clone has
+ * unpushed changesets if and only if that file lists a draft root. Unlike {@code hg outgoing}, this
+ * does not contact the remote repository. Pushing to a non-publishing repository leaves changesets
+ * in the draft phase, so for such repositories this reports changesets that have been pushed.
+ */
+final class HgDir {
+
+  /** The phase number of draft changesets, in {@code phaseroots}. */
+  private static final String DRAFT_PHASE = "1";
+
+  /** The length of a changeset hash, in bytes. */
+  private static final int NODE_LENGTH = 20;
+
+  /** The length of the parents at the start of a v1 dirstate file. */
+  private static final int DIRSTATE_PARENTS_LENGTH = 2 * NODE_LENGTH;
+
+  /** The first bytes of a dirstate file in the dirstate-v2 format. */
+  private static final byte[] DIRSTATE_V2_MARKER = "dirstate-v2\n".getBytes(UTF_8);
+
+  /** Do not instantiate. */
+  private HgDir() {
+    throw new Error("Do not instantiate");
+  }
+
+  /**
+   * Returns true if a Mercurial clone has draft changesets, which have not been pushed.
+   *
+   * @param hgDir a {@code .hg} directory
+   * @return true if the clone has draft changesets
+   * @throws IOException if the metadata cannot be read, or the phases cannot be located
+   */
+  static boolean hasDraftChangesets(File hgDir) throws IOException {
+    File storeDir = storeDir(hgDir);
+    List<String> lines;
+    try {
+      lines = Files.readAllLines(new File(storeDir, "phaseroots").toPath(), UTF_8);
+    } catch (NoSuchFileException e) {
+      if (!new File(storeDir, "00changelog.i").isFile()) {
+        // This is not the store, so the phases are somewhere else.
+        throw e;
+      }
+      // No changeset has ever been draft or secret.
+      return false;
+    }
+    for (String line : lines) {
+      // Each line is a phase number and the hash of a root of that phase.
+      int space = line.indexOf(' ');
+      if (space != -1 && line.substring(0, space).equals(DRAFT_PHASE)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Returns the store directory of a Mercurial clone. A clone made by {@code hg share} uses the
+   * store of the clone it shares.
+   *
+   * @param hgDir a {@code .hg} directory
+   * @return the directory that holds the clone's changesets and phases
+   * @throws IOException if the metadata cannot be read
+   */
+  private static File storeDir(File hgDir) throws IOException {
+    File sharedPath = new File(hgDir, "sharedpath");
+    File source = hgDir;
+    if (sharedPath.isFile()) {
+      source = new File(Files.readString(sharedPath.toPath(), UTF_8).trim());
+      if (!source.isAbsolute()) {
+        source = new File(hgDir, source.getPath());
+      }
+    }
+    // Very old repositories have no store directory.  The "store" requirement does not say whether
+    // there is one, because with share-safe it is in store/requires rather than in requires.
+    File store = new File(source, "store");
+    return store.isDirectory() ? store : source;
+  }
+
+  /**
+   * Returns the directories, relative to the top of the working tree and separated by "/", that
+   * contain a file in the dirstate. The top-level directory itself is not included. Returns null
+   * if the dirstate cannot be read, or is in the dirstate-v2 format.
+   *
+   * @param hgDir a {@code .hg} directory
+   * @return the directories that contain tracked files, or null
+   */
+  static @Nullable Set<String> trackedDirectories(File hgDir) {
+    byte[] dirstate;
+    try {
+      dirstate = Files.readAllBytes(new File(hgDir, "dirstate").toPath());
+    } catch (IOException e) {
+      return null;
+    }
+    if (isDirstateV2(dirstate)) {
+      return null;
+    }
+    ByteBuffer buf = ByteBuffer.wrap(dirstate);
+    Set<String> result = new HashSet<>();
+    try {
+      // The two parents, then entries of: state, mode, size, mtime, name length, and name.
+      buf.position(DIRSTATE_PARENTS_LENGTH);
+      while (buf.hasRemaining()) {
+        buf.position(buf.position() + 13);
+        int length = buf.getInt();
+        String name = new String(dirstate, buf.position(), length, UTF_8);
+        buf.position(buf.position() + length);
+        // A copied file's name is followed by NUL and the name of its source.
+        int nul = name.indexOf('\0');
+        String path = (nul == -1) ? name : name.substring(0, nul);
+        int slash = path.lastIndexOf('/');
+        // Stop at a directory that is already in the set, because its parents are too.
+        while (slash > 0 && result.add(path.substring(0, slash))) {
+          slash = path.lastIndexOf('/', slash - 1);
+        }
+      }
+    } catch (BufferUnderflowException | IllegalArgumentException | IndexOutOfBoundsException e) {
+      // A truncated or corrupt dirstate.
+      return null;
+    }
+    return result;
+  }
+
+  /**
+   * Returns true if a dirstate file is in the dirstate-v2 format, which begins with a marker
+   * rather than with the parents of the working directory.
+   *
+   * @param dirstate the contents of a {@code .hg/dirstate} file
+   * @return true if the dirstate is in the dirstate-v2 format
+   */
+  static boolean isDirstateV2(byte[] dirstate) {
+    int length = DIRSTATE_V2_MARKER.length;
+    return dirstate.length >= length
+        && Arrays.equals(dirstate, 0, length, DIRSTATE_V2_MARKER, 0, length);
+  }
+
+  /**
+   * Returns the working directory's parent changeset, as a hexadecimal string, or null if it cannot
+   * be read.
+   *
+   * @param hgDir a {@code .hg} directory
+   * @return the hash of the working directory's first parent, or null
+   */
+  static @Nullable String workingParent(File hgDir) {
+    byte[] dirstate;
+    try {
+      dirstate = Files.readAllBytes(new File(hgDir, "dirstate").toPath());
+    } catch (IOException e) {
+      return null;
+    }
+    // A dirstate-v2 docket has the parent after its marker; a v1 dirstate starts with it.
+    int start = isDirstateV2(dirstate) ? DIRSTATE_V2_MARKER.length : 0;
+    if (dirstate.length < start + NODE_LENGTH) {
+      return null;
+    }
+    return HexFormat.of().formatHex(dirstate, start, start + NODE_LENGTH);
+  }
+}
@@ -0,0 +1,317 @@
+package org.plumelib.multiversioncontrol;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latency histograms for the phases of a run of mvc: reading the checkouts file,
+ * searching for clones, running commands, and filtering their output. They are always collected,
+ * because doing so costs a few nanoseconds per event, and they are printed by {@code --stats} or
+ * written to a file by {@code --stats-file}.
+ *
+ * <p>All updates are lock-free ({@link LongAdder} and {@link LongAccumulator}), so worker threads
+ * do not contend with one another.
+ */
+final class Metrics {
+
+  /**
+   * The number of histogram buckets. Bucket {@code i} counts the durations {@code d} (in
+   * nanoseconds) with {@code 2^(i-1) < d <= 2^i}; the last bucket also counts all longer ones.
+   */
+  private static final int BUCKETS = 44;
+
+  /**
+   * The first bucket written to a Prometheus file. The buckets below it (durations of at most 1
+   * microsecond) are merged into it.
+   */
+  private static final int FIRST_EXPORTED_BUCKET = 10;
+
+  /** Time to read the checkouts file. */
+  static final Timer READ_CHECKOUTS = new Timer("read_checkouts");
+
+  /** Time to search one directory tree for clones. */
+  static final Timer FIND_CHECKOUTS = new Timer("find_checkouts");
+
+  /** Time to create a Checkout for a CVS directory found by searching. */
+  static final Timer DIR_TO_CHECKOUT_CVS = new Timer("dir_to_checkout_cvs");
+
+  /** Time to create a Checkout for a git clone found by searching. */
+  static final Timer DIR_TO_CHECKOUT_GIT = new Timer("dir_to_checkout_git");
+
+  /** Time to create a Checkout for a Mercurial clone found by searching. */
+  static final Timer DIR_TO_CHECKOUT_HG = new Timer("dir_to_checkout_hg");
+
+  /** Time to create a Checkout for a Subversion working copy found by searching. */
+  static final Timer DIR_TO_CHECKOUT_SVN = new Timer("dir_to_checkout_svn");
+
+  /** Time from asking for a process to be started until it has started. */
+  static final Timer COMMAND_SPAWN = new Timer("command_spawn");
+
+  /** Time from starting a process until it exits; this includes network waits. */
+  static final Timer COMMAND_WALL = new Timer("command_wall");
+
+  /** Time to apply the replacers to the output of one command. */
+  static final Timer REPLACERS = new Timer("replacers");
+
+  /** The number of lines read from the checkouts file. */
+  static final Counter CONFIG_LINES = new Counter("config_lines", "Lines of the checkouts file");
+
+  /** The number of directories visited while searching for clones. */
+  static final Counter DIRECTORIES_SEARCHED =
+      new Counter("directories_searched", "Directories visited while searching for clones");
+
+  /** The number of commands that were run. */
+  static final Counter COMMANDS = new Counter("commands", "Commands run");
+
+  /** The number of commands that exited with a non-zero status. */
+  static final Counter COMMAND_FAILURES =
+      new Counter("command_failures", "Commands that exited with a non-zero status");
+
+  /** The number of commands that were killed because they took too long. */
+  static final Counter COMMAND_TIMEOUTS =
+      new Counter("command_timeouts", "Commands killed because they exceeded the timeout");
+
+  /** All the timers, in the order in which they are reported. */
+  private static final List<Timer> TIMERS =
+      List.of(
+          READ_CHECKOUTS,
+          FIND_CHECKOUTS,
+          DIR_TO_CHECKOUT_CVS,
+          DIR_TO_CHECKOUT_GIT,
+          DIR_TO_CHECKOUT_HG,
+          DIR_TO_CHECKOUT_SVN,
+          COMMAND_SPAWN,
+          COMMAND_WALL,
+          REPLACERS);
+
+  /** All the counters, in the order in which they are reported. */
+  private static final List<Counter> COUNTERS =
+      List.of(CONFIG_LINES, DIRECTORIES_SEARCHED, COMMANDS, COMMAND_FAILURES, COMMAND_TIMEOUTS);
+
+  /** Do not instantiate. */
+  private Metrics() {
+    throw new Error("Do not instantiate");
+  }
+
+  /** A latency histogram for one phase. */
+  static final class Timer {
+    /** The name of the phase, in snake_case. */
+    final String name;
+
+    /** The number of recorded durations. */
+    private final LongAdder count = new LongAdder();
+
+    /** The sum of the recorded durations, in nanoseconds. */
+    private final LongAdder totalNanos = new LongAdder();
+
+    /** The longest recorded duration, in nanoseconds. */
+    private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+
+    /** The histogram buckets; see {@link #BUCKETS}. */
+    private final LongAdder[] buckets = new LongAdder[BUCKETS];
+
+    /**
+     * Creates a Timer.
+     *
+     * @param name the name of the phase, in snake_case
+     */
+    Timer(String name) {
+      this.name = name;
+      for (int i = 0; i < BUCKETS; i++) {
+        buckets[i] = new LongAdder();
+      }
+    }
+
+    /**
+     * Records a duration that started at {@code startNanos} and ends now.
+     *
+     * @param startNanos the value of {@link System#nanoTime} at the start
+     */
+    void recordSince(long startNanos) {
+      record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Records a duration.
+     *
+     * @param nanos the duration, in nanoseconds
+     */
+    void record(long nanos) {
+      long d = Math.max(nanos, 0);
+      count.increment();
+      totalNanos.add(d);
+      maxNanos.accumulate(d);
+      buckets[bucket(d)].increment();
+    }
+
+    /**
+     * Returns an upper bound on the given quantile of the recorded durations.
+     *
+     * @param q a quantile, between 0 and 1
+     * @return an upper bound on the quantile, in nanoseconds
+     */
+    private long quantileNanos(double q) {
+      long n = count.sum();
+      long target = (long) Math.ceil(q * n);
+      long seen = 0;
+      for (int i = 0; i < BUCKETS; i++) {
+        seen += buckets[i].sum();
+        if (seen >= target) {
+          return Math.min(1L << i, maxNanos.get());
+        }
+      }
+      return maxNanos.get();
+    }
+  }
+
+  /** A count of events. */
+  static final class Counter {
+    /** The name of the counter, in snake_case. */
+    final String name;
+
+    /** A description of the counter. */
+    final String help;
+
+    /** The count. */
+    private final LongAdder count = new LongAdder();
+
+    /**
+     * Creates a Counter.
+     *
+     * @param name the name of the counter, in snake_case
+     * @param help a description of the counter
+     */
+    Counter(String name, String help) {
+      this.name = name;
+      this.help = help;
+    }
+
+    /** Adds 1 to the count. */
+    void increment() {
+      count.increment();
+    }
+  }
+
+  /**
+   * Returns the histogram bucket for a duration.
+   *
+   * @param nanos a non-negative duration, in nanoseconds
+   * @return the index of the bucket that counts the duration
+   */
+  private static int bucket(long nanos) {
+    // The number of bits needed to represent nanos - 1 is the smallest i with nanos <= 2^i.
+    int i = (nanos <= 1) ? 0 : 64 - Long.numberOfLeadingZeros(nanos - 1);
+    return Math.min(i, BUCKETS - 1);
+  }
+
+  /**
+   * Returns a table of all the metrics, for people to read.
+   *
+   * @return a table of all the metrics
+   */
+  static String table() {
+    StringBuilder sb = new StringBuilder();
+    sb.append(
+        String.format(
+            "%-22s %9s %11s %10s %10s %10s %10s %10s%n",
+            "phase", "count", "total(ms)", "mean(ms)", "p50(ms)", "p90(ms)", "p99(ms)", "max(ms)"));
+    for (Timer t : TIMERS) {
+      long n = t.count.sum();
+      if (n == 0) {
+        continue;
+      }
+      long total = t.totalNanos.sum();
+      sb.append(
+          String.format(
+              "%-22s %9d %11.1f %10.3f %10.3f %10.3f %10.3f %10.3f%n",
+              t.name,
+              n,
+              millis(total),
+              millis(total) / n,
+              millis(t.quantileNanos(0.5)),
+              millis(t.quantileNanos(0.9)),
+              millis(t.quantileNanos(0.99)),
+              millis(t.maxNanos.get())));
+    }
+    for (Counter c : COUNTERS) {
+      sb.append(String.format("%-22s %9d%n", c.name, c.count.sum()));
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Converts nanoseconds to milliseconds.
+   *
+   * @param nanos a duration, in nanoseconds
+   * @return the duration, in milliseconds
+   */
+  private static double millis(long nanos) {
+    return nanos / 1e6;
+  }
+
+  /**
+   * Writes all the metrics to a file in the Prometheus text format, as read by the textfile
+   * collector of the Prometheus node exporter. The file is replaced atomically, so the collector
+   * never reads a partial file.
+   *
+   * @param file the file to write; by convention, its name ends with ".prom"
+   * @throws IOException if the file cannot be written
+   */
+  static void writePrometheus(File file) throws IOException {
+    StringBuilder sb = new StringBuilder();
+    sb.append("# HELP mvc_phase_seconds Time spent in each phase of mvc.\n");
+    sb.append("# TYPE mvc_phase_seconds histogram\n");
+    for (Timer t : TIMERS) {
+      String label = "phase=\"" + t.name + "\"";
+      long cumulative = 0;
+      for (int i = 0; i < BUCKETS - 1; i++) {
+        cumulative += t.buckets[i].sum();
+        if (i >= FIRST_EXPORTED_BUCKET) {
+          sb.append(
+              String.format(
+                  Locale.ROOT,
+                  "mvc_phase_seconds_bucket{%s,le=\"%s\"} %d%n",
+                  label,
+                  (1L << i) / 1e9,
+                  cumulative));
+        }
+      }
+      long n = t.count.sum();
+      sb.append(String.format("mvc_phase_seconds_bucket{%s,le=\"+Inf\"} %d%n", label, n));
+      sb.append(
+          String.format(
+              Locale.ROOT,
+              "mvc_phase_seconds_sum{%s} %s%n",
+              label,
+              t.totalNanos.sum() / (double) TimeUnit.SECONDS.toNanos(1)));
+      sb.append(String.format("mvc_phase_seconds_count{%s} %d%n", label, n));
+    }
+    for (Counter c : COUNTERS) {
+      String name = "mvc_" + c.name + "_total";
+      sb.append("# HELP ").append(name).append(' ').append(c.help).append(".\n");
+      sb.append("# TYPE ").append(name).append(" counter\n");
+      sb.append(name).append(' ').append(c.count.sum()).append('\n');
+    }
+
+    Path path = file.toPath().toAbsolutePath();
+    Path dir = path.getParent();
+    if (dir == null) {
+      throw new IOException("No parent directory for " + path);
+    }
+    Files.createDirectories(dir);
+    // The textfile collector ignores files whose names do not end with ".prom".
+    Path tmp = Files.createTempFile(dir, "." + file.getName(), ".tmp");
+    Files.writeString(tmp, sb, UTF_8);
+    Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+}
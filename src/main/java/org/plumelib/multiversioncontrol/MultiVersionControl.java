@@ -7,17 +7,44 @@ import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileFilter;
 import java.io.IOException;
+import java.io.PrintStream;
 import java.io.UncheckedIOException;
+import java.nio.file.FileStore;
+import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
+import java.util.StringJoiner;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.ObjIntConsumer;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import org.apache.commons.exec.CommandLine;
@@ -97,8 +124,55 @@ import org.tmatesoft.svn.core.wc.SVNWCClient;
  *   status    -- Show files that are changed but not committed, or committed
  *                but not pushed, or have shelved/stashed changes.
  *   list      -- List the clones/checkouts that this program is aware of.
+ *   prefetch  -- Fetch new commits from upstream into the clones, without
+ *                changing any branch or working tree (git and Mercurial).
+ *   daemon    -- Keep running, and perform actions requested by other runs
+ *                of this program that pass --use-daemon.
+ *   fetch     -- Fetch new commits from upstream, without changing any branch
+ *                or working tree, and show which branches changed (git and
+ *                Mercurial).
+ *   maintain  -- Compact and clean up the clones' repositories, and report the
+ *                space reclaimed.
+ *   tune      -- Report which features that make git faster are not used by
+ *                each git clone, and with --apply-tuning, enable them.
+ *   exec      -- Run the command that follows "--" in each clone.
  * </pre>
  *
+ * <p>For example, {@code mvc exec --repo-type=git -- {vcs} gc --auto} runs {@code git gc --auto}
+ * in every git clone. In the command, {@code {vcs}} stands for the clone's version control
+ * program, such as the value of {@code --git-executable}, and {@code {dir}} stands for the clone's
+ * directory. The command runs in the clone's directory; its output, if any, is printed after the
+ * directory name.
+ *
+ * <p>Prefetching, say from cron or with {@code --prefetch-interval}, moves network traffic out of
+ * the way: a git clone fetches into {@code refs/prefetch/remotes/origin/}, and a Mercurial clone
+ * pulls without updating. A later pull of a clone that was prefetched recently (see {@code
+ * --prefetch-max-age}) takes the prefetched commits instead of contacting the upstream.
+ *
+ * <p>Fetching is network-bound, so unless {@code --jobs} is given, the fetch command processes 32
+ * clones at a time (but no more than {@code --jobs-per-host} from any one host). It prints nothing
+ * for a clone that has no new commits; for other clones, it prints the branches that changed.
+ *
+ * <p>The maintain command runs {@code git maintenance run --auto} in git clones, {@code svn
+ * cleanup --vacuum-pristines} in Subversion checkouts, and {@code hg debugupgraderepo} (which
+ * only checks for format upgrades) in Mercurial clones. Maintenance is disk-bound, so no more than
+ * {@code --jobs-per-disk} clones on any one file system are maintained at a time.
+ *
+ * <p>The tune command checks each git clone for a commit-graph, a multi-pack-index (if it has
+ * several packs), the untracked cache, version 4 of the index format, and on macOS and Windows,
+ * the built-in file system monitor. For each clone that lacks some of them, it prints the missing
+ * features and how long {@code git status} takes; with {@code --apply-tuning}, it enables them and
+ * also prints how long {@code git status} takes afterward.
+ *
+ * <p>A daemon finds the clones once, when it starts, and again whenever the {@code .mvc-checkouts}
+ * file changes. (Restart it to notice new clones found by {@code --search}.) A run with {@code
+ * --use-daemon} sends its action and options to the daemon, which performs the action with those
+ * options. The daemon refuses a run that would find a different set of clones or use a different
+ * cache directory (because of {@code --checkouts}, {@code --search}, {@code --search-prefix},
+ * {@code --dir}, {@code --ignore-dir}, or {@code --cache-dir}); such a run performs the action
+ * itself. If several runs request the same action with the same options at the same time, the
+ * daemon runs the commands for each clone only once and sends the output to all of them.
+ *
  * <p>(The {@code commit} action is not supported, because that is not something that should be done
  * in an automated way &mdash; it needs a user-written commit message.)
  *
@@ -138,8 +212,223 @@ import org.tmatesoft.svn.core.wc.SVNWCClient;
  *                                                                        needs to account for the
  *                                                                        time to run hooks (that
  *                                                                        might recompile or run
- *                                                                        tests). [default: 600]
+ *                                                                        tests). The clone command
+ *                                                                        allows 10 times as long
+ *                                                                        for a full clone, and 3
+ *                                                                        times as long for a
+ *                                                                        reduced one, unless its
+ *                                                                        clone profile specifies a
+ *                                                                        timeout. [default: 600]
+ *                                                <li id="option:deadline"><b>--deadline=</b><i>string</i>.
+ *                                                                         A limit on the time for
+ *                                                                         the whole run, such as
+ *                                                                         "10s", "500ms", "2m", or
+ *                                                                         "1h"; a number with no
+ *                                                                         unit is in seconds. With
+ *                                                                         a deadline, the clones
+ *                                                                         that took least time in
+ *                                                                         earlier runs are
+ *                                                                         processed first, each
+ *                                                                         command's timeout is
+ *                                                                         shortened so that it ends
+ *                                                                         by the deadline, and the
+ *                                                                         clones that could not be
+ *                                                                         processed in time are
+ *                                                                         listed at the end.
+ *                                                <li id="option:retries"><b>--retries=</b><i>int</i>.
+ *                                                                        How many times to retry a
+ *                                                                        clone, pull, or prefetch
+ *                                                                        that failed transiently,
+ *                                                                        such as because the
+ *                                                                        network connection was
+ *                                                                        closed. Such clones are
+ *                                                                        retried after all the
+ *                                                                        others are done, with a
+ *                                                                        randomized wait that
+ *                                                                        doubles on each retry. 0
+ *                                                                        means never retry.
+ *                                                                        [default: 2]
+ *                                                <li id="option:retry-delay"><b>--retry-delay=</b><i>int</i>.
+ *                                                                            The wait, in seconds,
+ *                                                                            before the first retry
+ *                                                                            of clones that failed
+ *                                                                            transiently. [default:
+ *                                                                            2]
+ *                                                <li id="option:clone-profile"><b>--clone-profile=</b><i>string</i>.
+ *                                                                              The clone profile
+ *                                                                              for every clone,
+ *                                                                              overriding those in
+ *                                                                              the checkouts file.
+ *                                                                              A profile is a
+ *                                                                              comma-separated list
+ *                                                                              of settings:
+ *                                                                              "blobless",
+ *                                                                              "depth=N",
+ *                                                                              "sparse=DIR:DIR...",
+ *                                                                              and
+ *                                                                              "timeout=SECONDS".
+ *                                                <li id="option:cvs-diff"><b>--cvs-diff=</b><i>boolean</i>.
+ *                                                                         If true, the status
+ *                                                                         command runs {@code cvs
+ *                                                                         diff} for CVS checkouts,
+ *                                                                         which contacts the
+ *                                                                         server. Otherwise, it
+ *                                                                         compares the timestamps
+ *                                                                         in {@code CVS/Entries}
+ *                                                                         files with the files
+ *                                                                         themselves, as {@code
+ *                                                                         cvs} does before
+ *                                                                         contacting the server.
+ *                                                                         [default: false]
+ *                                                <li id="option:check-remote"><b>--check-remote=</b><i>boolean</i>.
+ *                                                                             If true, the status
+ *                                                                             command runs {@code
+ *                                                                             hg outgoing} for
+ *                                                                             Mercurial clones,
+ *                                                                             which contacts the
+ *                                                                             remote repository, to
+ *                                                                             find unpushed
+ *                                                                             changesets.
+ *                                                                             Otherwise, it looks
+ *                                                                             for changesets in the
+ *                                                                             draft phase, which is
+ *                                                                             much faster.
+ *                                                                             [default: false]
+ *                                                <li id="option:jobs"><b>--jobs=</b><i>int</i>. The
+ *                                                                     number of clones to process
+ *                                                                     at the same time. When it is
+ *                                                                     more than 1, the output for
+ *                                                                     each clone is buffered and
+ *                                                                     printed, in order, once the
+ *                                                                     clone is done. [default: 1]
+ *                                                <li id="option:jobs-per-host"><b>--jobs-per-host=</b><i>int</i>.
+ *                                                                              The maximum number
+ *                                                                              of clones that
+ *                                                                              clone, pull, or
+ *                                                                              prefetch from any
+ *                                                                              one host at the same
+ *                                                                              time. It matters
+ *                                                                              only when {@code
+ *                                                                              --jobs} is larger. 0
+ *                                                                              means no limit.
+ *                                                                              [default: 4]
+ *                                                <li id="option:jobs-per-disk"><b>--jobs-per-disk=</b><i>int</i>.
+ *                                                                              The maximum number
+ *                                                                              of clones on any one
+ *                                                                              file system that the
+ *                                                                              maintain command
+ *                                                                              processes at the
+ *                                                                              same time. It
+ *                                                                              matters only when
+ *                                                                              {@code --jobs} is
+ *                                                                              larger. 0 means no
+ *                                                                              limit. [default: 2]
+ *                                                <li id="option:format"><b>--format=</b><i>string</i>.
+ *                                                                       The output format: "text",
+ *                                                                       or "ndjson" for one JSON
+ *                                                                       object per clone, printed
+ *                                                                       as soon as the clone is
+ *                                                                       done. Each object holds the
+ *                                                                       clone's type and directory,
+ *                                                                       its output lines, its exit
+ *                                                                       code, and the timings of
+ *                                                                       the commands that were run.
+ *                                                                       [default: text]
+ *                                                <li id="option:apply-tuning"><b>--apply-tuning=</b><i>boolean</i>.
+ *                                                                             If true, the tune
+ *                                                                             command enables the
+ *                                                                             features that it
+ *                                                                             finds missing.
+ *                                                                             [default: false]
  *                                              </ul>
+ *   <li id="optiongroup:Caching">Caching
+ *                                <ul>
+ *                                  <li id="option:cache-dir"><b>--cache-dir=</b><i>string</i>.
+ *                                                            Directory in which to store caches,
+ *                                                            such as the status cache. [default
+ *                                                            {@code ~/.cache/mvc}]
+ *                                  <li id="option:no-cache"><b>--no-cache=</b><i>boolean</i>. If
+ *                                                           true, do not use or update the cache of
+ *                                                           status results. [default: false]
+ *                                  <li id="option:max-age"><b>--max-age=</b><i>int</i>. How long,
+ *                                                          in seconds, a cached status result may
+ *                                                          be reused. A cached result is reused
+ *                                                          only if the clone's fingerprint (the
+ *                                                          modification times of its refs, index,
+ *                                                          and directories) is unchanged. Editing
+ *                                                          an existing file does not change the
+ *                                                          fingerprint, so this bounds how stale a
+ *                                                          reported status can be. [default: 60]
+ *                                  <li id="option:changes-only"><b>--changes-only=</b><i>boolean</i>.
+ *                                                               If true, the status command prints
+ *                                                               only the clones whose state (HEAD,
+ *                                                               and whether there are uncommitted,
+ *                                                               unpushed, or shelved changes)
+ *                                                               differs from the previous status
+ *                                                               run. A clone that has become clean
+ *                                                               is reported as "clean: DIR".
+ *                                                               [default: false]
+ *                                  <li id="option:shared-fetch"><b>--shared-fetch=</b><i>boolean</i>.
+ *                                                               If true, the pull command fetches
+ *                                                               each upstream repository that is
+ *                                                               shared by several git clones only
+ *                                                               once, into a bare repository in the
+ *                                                               cache directory. Each of those
+ *                                                               clones then fetches from the bare
+ *                                                               repository and merges, instead of
+ *                                                               running {@code git pull}. [default:
+ *                                                               false]
+ *                                  <li id="option:precheck"><b>--precheck=</b><i>boolean</i>. If
+ *                                                           true, the pull command first lists the
+ *                                                           branches and tags of each git upstream
+ *                                                           repository, once per upstream, with
+ *                                                           {@code git ls-remote}. It does not pull
+ *                                                           a clone whose remote-tracking branches,
+ *                                                           current branch, and tags already match
+ *                                                           the upstream's. [default: false]
+ *                                  <li id="option:mirror"><b>--mirror=</b><i>boolean</i>. If true,
+ *                                                         the clone command keeps a bare mirror of
+ *                                                         each git or Mercurial upstream repository
+ *                                                         in the cache directory, and clones from
+ *                                                         the mirror. A git clone borrows objects
+ *                                                         from the mirror ({@code git clone
+ *                                                         --reference --dissociate}), so it fetches
+ *                                                         from the upstream only what the mirror
+ *                                                         lacks. A Mercurial clone is a local
+ *                                                         (hardlinked) clone of the mirror, whose
+ *                                                         default path is then set to the upstream.
+ *                                                         [default: false]
+ *                                  <li id="option:prefetch-max-age"><b>--prefetch-max-age=</b><i>int</i>.
+ *                                                                   The pull command does not
+ *                                                                   contact the upstream for a git
+ *                                                                   or Mercurial clone that was
+ *                                                                   prefetched at most this many
+ *                                                                   seconds ago; instead, it uses
+ *                                                                   the prefetched commits. 0 means
+ *                                                                   always contact the upstream.
+ *                                                                   [default: 900]
+ *                                  <li id="option:prefetch-interval"><b>--prefetch-interval=</b><i>int</i>.
+ *                                                                    If positive, the prefetch
+ *                                                                    command runs repeatedly,
+ *                                                                    waiting this many seconds
+ *                                                                    after each round. 0 means
+ *                                                                    prefetch once, as from cron.
+ *                                                                    [default: 0]
+ *                                </ul>
+ *   <li id="optiongroup:Daemon">Daemon
+ *                               <ul>
+ *                                 <li id="option:use-daemon"><b>--use-daemon=</b><i>boolean</i>. If
+ *                                                            true, ask a running {@code mvc daemon}
+ *                                                            to perform the action, and print its
+ *                                                            output. If no daemon is running, or it
+ *                                                            finds clones differently than this run
+ *                                                            would, perform the action as usual.
+ *                                                            [default: false]
+ *                                 <li id="option:socket"><b>--socket=</b><i>string</i>. The Unix
+ *                                                        domain socket on which {@code mvc daemon}
+ *                                                        listens. [default {@code daemon.sock} in
+ *                                                        the cache directory]
+ *                               </ul>
  *   <li id="optiongroup:Searching-for-clones">Searching for clones
  *                                             <ul>
  *                                               <li id="option:search"><b>--search=</b><i>boolean</i>.
@@ -170,6 +459,13 @@ import org.tmatesoft.svn.core.wc.SVNWCClient;
  *                                                                          to NOT search for
  *                                                                          clones. May include
  *                                                                          leading "~/".
+ *                                               <li id="option:repo-type"><b>--repo-type=</b><i>string</i> <code>[+]</code>.
+ *                                                                         The types of clone to
+ *                                                                         process, such as "git" or
+ *                                                                         "hg". Clones of other
+ *                                                                         types are ignored. If
+ *                                                                         none is given, all clones
+ *                                                                         are processed.
  *                                             </ul>
  *   <li id="optiongroup:Paths-to-programs">Paths to programs
  *                                          <ul>
@@ -236,6 +532,28 @@ import org.tmatesoft.svn.core.wc.SVNWCClient;
  *                                                                           of 'replacers' that
  *                                                                           filter command output.
  *                                                                           [default: false]
+ *                                      <li id="option:stats"><b>--stats=</b><i>boolean</i>. If
+ *                                                            true, print a table of timings and
+ *                                                            counters at the end: how long was
+ *                                                            spent reading the checkouts file,
+ *                                                            searching for clones, starting and
+ *                                                            running commands, and filtering
+ *                                                            output. [default: false]
+ *                                      <li id="option:stats-file"><b>--stats-file=</b><i>string</i>.
+ *                                                                 File to which to write timings
+ *                                                                 and counters, in the Prometheus
+ *                                                                 text format. Use a name ending in
+ *                                                                 ".prom" in the directory of the
+ *                                                                 node exporter's textfile
+ *                                                                 collector.
+ *                                      <li id="option:progress"><b>--progress=</b><i>boolean</i>.
+ *                                                               If true, show a progress line on
+ *                                                               standard error: how many clones are
+ *                                                               done, running, failed, and timed
+ *                                                               out, and an estimate of the time
+ *                                                               remaining, based on how long each
+ *                                                               clone took in earlier runs.
+ *                                                               [default: false]
  *                                    </ul>
  * </ul>
  *
@@ -268,6 +586,13 @@ import org.tmatesoft.svn.core.wc.SVNWCClient;
  *
  * <p>When performing a checkout, the parent directories are created if needed.
  *
+ * <p>A line of the form "CLONEPROFILE: PROFILE" sets how much of each repository the clone command
+ * fetches, for the directories that follow it. For example, "CLONEPROFILE: blobless,depth=1" makes
+ * blob-less shallow clones, and "CLONEPROFILE: full" restores the default. A profile is a
+ * comma-separated list of settings: "full", "blobless", "depth=N", "sparse=DIR:DIR..." (check out
+ * only those directories), and "timeout=SECONDS". The {@code --clone-profile} command-line option
+ * overrides the profiles in the file.
+ *
  * <p>In the file, blank lines, and lines beginning with "#", are ignored.
  *
  * <p>Here are some example sections:
@@ -388,11 +713,175 @@ public class MultiVersionControl {
   /**
    * Terminating the process can leave the repository in a bad state, so set this rather high for
    * safety. Also, the timeout needs to account for the time to run hooks (that might recompile or
-   * run tests).
+   * run tests). The clone command allows 10 times as long for a full clone, and 3 times as long
+   * for a reduced one, unless its clone profile specifies a timeout.
    */
   @Option("Timeout for each command, in seconds")
   public int timeout = 600;
 
+  /**
+   * A limit on the time for the whole run, such as "10s", "500ms", "2m", or "1h"; a number with no
+   * unit is in seconds. With a deadline, the clones that took least time in earlier runs are
+   * processed first, each command's timeout is shortened so that it ends by the deadline, and the
+   * clones that could not be processed in time are listed at the end.
+   */
+  @Option("Time limit for the whole run, such as 10s or 2m")
+  public @Nullable String deadline = null;
+
+  /**
+   * How many times to retry a clone, pull, or prefetch that failed transiently, such as because the
+   * network connection was closed. Such clones are retried after all the others are done, with a
+   * randomized wait that doubles on each retry. 0 means never retry.
+   */
+  @Option("Number of times to retry a clone that failed because of a network error")
+  public int retries = 2;
+
+  /** The wait, in seconds, before the first retry of clones that failed transiently. */
+  @Option("Wait before the first retry, in seconds")
+  public int retryDelay = 2;
+
+  /**
+   * The clone profile for every clone, overriding those in the checkouts file. A profile is a
+   * comma-separated list of settings: "blobless", "depth=N", "sparse=DIR:DIR...", and
+   * "timeout=SECONDS".
+   */
+  @Option("Clone profile (e.g., \"blobless,depth=1\") for every clone")
+  public @Nullable String cloneProfile = null;
+
+  /**
+   * If true, the status command runs {@code cvs diff} for CVS checkouts, which contacts the server.
+   * Otherwise, it compares the timestamps in {@code CVS/Entries} files with the files themselves,
+   * as {@code cvs} does before contacting the server.
+   */
+  @Option("Use 'cvs diff' (which contacts the server) to find changed files in CVS checkouts")
+  public boolean cvsDiff = false;
+
+  /**
+   * If true, the status command runs {@code hg outgoing} for Mercurial clones, which contacts the
+   * remote repository, to find unpushed changesets. Otherwise, it looks for changesets in the draft
+   * phase, which is much faster.
+   */
+  @Option("Use 'hg outgoing' (which contacts the remote repository) to find unpushed changesets")
+  public boolean checkRemote = false;
+
+  /**
+   * The number of clones to process at the same time. When it is more than 1, the output for each
+   * clone is buffered and printed, in order, once the clone is done.
+   */
+  @Option("Number of clones to process in parallel")
+  public int jobs = 1;
+
+  /**
+   * The maximum number of clones that clone, pull, or prefetch from any one host at the same time.
+   * It matters only when {@code --jobs} is larger. 0 means no limit.
+   */
+  @Option("Number of clones to clone, pull, or prefetch from one host in parallel")
+  public int jobsPerHost = 4;
+
+  /**
+   * The maximum number of clones on any one file system that the maintain command processes at
+   * the same time. It matters only when {@code --jobs} is larger. 0 means no limit.
+   */
+  @Option("Number of clones on one file system to maintain in parallel")
+  public int jobsPerDisk = 2;
+
+  /**
+   * The output format: "text", or "ndjson" for one JSON object per clone, printed as soon as the
+   * clone is done. Each object holds the clone's type and directory, its output lines, its exit
+   * code, and the timings of the commands that were run.
+   */
+  @Option("Output format: text or ndjson")
+  public String format = "text";
+
+  /** If true, the tune command enables the features that it finds missing. */
+  @Option("Enable the missing features found by the tune command")
+  public boolean applyTuning = false;
+
+  /**
+   * Directory in which to store caches, such as the status cache. [default {@code ~/.cache/mvc}]
+   */
+  @OptionGroup("Caching")
+  @Option(value = "Directory in which to store caches", noDocDefault = true)
+  public String cacheDir = "~/.cache/mvc";
+
+  /** If true, do not use or update the cache of status results. */
+  @Option("Do not use or update the cache of status results")
+  public boolean noCache = false;
+
+  /**
+   * How long, in seconds, a cached status result may be reused. A cached result is reused only if
+   * the clone's fingerprint (the modification times of its refs, index, and directories) is
+   * unchanged. Editing an existing file does not change the fingerprint, so this bounds how stale
+   * a reported status can be.
+   */
+  @Option("Maximum age, in seconds, of a cached status result")
+  public int maxAge = 60;
+
+  /**
+   * If true, the status command prints only the clones whose state (HEAD, and whether there are
+   * uncommitted, unpushed, or shelved changes) differs from the previous status run. A clone that
+   * has become clean is reported as "clean: DIR".
+   */
+  @Option("Print only the clones whose status changed since the previous run")
+  public boolean changesOnly = false;
+
+  /**
+   * If true, the pull command fetches each upstream repository that is shared by several git clones
+   * only once, into a bare repository in the cache directory. Each of those clones then fetches
+   * from the bare repository and merges, instead of running {@code git pull}.
+   */
+  @Option("Fetch once per upstream repository shared by several git clones")
+  public boolean sharedFetch = false;
+
+  /**
+   * If true, the pull command first lists the branches and tags of each git upstream repository,
+   * once per upstream, with {@code git ls-remote}. It does not pull a clone whose remote-tracking
+   * branches, current branch, and tags already match the upstream's.
+   */
+  @Option("Skip pulling git clones that are already up to date with their upstream")
+  public boolean precheck = false;
+
+  /**
+   * If true, the clone command keeps a bare mirror of each git or Mercurial upstream repository in
+   * the cache directory, and clones from the mirror. A git clone borrows objects from the mirror
+   * ({@code git clone --reference --dissociate}), so it fetches from the upstream only what the
+   * mirror lacks. A Mercurial clone is a local (hardlinked) clone of the mirror, whose default
+   * path is then set to the upstream.
+   */
+  @Option("Clone from local mirrors of the upstream repositories")
+  public boolean mirror = false;
+
+  /**
+   * The pull command does not contact the upstream for a git or Mercurial clone that was prefetched
+   * at most this many seconds ago; instead, it uses the prefetched commits. 0 means always contact
+   * the upstream.
+   */
+  @Option("Maximum age, in seconds, of a prefetch that pull uses instead of the network")
+  public int prefetchMaxAge = 900;
+
+  /**
+   * If positive, the prefetch command runs repeatedly, waiting this many seconds after each
+   * round. 0 means prefetch once, as from cron.
+   */
+  @Option("Seconds between rounds of prefetching; 0 means prefetch once")
+  public int prefetchInterval = 0;
+
+  /**
+   * If true, ask a running {@code mvc daemon} to perform the action, and print its output. If no
+   * daemon is running, or it finds clones differently than this run would, perform the action as
+   * usual.
+   */
+  @OptionGroup("Daemon")
+  @Option("Ask a running mvc daemon to perform the action")
+  public boolean useDaemon = false;
+
+  /**
+   * The Unix domain socket on which {@code mvc daemon} listens. [default {@code daemon.sock} in the
+   * cache directory]
+   */
+  @Option(value = "Socket on which mvc daemon listens", noDocDefault = true)
+  public @Nullable String socket = null;
+
   // Default is false because searching the whole directory structure is slow.
   /** If true, search for all clones, not just those listed in a file. */
   @OptionGroup("Searching for clones")
@@ -418,6 +907,13 @@ public class MultiVersionControl {
   @Option("Directory under which to NOT search for clones")
   public List<String> ignoreDir = new ArrayList<>();
 
+  /**
+   * The types of clone to process, such as "git" or "hg". Clones of other types are ignored. If
+   * none is given, all clones are processed.
+   */
+  @Option("Process only clones of this type: bzr, cvs, git, hg, or svn")
+  public List<String> repoType = new ArrayList<>();
+
   /** Files, each a directory, corresponding to strings in {@link ignoreDir}. */
   private Set<File> ignoreDirs = new LinkedHashSet<>();
 
@@ -501,6 +997,28 @@ public class MultiVersionControl {
   @Option("Lightweight debugging of 'replacers' that filter command output")
   public boolean debugProcessOutput = false;
 
+  /**
+   * If true, print a table of timings and counters at the end: how long was spent reading the
+   * checkouts file, searching for clones, starting and running commands, and filtering output.
+   */
+  @Option("Print timings and counters at the end")
+  public boolean stats = false;
+
+  /**
+   * File to which to write timings and counters, in the Prometheus text format. Use a name ending
+   * in ".prom" in the directory of the node exporter's textfile collector.
+   */
+  @Option("File to which to write timings and counters, for Prometheus")
+  public @Nullable String statsFile = null;
+
+  /**
+   * If true, show a progress line on standard error: how many clones are done, running, failed,
+   * and timed out, and an estimate of the time remaining, based on how long each clone took in
+   * earlier runs.
+   */
+  @Option("Show a progress line on standard error")
+  public boolean progress = false;
+
   /** Actions that MultiVersionControl can perform. */
   static enum Action {
     /** Clone a repository. */
@@ -510,12 +1028,102 @@ public class MultiVersionControl {
     /** Pull changes from upstream. */
     PULL,
     /** List the known repositories. */
-    LIST
+    LIST,
+    /** Fetch from upstream without changing branches or working trees. */
+    PREFETCH,
+    /** Perform actions requested by other runs of mvc. */
+    DAEMON,
+    /** Run an arbitrary command in each clone. */
+    EXEC,
+    /** Fetch from upstream without changing branches or working trees, and report what changed. */
+    FETCH,
+    /** Compact and clean up repositories. */
+    MAINTAIN,
+    /** Report, and optionally enable, features that make git faster. */
+    TUNE
   }
 
+  /** Matches a duration for {@code --deadline}, such as "10s". */
+  private static final @Regex(2) Pattern DURATION_PATTERN =
+      Pattern.compile("^(\\d+(?:\\.\\d+)?)(ms|s|m|h)?$");
+
+  /**
+   * The number of clones that the fetch command processes at the same time, unless {@code --jobs}
+   * is given. Fetching is network-bound, and {@code --jobs-per-host} protects each server.
+   */
+  private static final int FETCH_JOBS = 32;
+
+  /** The longest wait between retries of clones that failed transiently, in milliseconds. */
+  private static final long MAX_RETRY_DELAY_MILLIS = 60_000;
+
+  /** The prefix of the refs into which the prefetch command fetches the branches of a git clone. */
+  private static final String GIT_PREFETCH_REFS = "refs/prefetch/remotes/origin/";
+
   /** Which action to perform on this run of MultiVersionControl. */
   private Action action;
 
+  /** The parsed value of {@link #deadline}, or null if there is no deadline. */
+  private @Nullable Duration deadlineDuration = null;
+
+  /**
+   * The value of {@link System#nanoTime} at which the current run must end, or {@link
+   * Long#MAX_VALUE} if there is no deadline.
+   */
+  private long deadlineNanos = Long.MAX_VALUE;
+
+  /** The command-line arguments, other than the action. */
+  private List<String> optionArgs = List.of();
+
+  /**
+   * The values of all the options, after defaults and implied settings are applied. Daemon requests
+   * share work only if their settings are equal; see {@link #processCheckoutShared}.
+   */
+  private String optionSettings = "";
+
+  /** For the exec action, the command to run in each clone: the arguments after "--". */
+  private List<String> execCommand = List.of();
+
+  /** The types of clone to process, from {@code --repo-type}; if empty, all types. */
+  private Set<RepoType> repoTypes = EnumSet.noneOf(RepoType.class);
+
+  /** Maps a host to the permits for contacting it; see {@link #jobsPerHost}. */
+  private final Map<String, Semaphore> hostPermits = new ConcurrentHashMap<>();
+
+  /** Maps a file system to the permits for maintaining clones on it; see {@link #jobsPerDisk}. */
+  private final Map<FileStore, Semaphore> diskPermits = new ConcurrentHashMap<>();
+
+  /** Where to print the output for the clones. The daemon sets it to a client's socket. */
+  PrintStream stdout = System.out;
+
+  /**
+   * For the daemon: the work that is in progress for all the clients, so that concurrent requests
+   * share it. Maps an action and a clone to the eventual result for the clone. Null if this is not
+   * running in the daemon.
+   */
+  @Nullable Map<String, CompletableFuture<SharedResult>> inFlight = null;
+
+  /** The parsed value of {@link #cloneProfile}, or null if it was not given. */
+  private @Nullable CloneProfile commandLineCloneProfile = null;
+
+  /**
+   * For {@code --shared-fetch}: maps the normalized URL of an upstream repository to the bare
+   * repository in the cache directory into which it was just fetched. It is filled in before any
+   * clone is processed.
+   */
+  private final Map<String, File> fetchCaches = new ConcurrentHashMap<>();
+
+  /**
+   * For {@code --mirror}: maps the normalized URL of an upstream repository to an up-to-date mirror
+   * of it in the cache directory. It is filled in before any clone is processed.
+   */
+  private final Map<String, File> mirrors = new ConcurrentHashMap<>();
+
+  /**
+   * For {@code --precheck}: the git clones that a pull would not change. It is filled in before any
+   * clone is processed.
+   */
+  private final Set<Checkout> upToDate = ConcurrentHashMap.newKeySet();
+
   /**
    * Replace "~" by the expansion of "$HOME".
    *
@@ -534,20 +1142,87 @@ public class MultiVersionControl {
    * @see MultiVersionControl
    */
   public static void main(String[] args) {
-    setupSvnkit();
+    // Before the constructor, which saves System.out.
+    OutputSink.install();
     MultiVersionControl mvc = new MultiVersionControl(args);
 
-    Set<Checkout> checkouts = new LinkedHashSet<>();
+    // The daemon does not run exec, whose command is not part of its request.
+    if (mvc.useDaemon && mvc.action != Action.DAEMON && mvc.action != Action.EXEC) {
+      try {
+        if (Daemon.request(mvc.socketFile(), mvc.actionName(), mvc.optionArgs, System.out)) {
+          return;
+        }
+      } catch (IOException e) {
+        System.err.println("Problem communicating with mvc daemon: " + e.getMessage());
+        System.exit(1);
+      }
+    }
+
+    Set<Checkout> checkouts;
+    try {
+      checkouts = mvc.collectCheckouts();
+    } catch (CheckoutsException e) {
+      System.err.println(e.getMessage());
+      System.exit(e.exitStatus);
+      return;
+    }
+
+    if (mvc.action == Action.DAEMON) {
+      try {
+        new Daemon(mvc, checkouts).serve();
+      } catch (IOException e) {
+        System.err.println("Problem running mvc daemon: " + e.getMessage());
+        System.exit(1);
+      }
+      return;
+    }
+
+    mvc.process(checkouts);
+    while (mvc.action == Action.PREFETCH && mvc.prefetchInterval > 0) {
+      try {
+        Thread.sleep(TimeUnit.SECONDS.toMillis(mvc.prefetchInterval));
+      } catch (InterruptedException e) {
+        break;
+      }
+      mvc.process(checkouts);
+    }
+
+    if (mvc.stats) {
+      mvc.messages().print(Metrics.table());
+      mvc.messages().flush();
+    }
+    if (mvc.statsFile != null) {
+      File statsFile = new File(expandTilde(mvc.statsFile));
+      try {
+        Metrics.writePrometheus(statsFile);
+      } catch (IOException e) {
+        System.err.println("Problem writing statistics file " + statsFile + ": " + e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * Returns the clones listed in the checkouts file and, if {@code --search} was given, those found
+   * by searching.
+   *
+   * @return the clones to process
+   * @throws CheckoutsException if the checkouts file is malformed or a directory to search does
+   *     not exist
+   */
+  Set<Checkout> collectCheckouts() throws CheckoutsException {
+    Set<Checkout> checkouts = new CheckoutSet();
+    // Symbolic links may have changed since the clones were last collected.
+    CanonicalPaths.clear();
 
     try {
-      readCheckouts(new File(mvc.checkouts), checkouts, mvc.searchPrefix);
+      readCheckouts(new File(this.checkouts), checkouts, searchPrefix);
     } catch (IOException e) {
-      System.err.println("Problem reading file " + mvc.checkouts + ": " + e.getMessage());
+      System.err.println("Problem reading file " + this.checkouts + ": " + e.getMessage());
     }
 
-    if (mvc.search) {
+    if (search) {
       // Postprocess command-line arguments
-      for (String adir : mvc.ignoreDir) {
+      for (String adir : ignoreDir) {
         File afile = new File(expandTilde(adir));
         if (!afile.exists()) {
           System.err.printf(
@@ -559,22 +1234,23 @@ public class MultiVersionControl {
                   + "  %s%n",
               adir);
         } else {
-          mvc.ignoreDirs.add(afile);
+          ignoreDirs.add(afile);
         }
       }
 
-      for (String adirUnexpanded : mvc.dir) {
+      for (String adirUnexpanded : dir) {
         String adir = expandTilde(adirUnexpanded);
         if (debug) {
           System.out.println("Searching for checkouts under " + adir);
         }
         if (!new File(adir).isDirectory()) {
-          System.err.printf(
-              "Directory in which to search for checkouts is not a directory: %s%n", adir);
-          System.exit(2);
+          throw new CheckoutsException(
+              "Directory in which to search for checkouts is not a directory: " + adir, 2);
         }
         int oldCheckouts = checkouts.size();
-        findCheckouts(new File(adir), checkouts, mvc.ignoreDirs);
+        long startNanos = System.nanoTime();
+        findCheckouts(new File(adir), checkouts, ignoreDirs);
+        Metrics.FIND_CHECKOUTS.recordSince(startNanos);
         if (debug) {
           System.out.printf("Searching added %d checkouts%n", checkouts.size() - oldCheckouts);
         }
@@ -589,14 +1265,24 @@ public class MultiVersionControl {
       }
       System.out.flush();
     }
-    mvc.process(checkouts);
+    return checkouts;
   }
 
-  /** Set up the SVNKit library. */
-  private static void setupSvnkit() {
+  /** True if {@link #setupSvnkit} has set up the SVNKit library. */
+  private static boolean svnkitIsSetUp = false;
+
+  /**
+   * Set up the SVNKit library, if it has not already been set up. This loads much of SVNKit, so it
+   * is done only when a Subversion working copy is found, not on every run.
+   */
+  private static synchronized void setupSvnkit() {
+    if (svnkitIsSetUp) {
+      return;
+    }
     DAVRepositoryFactory.setup();
     SVNRepositoryFactoryImpl.setup();
     FSRepositoryFactory.setup();
+    svnkitIsSetUp = true;
   }
 
   /** Nullary constructor for use by OptionsDoclet. */
@@ -628,7 +1314,17 @@ public class MultiVersionControl {
     @SuppressWarnings(
         "nullness:assignment" // new C(underInit) yields @UnderInitialization; @Initialized is safe
     )
-    @Initialized Options options = new Options("mvc [options] {clone,status,pull,list}", this);
+    @Initialized Options options =
+        new Options(
+            "mvc [options] {clone,status,pull,list,fetch,prefetch,maintain,tune,daemon,"
+                + "exec -- COMMAND...}",
+            this);
+    // The arguments after "--" are a command for the exec action, not options.
+    int dashDash = Arrays.asList(args).indexOf("--");
+    if (dashDash != -1) {
+      execCommand = List.copyOf(Arrays.asList(args).subList(dashDash + 1, args.length));
+      args = Arrays.copyOf(args, dashDash);
+    }
     String[] remainingArgs = options.parse(true, args);
     if (remainingArgs.length != 1) {
       System.out.printf(
@@ -638,27 +1334,54 @@ public class MultiVersionControl {
       System.exit(1);
     }
     String actionString = remainingArgs[0];
-    if ("checkout".startsWith(actionString)) {
-      action = Action.CLONE;
-    } else if ("clone".startsWith(actionString)) {
-      action = Action.CLONE;
-    } else if ("list".startsWith(actionString)) {
-      action = Action.LIST;
-    } else if ("pull".startsWith(actionString)) {
-      action = Action.PULL;
-    } else if ("status".startsWith(actionString)) {
-      action = Action.STATUS;
-    } else if ("update".startsWith(actionString)) {
-      action = Action.PULL;
-    } else {
+    Action parsedAction = parseAction(actionString);
+    if (parsedAction == null) {
       System.out.printf("Unrecognized action \"%s\"", actionString);
       options.printUsage();
       System.exit(1);
     }
+    action = parsedAction;
+    if (action == Action.EXEC && execCommand.isEmpty()) {
+      System.out.println("The exec action requires a command, after \"--\"");
+      options.printUsage();
+      System.exit(1);
+    }
+    if (action != Action.EXEC && !execCommand.isEmpty()) {
+      System.out.printf("The %s action does not take a command%n", actionString);
+      options.printUsage();
+      System.exit(1);
+    }
+    List<String> otherArgs = new ArrayList<>(Arrays.asList(args));
+    otherArgs.remove(otherArgs.lastIndexOf(actionString));
+    optionArgs = otherArgs;
 
     // clean up options
 
+    if (!format.equals("text") && !format.equals("ndjson")) {
+      System.out.printf("Unrecognized --format=%s; use text or ndjson%n", format);
+      options.printUsage();
+      System.exit(1);
+    }
+    if (deadline != null) {
+      try {
+        deadlineDuration = parseDuration(deadline);
+      } catch (IllegalArgumentException e) {
+        System.out.printf("Bad --deadline: %s%n", e.getMessage());
+        options.printUsage();
+        System.exit(1);
+      }
+    }
+    for (String type : repoType) {
+      try {
+        repoTypes.add(RepoType.valueOf(type.toUpperCase(Locale.ROOT)));
+      } catch (IllegalArgumentException e) {
+        System.out.printf("Unrecognized --repo-type=%s; use bzr, cvs, git, hg, or svn%n", type);
+        options.printUsage();
+        System.exit(1);
+      }
+    }
     checkouts = expandTilde(checkouts);
+    cacheDir = expandTilde(cacheDir);
 
     if (dir.isEmpty()) {
       dir.add(home);
@@ -667,8 +1390,14 @@ public class MultiVersionControl {
     if (action == Action.CLONE) {
       search = false;
       show = true;
-      // Checkouts can be much slower than other operations.
-      timeout = timeout * 10;
+      if (cloneProfile != null) {
+        try {
+          commandLineCloneProfile = CloneProfile.parse(cloneProfile);
+        } catch (IllegalArgumentException e) {
+          System.out.printf("Bad --clone-profile: %s%n", e.getMessage());
+          System.exit(1);
+        }
+      }
 
       // Set dryRun to true unless it was explicitly specified
       boolean explicitDryRun = false;
@@ -686,6 +1415,19 @@ public class MultiVersionControl {
       }
     }
 
+    if (action == Action.FETCH) {
+      // Use more parallelism unless --jobs was explicitly specified.
+      boolean explicitJobs = false;
+      for (String arg : args) {
+        if (arg.startsWith("--jobs=") || arg.equals("--jobs")) {
+          explicitJobs = true;
+        }
+      }
+      if (!explicitJobs) {
+        jobs = FETCH_JOBS;
+      }
+    }
+
     if (dryRun) {
       show = true;
       redoExisting = true;
@@ -694,6 +1436,138 @@ public class MultiVersionControl {
     if (debug) {
       show = true;
     }
+
+    optionSettings = options.settings();
+  }
+
+  /**
+   * Returns the action named by a command-line argument, which may be abbreviated.
+   *
+   * @param actionString an action, such as "status" or "st"
+   * @return the action, or null if {@code actionString} is not an action
+   */
+  static @Nullable Action parseAction(String actionString) {
+    if ("checkout".startsWith(actionString)) {
+      return Action.CLONE;
+    } else if ("clone".startsWith(actionString)) {
+      return Action.CLONE;
+    } else if ("daemon".startsWith(actionString)) {
+      return Action.DAEMON;
+    } else if ("exec".startsWith(actionString)) {
+      return Action.EXEC;
+    } else if ("fetch".startsWith(actionString)) {
+      return Action.FETCH;
+    } else if ("list".startsWith(actionString)) {
+      return Action.LIST;
+    } else if ("maintain".startsWith(actionString)) {
+      return Action.MAINTAIN;
+    } else if ("pull".startsWith(actionString)) {
+      return Action.PULL;
+    } else if ("prefetch".startsWith(actionString)) {
+      return Action.PREFETCH;
+    } else if ("status".startsWith(actionString)) {
+      return Action.STATUS;
+    } else if ("tune".startsWith(actionString)) {
+      return Action.TUNE;
+    } else if ("update".startsWith(actionString)) {
+      return Action.PULL;
+    } else {
+      return null;
+    }
+  }
+
+  /**
+   * Parses a duration such as "10s", "500ms", "2m", or "1h". A number with no unit is in seconds.
+   *
+   * @param s the text of a duration
+   * @return the duration
+   * @throws IllegalArgumentException if {@code s} is not a duration
+   */
+  static Duration parseDuration(String s) {
+    Matcher m = DURATION_PATTERN.matcher(s.trim());
+    if (!m.matches()) {
+      throw new IllegalArgumentException("not a duration: " + s);
+    }
+    @SuppressWarnings("nullness:assignment") // group 1 is not optional
+    @NonNull String amount = m.group(1);
+    String unit = m.group(2);
+    long millisPerUnit =
+        switch (unit == null ? "s" : unit) {
+          case "ms" -> 1;
+          case "s" -> 1000;
+          case "m" -> 60_000;
+          default -> 3_600_000;
+        };
+    return Duration.ofMillis(Math.round(Double.parseDouble(amount) * millisPerUnit));
+  }
+
+  /**
+   * Returns a MultiVersionControl for a request to the daemon. Its file names are relative to the
+   * client's working directory, not the daemon's.
+   *
+   * @param actionString the action, such as "status"
+   * @param options the client's command-line options, without the action
+   * @param workingDir the client's working directory
+   * @return a MultiVersionControl that performs the action with the client's options
+   */
+  static MultiVersionControl forRequest(
+      String actionString, List<String> options, String workingDir) {
+    List<String> args = new ArrayList<>(options);
+    args.add(actionString);
+    MultiVersionControl result = new MultiVersionControl(args.toArray(new String[0]));
+    result.resolveFiles(workingDir);
+    return result;
+  }
+
+  /**
+   * Makes the file names in the options that {@link #sharedSettings} reports absolute.
+   *
+   * @param workingDir the directory against which to resolve relative file names
+   */
+  void resolveFiles(String workingDir) {
+    checkouts = resolveFile(checkouts, workingDir);
+    cacheDir = resolveFile(cacheDir, workingDir);
+    dir.replaceAll(d -> resolveFile(d, workingDir));
+    ignoreDir.replaceAll(d -> resolveFile(d, workingDir));
+  }
+
+  /**
+   * Returns a file name, with "~" expanded, made absolute.
+   *
+   * @param fileName a file name
+   * @param workingDir the directory against which to resolve a relative file name
+   * @return the absolute file name
+   */
+  private static String resolveFile(String fileName, String workingDir) {
+    File file = new File(expandTilde(fileName));
+    return file.isAbsolute() ? file.getPath() : new File(workingDir, file.getPath()).getPath();
+  }
+
+  /**
+   * Returns the settings that determine which clones are found and where results are cached. A
+   * daemon serves only the requests whose settings are the same as its own, because it keeps the
+   * clones that it found when it started. Call {@link #resolveFiles} first.
+   *
+   * @return the settings that a daemon and its clients must share
+   */
+  String sharedSettings() {
+    return String.join(
+        "\n",
+        "checkouts=" + checkouts,
+        "search=" + search,
+        "search-prefix=" + searchPrefix,
+        "dir=" + dir,
+        "ignore-dir=" + ignoreDir,
+        "cache-dir=" + cacheDir);
+  }
+
+  /**
+   * Returns the Unix domain socket on which {@code mvc daemon} listens.
+   *
+   * @return the socket on which the daemon listens
+   */
+  File socketFile() {
+    return (socket != null) ? new File(expandTilde(socket)) : new File(cacheDir, "daemon.sock");
   }
 
   /** The types of repositories. */
@@ -736,6 +1610,12 @@ public class MultiVersionControl {
      */
     @Nullable String module;
 
+    /**
+     * How much of the repository the clone command fetches, as given in the checkouts file. Null
+     * means a full clone.
+     */
+    @Nullable CloneProfile cloneProfile = null;
+
     /**
      * Create a Checkout.
      *
@@ -765,7 +1645,7 @@ public class MultiVersionControl {
       this.repoType = repoType;
       this.directory = directory;
       try {
-        this.canonicalDirectory = directory.getCanonicalPath();
+        this.canonicalDirectory = CanonicalPaths.of(directory);
       } catch (IOException e) {
         throw new UncheckedIOException(e);
       }
@@ -799,6 +1679,32 @@ public class MultiVersionControl {
       }
     }
 
+    /**
+     * Create a Checkout from the fields of one that was created earlier, without examining the file
+     * system again. Used by {@link CheckoutSet}.
+     *
+     * @param repoType the type of repository
+     * @param directory where the clone is
+     * @param canonicalDirectory the canonical version of {@code directory}
+     * @param repository the upstream repository
+     * @param module the module that is checked out (for CVS and optionally SVN)
+     * @param cloneProfile how much of the repository the clone command fetches
+     */
+    Checkout(
+        RepoType repoType,
+        File directory,
+        String canonicalDirectory,
+        @Nullable String repository,
+        @Nullable String module,
+        @Nullable CloneProfile cloneProfile) {
+      this.repoType = repoType;
+      this.directory = directory;
+      this.canonicalDirectory = canonicalDirectory;
+      this.repository = repository;
+      this.module = module;
+      this.cloneProfile = cloneProfile;
+    }
+
     /**
      * If the directory exists, then the subdirectory must exist too.
      *
@@ -840,16 +1746,40 @@ public class MultiVersionControl {
     }
   }
 
-  /** An exception indicating a version control directory (such as .git) does not exist. */
-  static class DirectoryDoesNotExist extends IOException {
+  /**
+   * An exception indicating that the clones cannot be found, for example because the checkouts file
+   * is malformed.
+   */
+  static class CheckoutsException extends Exception {
 
     /** Unique identifier for serialization. If you add or remove fields, change this number. */
-    static final long serialVersionUID = 20191205;
+    static final long serialVersionUID = 20261019;
+
+    /** The status with which a command-line run of mvc exits because of this problem. */
+    final int exitStatus;
 
     /**
-     * Create a new DirectoryDoesNotExist.
+     * Create a new CheckoutsException.
      *
-     * @param msg a message about the missing directory
+     * @param msg a message about the problem
+     * @param exitStatus the status with which a command-line run of mvc exits
+     */
+    CheckoutsException(String msg, int exitStatus) {
+      super(msg);
+      this.exitStatus = exitStatus;
+    }
+  }
+
+  /** An exception indicating a version control directory (such as .git) does not exist. */
+  static class DirectoryDoesNotExist extends IOException {
+
+    /** Unique identifier for serialization. If you add or remove fields, change this number. */
+    static final long serialVersionUID = 20191205;
+
+    /**
+     * Create a new DirectoryDoesNotExist.
+     *
+     * @param msg a message about the missing directory
      */
     DirectoryDoesNotExist(String msg) {
       super(msg);
@@ -869,137 +1799,168 @@ public class MultiVersionControl {
    * @param searchPrefix if true, search for all clones whose directory is a prefix of one in the
    *     configuration file
    * @throws IOException if there is trouble reading the file (or file system?)
+   * @throws CheckoutsException if the file is malformed
    */
   static void readCheckouts(File file, Set<Checkout> checkouts, boolean searchPrefix)
-      throws IOException {
+      throws IOException, CheckoutsException {
+    long startNanos = System.nanoTime();
     RepoType currentType = RepoType.BZR; // arbitrary choice, to avoid uninitialized variable
     String currentRoot = null;
     boolean currentRootIsRepos = false;
+    CloneProfile currentProfile = null;
 
     // Accumulate into a temporary set, so that if reading the file fails partway through, the
     // caller's set is not left holding a partial (and therefore misleading) configuration.
-    Set<Checkout> fileCheckouts = new LinkedHashSet<>();
+    Set<Checkout> fileCheckouts = new CheckoutSet();
 
     try (EntryReader er = new EntryReader(file)) {
       for (String lineUntrimmed : er) {
-        if (debug) {
-          System.out.println("line: " + lineUntrimmed);
-        }
-        String line = lineUntrimmed.trim();
-        // Skip comments and blank lines
-        if (line.equals("") || line.startsWith("#")) {
-          continue;
-        }
-
-        String[] splitTwo = line.split("[ \t]+", -1);
-        if (debug) {
-          System.out.println("split length: " + splitTwo.length);
-        }
-        if (splitTwo.length == 2) {
-          String word1 = splitTwo[0];
-          String word2 = splitTwo[1];
-          if (word1.equals("BZRROOT:") || word1.equals("BZRREPOS:")) {
-            currentType = RepoType.BZR;
-            currentRoot = word2;
-            currentRootIsRepos = word1.equals("BZRREPOS:");
+        Metrics.CONFIG_LINES.increment();
+        MvcEvents.ConfigLineEvent event = new MvcEvents.ConfigLineEvent();
+        event.begin();
+        try {
+          if (debug) {
+            System.out.println("line: " + lineUntrimmed);
+          }
+          String line = lineUntrimmed.trim();
+          // Skip comments and blank lines
+          if (line.equals("") || line.startsWith("#")) {
             continue;
-          } else if (word1.equals("CVSROOT:")) {
-            currentType = RepoType.CVS;
-            currentRoot = word2;
-            currentRootIsRepos = false;
-            // If the CVSROOT is remote, try to make it local.
-            if (currentRoot.startsWith(":ext:")) {
-              String[] rootWords = currentRoot.split(":", -1);
-              String possibleRoot = rootWords[rootWords.length - 1];
-              if (new File(possibleRoot).isDirectory()) {
-                currentRoot = possibleRoot;
+          }
+
+          String[] splitTwo = line.split("[ \t]+", -1);
+          if (debug) {
+            System.out.println("split length: " + splitTwo.length);
+          }
+          if (splitTwo.length == 2) {
+            String word1 = splitTwo[0];
+            String word2 = splitTwo[1];
+            if (word1.equals("BZRROOT:") || word1.equals("BZRREPOS:")) {
+              currentType = RepoType.BZR;
+              currentRoot = word2;
+              currentRootIsRepos = word1.equals("BZRREPOS:");
+              continue;
+            } else if (word1.equals("CVSROOT:")) {
+              currentType = RepoType.CVS;
+              currentRoot = word2;
+              currentRootIsRepos = false;
+              // If the CVSROOT is remote, try to make it local.
+              if (currentRoot.startsWith(":ext:")) {
+                String[] rootWords = currentRoot.split(":", -1);
+                String possibleRoot = rootWords[rootWords.length - 1];
+                if (new File(possibleRoot).isDirectory()) {
+                  currentRoot = possibleRoot;
+                }
               }
+              continue;
+            } else if (word1.equals("HGROOT:") || word1.equals("HGREPOS:")) {
+              currentType = RepoType.HG;
+              currentRoot = word2;
+              currentRootIsRepos = word1.equals("HGREPOS:");
+              continue;
+            } else if (word1.equals("GITROOT:") || word1.equals("GITREPOS:")) {
+              currentType = RepoType.GIT;
+              currentRoot = word2;
+              currentRootIsRepos = word1.equals("GITREPOS:");
+              continue;
+            } else if (word1.equals("SVNROOT:") || word1.equals("SVNREPOS:")) {
+              currentType = RepoType.SVN;
+              currentRoot = word2;
+              currentRootIsRepos = word1.equals("SVNREPOS:");
+              continue;
+            } else if (word1.equals("CLONEPROFILE:")) {
+              try {
+                currentProfile = CloneProfile.parse(word2);
+              } catch (IllegalArgumentException e) {
+                throw new CheckoutsException(
+                    String.format(
+                        "%s at line %d of file %s",
+                        e.getMessage(), er.getLineNumber(), er.getFileName()),
+                    1);
+              }
+              continue;
             }
-            continue;
-          } else if (word1.equals("HGROOT:") || word1.equals("HGREPOS:")) {
-            currentType = RepoType.HG;
-            currentRoot = word2;
-            currentRootIsRepos = word1.equals("HGREPOS:");
-            continue;
-          } else if (word1.equals("GITROOT:") || word1.equals("GITREPOS:")) {
-            currentType = RepoType.GIT;
-            currentRoot = word2;
-            currentRootIsRepos = word1.equals("GITREPOS:");
-            continue;
-          } else if (word1.equals("SVNROOT:") || word1.equals("SVNREPOS:")) {
-            currentType = RepoType.SVN;
-            currentRoot = word2;
-            currentRootIsRepos = word1.equals("SVNREPOS:");
-            continue;
           }
-        }
 
-        if (currentRoot == null) {
-          System.err.printf(
-              "need root before directory at line %d of file %s%n",
-              er.getLineNumber(), er.getFileName());
-          System.exit(1);
-        }
-
-        String dirname;
-        String root = StringsP.replaceSuffix(currentRoot, "/", "");
-        String module = null;
-
-        int spacePos = line.lastIndexOf(' ');
-        if (spacePos == -1) {
-          dirname = line;
-        } else {
-          dirname = line.substring(0, spacePos);
-          module = line.substring(spacePos + 1);
-        }
+          if (currentRoot == null) {
+            throw new CheckoutsException(
+                String.format(
+                    "need root before directory at line %d of file %s",
+                    er.getLineNumber(), er.getFileName()),
+                1);
+          }
 
-        // The directory may not yet exist if we are doing a checkout.
-        File dir = new File(expandTilde(dirname));
+          String dirname;
+          String root = StringsP.replaceSuffix(currentRoot, "/", "");
+          String module = null;
 
-        if (module == null) {
-          module = dir.getName();
-        }
-        if (currentType != RepoType.CVS) {
-          if (!currentRootIsRepos) {
-            root = root + "/" + module;
+          int spacePos = line.lastIndexOf(' ');
+          if (spacePos == -1) {
+            dirname = line;
+          } else {
+            dirname = line.substring(0, spacePos);
+            module = line.substring(spacePos + 1);
           }
-          module = null;
-        }
 
-        Checkout checkout = new Checkout(currentType, dir, root, module);
-        fileCheckouts.add(checkout);
-
-        // TODO: This can result in near-duplicates in the checkouts set.  Suppose that the
-        // .mvc-checkouts file contains two lines
-        //   /a/b/c
-        //   /a/b/c-fork-d
-        // with different repositories, and there exists a directory
-        //   /a/b/c-fork-d-branch-e
-        // Then the latter is included twice, once each with the repository of `c` and of
-        // `c-fork-d`.
-        if (searchPrefix) {
-          String dirName = dir.getName();
-          FileFilter namePrefixFilter = f -> f.isDirectory() && f.getName().startsWith(dirName);
-          File dirParent = dir.getParentFile();
-          if (dirParent == null || !dirParent.isDirectory()) {
-            continue;
+          // The directory may not yet exist if we are doing a checkout.
+          File dir = new File(expandTilde(dirname));
+
+          if (module == null) {
+            module = dir.getName();
           }
-          File[] siblings = dirParent.listFiles(namePrefixFilter);
-          if (siblings == null) {
-            throw new Error(
-                String.format(
-                    "This cannot happen, because %s (parent of %s) is a directory",
-                    dirParent, dir));
+          if (currentType != RepoType.CVS) {
+            if (!currentRootIsRepos) {
+              root = root + "/" + module;
+            }
+            module = null;
           }
-          for (File sibling : siblings) {
-            try {
-              fileCheckouts.add(new Checkout(currentType, sibling, root, module));
-            } catch (DirectoryDoesNotExist e) {
-              // A directory is an extension of a file in
-              // .mvc-checkouts, but lacks a (e.g.) .git subdir.  Just
-              // skip that directory.
+
+          Checkout checkout = new Checkout(currentType, dir, root, module);
+          checkout.cloneProfile = currentProfile;
+          fileCheckouts.add(checkout);
+
+          // TODO: This can result in near-duplicates in the checkouts set.  Suppose that the
+          // .mvc-checkouts file contains two lines
+          //   /a/b/c
+          //   /a/b/c-fork-d
+          // with different repositories, and there exists a directory
+          //   /a/b/c-fork-d-branch-e
+          // Then the latter is included twice, once each with the repository of `c` and of
+          // `c-fork-d`.
+          if (searchPrefix) {
+            String dirName = dir.getName();
+            FileFilter namePrefixFilter = f -> f.isDirectory() && f.getName().startsWith(dirName);
+            File dirParent = dir.getParentFile();
+            if (dirParent == null || !dirParent.isDirectory()) {
+              continue;
+            }
+            File[] siblings = dirParent.listFiles(namePrefixFilter);
+            if (siblings == null) {
+              throw new Error(
+                  String.format(
+                      "This cannot happen, because %s (parent of %s) is a directory",
+                      dirParent, dir));
+            }
+            for (File sibling : siblings) {
+              try {
+                Checkout siblingCheckout = new Checkout(currentType, sibling, root, module);
+                siblingCheckout.cloneProfile = currentProfile;
+                fileCheckouts.add(siblingCheckout);
+              } catch (DirectoryDoesNotExist e) {
+                // A directory is an extension of a file in
+                // .mvc-checkouts, but lacks a (e.g.) .git subdir.  Just
+                // skip that directory.
+              }
             }
           }
+        } finally {
+          event.end();
+          if (event.shouldCommit()) {
+            event.file = file.toString();
+            event.lineNumber = er.getLineNumber();
+            event.line = lineUntrimmed;
+            event.commit();
+          }
         }
       }
     }
@@ -1007,6 +1968,7 @@ public class MultiVersionControl {
     // merge below has not happened yet in that case, the caller never processes a partially read
     // configuration file.
     checkouts.addAll(fileCheckouts);
+    Metrics.READ_CHECKOUTS.recordSince(startNanos);
 
     if (debug) {
       System.out.printf("Here are the checkouts:%n");
@@ -1054,8 +2016,11 @@ public class MultiVersionControl {
    * @param dir the directory under which to search for checkouts
    * @param checkouts the set to populate; is side-effected by this method
    * @param ignoreDirs directories not to search within
+   * @throws CheckoutsException if a working copy's metadata is inconsistent
    */
-  private static void findCheckouts(File dir, Set<Checkout> checkouts, Set<File> ignoreDirs) {
+  private static void findCheckouts(File dir, Set<Checkout> checkouts, Set<File> ignoreDirs)
+      throws CheckoutsException {
+    Metrics.DIRECTORIES_SEARCHED.increment();
     if (!dir.isDirectory()) {
       // This should never happen, unless the directory is deleted between
       // the call to findCheckouts and the test of isDirectory.
@@ -1086,16 +2051,32 @@ public class MultiVersionControl {
           checkouts.add(new Checkout(RepoType.BZR, parent, null, null));
           return;
         } else if (dirName.equals("CVS")) {
+          MvcEvents.DiscoveryEvent event = new MvcEvents.DiscoveryEvent();
+          event.begin();
+          long startNanos = System.nanoTime();
           addCheckoutCvs(dir, parent, checkouts);
+          endDiscovery(event, startNanos, Metrics.DIR_TO_CHECKOUT_CVS, dir, RepoType.CVS);
           return;
         } else if (dirName.equals(".hg")) {
+          MvcEvents.DiscoveryEvent event = new MvcEvents.DiscoveryEvent();
+          event.begin();
+          long startNanos = System.nanoTime();
           checkouts.add(dirToCheckoutHg(dir, parent));
+          endDiscovery(event, startNanos, Metrics.DIR_TO_CHECKOUT_HG, dir, RepoType.HG);
           return;
         } else if (dirName.equals(".git")) {
+          MvcEvents.DiscoveryEvent event = new MvcEvents.DiscoveryEvent();
+          event.begin();
+          long startNanos = System.nanoTime();
           checkouts.add(dirToCheckoutGit(dir, parent));
+          endDiscovery(event, startNanos, Metrics.DIR_TO_CHECKOUT_GIT, dir, RepoType.GIT);
           return;
         } else if (dirName.equals(".svn")) {
+          MvcEvents.DiscoveryEvent event = new MvcEvents.DiscoveryEvent();
+          event.begin();
+          long startNanos = System.nanoTime();
           Checkout c = dirToCheckoutSvn(parent);
+          endDiscovery(event, startNanos, Metrics.DIR_TO_CHECKOUT_SVN, dir, RepoType.SVN);
           if (c != null) {
             checkouts.add(c);
           }
@@ -1122,6 +2103,30 @@ public class MultiVersionControl {
     }
   }
 
+  /**
+   * Records the end of converting a version control directory, found by searching, to a Checkout.
+   *
+   * @param event the flight recorder event, which began when the conversion did
+   * @param startNanos the value of {@link System#nanoTime} when the conversion began
+   * @param timer the timer for the conversion
+   * @param dir the version control directory
+   * @param repoType the type of the repository
+   */
+  private static void endDiscovery(
+      MvcEvents.DiscoveryEvent event,
+      long startNanos,
+      Metrics.Timer timer,
+      File dir,
+      RepoType repoType) {
+    timer.recordSince(startNanos);
+    event.end();
+    if (event.shouldCommit()) {
+      event.directory = dir.toString();
+      event.repoType = repoType.toString();
+      event.commit();
+    }
+  }
+
   /** Accept only directories that are not symbolic links. */
   static class IsDirectoryFilter implements FileFilter {
     /** Creates a new IsDirectoryFilter. */
@@ -1150,9 +2155,10 @@ public class MultiVersionControl {
    * @param parentDir its parent
    * @param checkouts the set to populate; is side-effected by this method
    * @throws DirectoryDoesNotExist if the directory does not exist
+   * @throws CheckoutsException if the directory is a parent of its path in the repository
    */
   static void addCheckoutCvs(File cvsDir, File parentDir, Set<Checkout> checkouts)
-      throws DirectoryDoesNotExist {
+      throws DirectoryDoesNotExist, CheckoutsException {
     assert cvsDir.getName().equals("CVS") : cvsDir.getName();
     // relative path within repository
     File repositoryFile = new File(cvsDir, "Repository");
@@ -1175,8 +2181,8 @@ public class MultiVersionControl {
         removeCommonSuffixDirs(parentDir, new File(pathInRepo), repoFileRoot, "CVS");
     File dirRelative = stripped.file1;
     if (dirRelative == null) {
-      System.out.printf("dir (%s) is parent of path in repo (%s)", parentDir, pathInRepo);
-      System.exit(1);
+      throw new CheckoutsException(
+          String.format("dir (%s) is parent of path in repo (%s)", parentDir, pathInRepo), 1);
     }
     String pathInRepoAtCheckout;
     if (stripped.file2 != null) {
@@ -1243,8 +2249,11 @@ public class MultiVersionControl {
    * @param parentDir a directory containing a {@code .svn} subdirectory
    * @return a SVN checkout for the directory, or null
    * @throws DirectoryDoesNotExist if the directory does not exist
+   * @throws CheckoutsException if the working copy is too old, or its directory does not
+   *     correspond to its repository URL
    */
-  static @Nullable Checkout dirToCheckoutSvn(File parentDir) throws DirectoryDoesNotExist {
+  static @Nullable Checkout dirToCheckoutSvn(File parentDir)
+      throws DirectoryDoesNotExist, CheckoutsException {
 
     // For SVN, do
     //   svn info
@@ -1257,6 +2266,7 @@ public class MultiVersionControl {
     // Pro: no need to re-implement or to call external process (which
     //   might be slow for large checkouts).
 
+    setupSvnkit();
     @SuppressWarnings("nullness") // unannotated library: SVNKit
     SVNWCClient wcClient = new SVNWCClient((@Nullable ISVNAuthenticationManager) null, null);
     SVNInfo info;
@@ -1279,11 +2289,13 @@ public class MultiVersionControl {
     // /afs/csail.mit.edu/u/m/mernst/.snapshot/class/6170/2006-spring/3dphysics)
     SVNURL repoRoot = info.getRepositoryRootURL();
     if (repoRoot == null) {
-      System.err.println("Problem:  old svn working copy in " + parentDir.toString());
-      System.err.println(
-          "Check it out again to get a 'Repository Root' entry in the svn info output.");
-      System.err.println("  repoUrl = " + url);
-      System.exit(2);
+      throw new CheckoutsException(
+          String.format(
+              "Problem:  old svn working copy in %s%n"
+                  + "Check it out again to get a 'Repository Root' entry in the svn info output.%n"
+                  + "  repoUrl = %s",
+              parentDir, url),
+          2);
     }
     if (debug) {
       System.out.println();
@@ -1298,12 +2310,13 @@ public class MultiVersionControl {
             parentDir, new File(url.getPath()), new File(repoRoot.getPath()), ".svn");
     File dirRelative = stripped.file1;
     if (dirRelative == null) {
-      System.out.printf("dir (%s) is parent of repository URL (%s)", parentDir, url.getPath());
-      System.exit(1);
+      throw new CheckoutsException(
+          String.format("dir (%s) is parent of repository URL (%s)", parentDir, url.getPath()),
+          1);
     }
     if (stripped.file2 == null) {
-      System.out.printf("dir (%s) is child of repository URL (%s)", parentDir, url.getPath());
-      System.exit(1);
+      throw new CheckoutsException(
+          String.format("dir (%s) is child of repository URL (%s)", parentDir, url.getPath()), 1);
     }
     String pathInRepoAtCheckout = stripped.file2.toString();
     try {
@@ -1410,6 +2423,12 @@ public class MultiVersionControl {
    * suppressing noisy output or expanding relative file names.
    */
   static class Replacer {
+    /**
+     * Compiled regular expressions, by their source. Most replacers are created anew for each
+     * clone, with the same regular expressions, and the daemon creates them for each request.
+     */
+    private static final Map<String, Pattern> PATTERNS = new ConcurrentHashMap<>();
+
     /** The regular expression matching text that should be replaced. */
     Pattern regexp;
 
@@ -1423,7 +2442,7 @@ public class MultiVersionControl {
      * @param replacement the replacement text
      */
     public Replacer(@Regex String regexp, String replacement) {
-      this.regexp = Pattern.compile(regexp);
+      this.regexp = PATTERNS.computeIfAbsent(regexp, r -> Pattern.compile(regexp));
       this.replacement = replacement;
     }
 
@@ -1435,8 +2454,17 @@ public class MultiVersionControl {
      * @return the string, after replacements have been performed
      */
     public String replaceAll(String s) {
+      MvcEvents.ReplacerEvent event = new MvcEvents.ReplacerEvent();
+      event.begin();
       Matcher matcher = regexp.matcher(s);
-      return matcher.replaceAll(replacement);
+      String result = matcher.replaceAll(replacement);
+      event.end();
+      if (event.shouldCommit()) {
+        event.pattern = regexp.pattern();
+        event.inputSize = s.length();
+        event.commit();
+      }
+      return result;
     }
   }
 
@@ -1446,316 +2474,1495 @@ public class MultiVersionControl {
    * @param checkouts the clones and checkouts to process
    */
   public void process(Set<Checkout> checkouts) {
-    // Always run at least one command, but sometimes up to three.
-    ProcessBuilder pb = new ProcessBuilder("");
-    pb.redirectErrorStream(true);
-    ProcessBuilder pb2 = new ProcessBuilder(new ArrayList<>());
-    pb2.redirectErrorStream(true);
-    ProcessBuilder pb3 = new ProcessBuilder(new ArrayList<>());
-    pb3.redirectErrorStream(true);
-    // pb4 is only for checking whether there are no commits in this branch.
-    ProcessBuilder pb4 = new ProcessBuilder(new ArrayList<>());
-    pb4.redirectErrorStream(true);
-    // pb5 is only for printing the origin URL.
-    ProcessBuilder pb5 =
-        new ProcessBuilder(List.of(gitExecutable, "config", "--get", "remote.origin.url"));
-    pb5.redirectErrorStream(true);
-
-    // I really want to be able to redirect output to a Reader, but that
-    // isn't possible.  I have to send it to a file.
-    // I can't just use the InputStream directly, because if the process is
-    // killed because of a timeout, the stream is inaccessible.
-
-    CLONELOOP:
-    for (Checkout c : checkouts) {
-      if (debug) {
-        System.out.println(c);
-        System.out.flush();
+    Set<Checkout> allCheckouts = checkouts;
+    if (!repoTypes.isEmpty()) {
+      CheckoutSet selected = new CheckoutSet();
+      for (Checkout c : checkouts) {
+        if (repoTypes.contains(c.repoType)) {
+          selected.add(c);
+        }
       }
-      File dir = c.directory;
-
-      List<Replacer> replacers = new ArrayList<>();
-      List<Replacer> replacers3 = new ArrayList<>();
+      checkouts = selected;
+    }
+    // Clones are identified by their index in this set.  A Checkout is created for a clone only
+    // while it is being processed, so that the clones are never all in memory as objects.
+    CheckoutSet clones = CheckoutSet.copyOf(checkouts);
+    boolean statusRun = action == Action.STATUS && !diagnosticOutput();
+    StatusCache statusCache =
+        (statusRun && !noCache && maxAge > 0)
+            ? StatusCache.read(statusCacheFile(), statusCacheSettings())
+            : null;
+    SnapshotStore snapshots = statusRun ? SnapshotStore.open(snapshotFile()) : null;
+    if (deadlineDuration != null) {
+      deadlineNanos = System.nanoTime() + deadlineDuration.toNanos();
+    }
+    if (action == Action.PULL && precheck) {
+      precheckPulls(clones);
+    }
+    if (action == Action.PULL && sharedFetch) {
+      prepareSharedFetch(clones);
+    }
+    if (action == Action.CLONE && mirror) {
+      prepareMirrors(clones);
+    }
 
-      switch (c.repoType) {
-        case BZR -> {}
-        case CVS -> {
-          replacers.add(new Replacer("(^|\\n)([?]) ", "$1$2 " + dir + "/"));
-        }
-        case GIT -> {
-          replacers.add(new Replacer("(^|\\n)fatal:", "$1fatal in " + dir + ":"));
-          replacers.add(new Replacer("(^|\\n)warning:", "$1warning in " + dir + ":"));
-          replacers.add(
-              new Replacer(
-                  "(^|\\n)(There is no tracking information for the current branch\\.)",
-                  "$1" + dir + ": $2"));
-          replacers.add(
-              new Replacer("(^|\\n)(Your configuration specifies to merge)", dir + ": $1$2"));
-        }
-        case HG -> {
-          // "real URL" is for bitbucket.org.  (Should be early in list.)
-          replacers.add(new Replacer("(^|\\n)real URL is .*\\n", "$1"));
-          replacers.add(new Replacer("(^|\\n)(abort: .*)", "$1$2: " + dir));
-          replacers.add(new Replacer("(^|\\n)([MARC!?I]) ", "$1$2 " + dir + "/"));
-          replacers.add(
-              new Replacer(
-                  "(^|\\n)(\\*\\*\\* failed to import extension .*: No module named demandload\\n)",
-                  "$1"));
-          // Hack, should be replaced when googlecode certificate problems are fixed.
-          replacers.add(
-              new Replacer(
-                  "(^|\\n)warning: .* certificate not verified"
-                      + " \\(check web.cacerts config setting\\)\\n",
-                  "$1"));
-          // May appear twice in output with overlapping matches, so repeat the replacer
-          replacers.add(
-              new Replacer(
-                  "(^|\\n)warning: .* certificate not verified"
-                      + " \\(check web.cacerts config setting\\)\\n",
-                  "$1"));
-          // Does this mask too many errors?
-          replacers.add(
-              new Replacer(
-                  "(^|\\n)((comparing with default-push\\n)?"
-                      + "abort: repository default(-push)? not found!: .*\\n)",
-                  "$1"));
-        }
-        case SVN -> {
-          replacers.add(
-              new Replacer("(svn: Network connection closed unexpectedly)", "$1 for " + dir));
-          replacers.add(new Replacer("(svn: Repository) (UUID)", "$1 " + dir + " $2"));
-          replacers.add(
-              new Replacer(
-                  "(svn: E155037: Previous operation has not finished; run 'cleanup' if it was"
-                      + " interrupted)",
-                  "$1; for " + dir));
-        }
-        default -> {
-          assert false;
+    NdjsonWriter ndjson = format.equals("ndjson") ? new NdjsonWriter(stdout) : null;
+    // Durations are recorded on every run, so that there is a history for --progress and
+    // --deadline. The duration of exec depends on its command, so it is not recorded.
+    DurationHistory history =
+        (action == Action.LIST || action == Action.EXEC || dryRun)
+            ? null
+            : DurationHistory.read(durationHistoryFile());
+
+    // The indices of the clones, in the order in which they are processed.
+    int[] order = clones.indices();
+
+    // A clone that fails may leave a partial directory, which is removed before a retry.  Only
+    // directories that this run creates are removed.
+    BitSet newClones = new BitSet();
+    if (action == Action.CLONE && retriesTransientFailures()) {
+      for (int i : order) {
+        if (!clones.get(i).directory.exists()) {
+          newClones.set(i);
         }
       }
-      // The \r* is necessary here; (sometimes?) there are two carriage returns.
-      replacers.add(
-          new Replacer(
-              "(remote: )?Warning: untrusted X11 forwarding setup failed: xauth key data not"
-                  + " generated\r*\n"
-                  + "(remote: )?Warning: No xauth data; using fake authentication data for X11"
-                  + " forwarding\\.\r*\n",
-              ""));
-      replacers.add(new Replacer("(working copy ')", "$1" + dir));
-
-      pb.command("echo", "command", "not", "set");
-      pb.directory(dir);
-      pb2.command(new ArrayList<>());
-      pb2.directory(dir);
-      pb3.command(new ArrayList<>());
-      pb3.directory(dir);
-      pb4.command(new ArrayList<>());
-      pb4.directory(dir);
-      boolean showNormalOutput = false;
-      // Set pb.command() to be the command to be executed.
-      switch (action) {
-        case LIST -> {
-          System.out.println(c);
-          continue CLONELOOP;
+    }
+
+    if (statusCache == null
+        && snapshots == null
+        && ndjson == null
+        && !progress
+        && deadlineDuration == null
+        && jobs <= 1) {
+      // Print the output as it is produced.  Clones that failed transiently are retried after all
+      // the others are done.
+      int[] roundIndices = order;
+      for (int round = 0; roundIndices.length > 0; round++) {
+        int[] failed = new int[roundIndices.length];
+        int failedCount = 0;
+        for (int i : roundIndices) {
+          Checkout c = clones.get(i);
+          List<CommandRecord> records = new ArrayList<>();
+          long startNanos = System.nanoTime();
+          withResourceLimit(c, () -> processCheckoutShared(c, stdout, records));
+          if (history != null) {
+            history.record(actionName(), c, System.nanoTime() - startNanos);
+          }
+          if (round < retries
+              && retriesTransientFailures()
+              && records.stream().anyMatch(CommandRecord::transientFailure)) {
+            failed[failedCount++] = i;
+          }
         }
-        case CLONE -> {
-          pb.directory(dir.getParentFile());
-          String dirbase = dir.getName();
-          if (c.repository == null) {
-            System.out.printf("Skipping checkout with unknown repository:%n  %s%n", dir);
-            continue CLONELOOP;
+        if (failedCount > 0) {
+          sleepBeforeRetry(round);
+          for (int j = 0; j < failedCount; j++) {
+            Checkout c = clones.get(failed[j]);
+            prepareRetry(c, newClones.get(failed[j]));
+            stdout.printf("Retrying after a network error: %s%n", c.directory);
           }
-          switch (c.repoType) {
-            case BZR -> {
-              System.out.println("bzr handling not yet implemented: skipping " + c.directory);
+          stdout.flush();
+        }
+        roundIndices = Arrays.copyOf(failed, failedCount);
+      }
+      writeDurationHistory(history);
+      return;
+    }
+
+    // From here on, each clone is identified by its position in order, and the state of the clones
+    // is kept in arrays indexed by position.
+    int count = order.length;
+    @Nullable String[] cachedOutputs = new String[count];
+    if (statusCache != null) {
+      for (int p = 0; p < count; p++) {
+        cachedOutputs[p] = statusCache.lookup(clones.get(order[p]), Duration.ofSeconds(maxAge));
+      }
+    }
+    long[] estimates = new long[0];
+    if (progress || (deadlineDuration != null && history != null)) {
+      DurationHistory known =
+          (history != null) ? history : DurationHistory.read(durationHistoryFile());
+      estimates = new long[count];
+      for (int p = 0; p < count; p++) {
+        estimates[p] = known.estimateNanos(actionName(), clones.get(order[p]));
+      }
+      if (deadlineDuration != null && history != null) {
+        sortByExpectedDuration(order, estimates);
+      }
+    }
+    AtomicReferenceArray<@Nullable List<CommandRecord>> commandRecords =
+        new AtomicReferenceArray<>(count);
+    // The clones that were not processed, or not completely, because the deadline passed.
+    Set<Integer> unchecked = ConcurrentHashMap.newKeySet();
+    Progress progressLine =
+        progress ? new Progress(estimates, jobs, OutputSink.progressStream()) : null;
+    if (progressLine != null) {
+      progressLine.start();
+    }
+    // The number of times that each clone has been retried.
+    int[] retried = new int[count];
+    // The clones that failed transiently in the current round, to be retried in the next.
+    List<Integer> toRetry = new ArrayList<>();
+    ObjIntConsumer<PrintStream> task =
+        (out, p) -> {
+          Checkout c = clones.get(order[p]);
+          List<CommandRecord> records = new ArrayList<>();
+          if (System.nanoTime() >= deadlineNanos && cachedOutputs[p] == null) {
+            unchecked.add(p);
+          } else if (cachedOutputs[p] == null) {
+            if (progressLine != null) {
+              progressLine.started(p);
             }
-            case CVS -> {
-              assert c.module != null : "@AssumeAssertion(nullness): dependent type CVS";
-              pb.command(
-                  cvsExecutable,
-                  "-d",
-                  c.repository,
-                  "checkout",
-                  "-P", // prune empty directories
-                  "-ko", // no keyword substitution
-                  c.module);
-              addArgs(pb, cvsArg);
+            long startNanos = System.nanoTime();
+            withResourceLimit(c, () -> processCheckoutShared(c, out, records));
+            if (System.nanoTime() >= deadlineNanos
+                && records.stream().anyMatch(CommandRecord::timedOut)) {
+              // A command was stopped at the deadline, so the output is incomplete.
+              unchecked.add(p);
+            } else if (history != null) {
+              history.record(actionName(), c, System.nanoTime() - startNanos);
             }
-            case GIT -> {
-              // "--" is to prevent the directory name from being interpreted as a command-line
-              // option, if it starts with a hyphen.
-              // "--filter=blob:none" makes cloning fast and reduces disk space.  It makes a
-              // subsequent `git blame` command slower, since it has retrieve information from the
-              // remote repository.  It makes pulling from the cloned repository impossible.
-              pb.command(gitExecutable, "clone", /* "--recursive", */ "--", c.repository, dirbase);
-              addArgs(pb, gitArg);
+            commandRecords.set(p, records);
+          }
+          if (progressLine != null) {
+            progressLine.finished(p, records);
+          }
+        };
+    ObjIntConsumer<String> consumer =
+        (processOutput, p) -> {
+          List<CommandRecord> records = commandRecords.getAndSet(p, null);
+          if (!unchecked.isEmpty() && unchecked.contains(p)) {
+            return;
+          }
+          int retries = retried[p];
+          if (retries < this.retries
+              && retriesTransientFailures()
+              && records != null
+              && records.stream().anyMatch(CommandRecord::transientFailure)) {
+            // Hold back the output; it is printed after the last retry.
+            toRetry.add(p);
+            return;
+          }
+          Checkout c = clones.get(order[p]);
+          String cached = cachedOutputs[p];
+          String output;
+          if (cached != null) {
+            if (debug) {
+              System.err.println("Using cached status for " + c.directory);
             }
-            case HG -> {
-              pb.command(hgExecutable, "clone", c.repository, dirbase);
-              addArgs(pb, hgArg);
-              if (insecure) {
-                addArg(pb, "--insecure");
-              }
+            output = cached;
+          } else {
+            output = processOutput;
+            if (statusCache != null) {
+              // The fingerprint is computed after running the status commands, because they may
+              // refresh files such as .git/index.
+              statusCache.put(c, output);
             }
-            case SVN -> {
-              if (c.module != null) {
-                pb.command(svnExecutable, "checkout", c.repository, c.module);
-              } else {
-                pb.command(svnExecutable, "checkout", c.repository);
+          }
+          if (snapshots != null && c.directory.isDirectory()) {
+            boolean changed = snapshots.update(c, output);
+            if (changesOnly) {
+              if (!changed) {
+                return;
+              }
+              if (output.isEmpty()) {
+                output = "clean: " + c.directory + "\n";
               }
-              addArgs(pb, svnArg);
-            }
-            default -> {
-              assert false;
             }
           }
+          String result = output;
+          Runnable print =
+              (ndjson != null)
+                  ? () ->
+                      ndjson.write(
+                          c,
+                          actionName(),
+                          result,
+                          (records != null) ? records : List.of(),
+                          cached != null,
+                          retries)
+                  : () -> {
+                    if (retries > 0) {
+                      stdout.printf(
+                          "Retried %d time%s: %s%n",
+                          retries, (retries == 1 ? "" : "s"), c.directory);
+                    }
+                    stdout.print(result);
+                    stdout.flush();
+                  };
+          if (progressLine != null) {
+            progressLine.printAbove(print);
+          } else {
+            print.run();
+          }
+        };
+    // NDJSON objects are self-describing, so print each as soon as it is ready.
+    boolean inOrder = ndjson == null;
+    runIndexed(count, inOrder, task, consumer);
+    // Retry only the clones that failed transiently, after all the others are done.
+    for (int round = 0; !toRetry.isEmpty(); round++) {
+      int[] retryPositions = toRetry.stream().mapToInt(Integer::intValue).toArray();
+      toRetry.clear();
+      for (int p : retryPositions) {
+        retried[p]++;
+        if (progressLine != null) {
+          progressLine.retrying(p);
         }
-        case STATUS -> {
-          // I need a replacer for other version control systems, to add
-          // directory names.
-          showNormalOutput = true;
-          switch (c.repoType) {
-            case BZR -> {
-              System.out.println("bzr handling not yet implemented: skipping " + c.directory);
-            }
-            case CVS -> {
-              assert c.repository != null;
-              pb.command(
-                  cvsExecutable,
-                  "-q",
-                  // Including "-d REPOS" seems to give errors when a
-                  // subdirectory is in a different CVS repository.
-                  // "-d", c.repository,
-                  "diff",
-                  "-b", // compress whitespace
-                  "--brief", // report only whether files differ, not details
-                  "-N"); // report new files
-              addArgs(pb, cvsArg);
-              //         # For the last perl command, this also works:
-              //         #   perl -p -e 'chomp(\$cwd = `pwd`); s/^Index: /\$cwd\\//'";
-              //         # but the one we use is briefer and uses the abbreviated directory name.
-              //         $filter = "grep -v \"unrecognized keyword 'UseNewInfoFmtStrings'\" | grep
-              // \"^Index:\" | perl -p -e 's|^Index: |$dir\\/|'";
-              String removeRegexp =
-                  ("\n=+"
-                      + "\nRCS file: .*" // no trailing ,v for newly-created files
-                      + "(\nretrieving revision .*)?" // no output for newly-created files
-                      + "\ndiff .*"
-                      + "(\nFiles .* and .* differ)?" // no output if only whitespace differences
-                  );
-              replacers.add(new Replacer(removeRegexp, ""));
-              replacers.add(new Replacer("(^|\\n)Index: ", "$1" + dir + "/"));
-              replacers.add(
-                  new Replacer("(^|\\n)(cvs \\[diff aborted)(\\]:)", "$1$2 in " + dir + "$3"));
-              replacers.add(new Replacer("(^|\\n)(Permission denied)", "$1$2 in " + dir));
-              replacers.add(
-                  new Replacer(
-                      "(^|\\n)(cvs diff: )(cannot find revision control)",
-                      "$1$2 in " + dir + ": $3"));
-              replacers.add(new Replacer("(^|\\n)(cvs diff: cannot find )", "$1$2" + dir));
-              replacers.add(new Replacer("(^|\\n)(cvs diff: in directory )", "$1$2" + dir + "/"));
-              replacers.add(new Replacer("(^|\\n)(cvs diff: ignoring )", "$1$2" + dir + "/"));
-            }
-            case GIT -> {
-              pb.command(gitExecutable, "status");
-              addArgs(pb, gitArg);
-              // Why was I using this option??
-              // addArg(pb, "--untracked-files=no");
-              addArg(pb, "--porcelain"); // experimenting with porcelain output
-              replacers.add(
-                  new Replacer(
-                      "(^|\\n)On branch master\\n"
-                          + "Your branch is up-to-date with 'origin/master'.\\n"
-                          + "\\n?",
-                      "$1"));
-              replacers.add(
-                  new Replacer("(^|\\n)nothing to commit,? working directory clean\\n", "$1"));
-              replacers.add(
-                  new Replacer(
-                      "(^|\\n"
-                          + ")no changes added to commit \\(use \"git add\" and/or \"git commit"
-                          + " -a\"\\)\\n",
-                      "$1"));
-              replacers.add(
-                  new Replacer(
-                      "(^|\\n)nothing added to commit but untracked files present"
-                          + " \\(use \"git add\" to track\\)\\n",
-                      "$1"));
-              replacers.add(
-                  new Replacer(
-                      "(^|\\n)nothing to commit \\(use -u to show untracked files\\)\n", "$1"));
+      }
+      sleepBeforeRetry(round);
+      for (int p : retryPositions) {
+        prepareRetry(clones.get(order[p]), newClones.get(order[p]));
+      }
+      runIndexed(
+          retryPositions.length,
+          inOrder,
+          (out, k) -> task.accept(out, retryPositions[k]),
+          (output, k) -> consumer.accept(output, retryPositions[k]));
+    }
+    if (progressLine != null) {
+      progressLine.stop();
+    }
+    if (!unchecked.isEmpty()) {
+      PrintStream messages = messages();
+      messages.printf(
+          "Deadline of %s reached; %d clones were not processed:%n", deadline, unchecked.size());
+      for (int p = 0; p < count; p++) {
+        if (unchecked.contains(p)) {
+          messages.println("  " + clones.get(order[p]).directory);
+        }
+      }
+      messages.flush();
+    }
+    if (ndjson != null) {
+      ndjson.flush();
+    }
+    writeDurationHistory(history);
 
-              replacers.add(new Replacer("(^|\\n)#\\n", "$1"));
-              replacers.add(new Replacer("(^|\\n)# On branch master\\n", "$1"));
-              replacers.add(
-                  new Replacer("(^|\\n)nothing to commit \\(working directory clean\\)\\n", "$1"));
-              replacers.add(new Replacer("(^|\\n)# Changed but not updated:\\n", "$1"));
-              replacers.add(
-                  new Replacer(
-                      "(^|\\n)#   \\(use \"git add <file>...\""
-                          + " to update what will be committed\\)\\n",
-                      "$1"));
-              replacers.add(
-                  new Replacer(
-                      "(^|\\n)#   \\(use \"git checkout -- <file>...\""
-                          + " to discard changes in working directory\\)\\n",
-                      "$1"));
-              replacers.add(new Replacer("(^|\\n)# Untracked files:\\n", "$1"));
-              replacers.add(
-                  new Replacer(
-                      "(^|\\n)#   \\(use \"git add <file>...\""
-                          + " to include in what will be committed\\)\\n",
-                      "$1"));
+    if (statusCache != null) {
+      try {
+        statusCache.write();
+      } catch (IOException e) {
+        System.err.println("Problem writing status cache " + statusCacheFile() + ": " + e);
+      }
+    }
+    if (snapshots != null) {
+      try {
+        snapshots.write(allCheckouts);
+      } catch (IOException e) {
+        System.err.println("Problem writing snapshot file " + snapshotFile() + ": " + e);
+      }
+    }
+  }
 
-              replacers.add(new Replacer("(^|\\n)(#\tmodified:   )", "$1" + dir + "/"));
-              // This must come after the above, since it matches a prefix of the above
-              replacers.add(new Replacer("(^|\\n)(#\t)", "$1untracked: " + dir + "/"));
-              replacers.add(
-                  new Replacer(
-                      "(^|\\n)# Your branch is ahead of .*\\n",
-                      "$1unpushed changesets: " + dir + "\n"));
-              replacers.add(new Replacer("(^|\\n)([?][?]) ", "$1$2 " + dir + "/"));
-              replacers.add(
-                  new Replacer(
-                      "(^|\\n)([ACDMRU][ ACDMRTU]|[ ACDMRU][ACDMRTU]) ", "$1$2 " + dir + "/"));
+  /**
+   * Returns true if clones that fail transiently, such as because of a network error, are retried.
+   *
+   * @return true if transient failures are retried
+   */
+  private boolean retriesTransientFailures() {
+    return retries > 0 && contactsUpstream();
+  }
 
-              // Useful info, but don't bother to report it, for consistency with other VCSes
-              replacers.add(
-                  new Replacer(
-                      "(^|\\n)# Your branch is behind .*\\n",
-                      "$1unpushed changesets: " + dir + "\n"));
+  /**
+   * Prepares to retry a clone that failed transiently. A failed clone command may leave a partial
+   * directory, which the retry would skip as an existing clone, so the directory is removed if this
+   * run created it.
+   *
+   * @param c a clone that failed transiently
+   * @param isNew true if the clone's directory did not exist when this run started
+   */
+  private void prepareRetry(Checkout c, boolean isNew) {
+    if (action != Action.CLONE || !isNew || !c.directory.exists()) {
+      return;
+    }
+    try {
+      Files.walkFileTree(
+          c.directory.toPath(),
+          new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
+                throws IOException {
+              Files.delete(file);
+              return FileVisitResult.CONTINUE;
+            }
 
-              // Could remove all other output, but this could suppress messages
-              // replacers.add(new Replacer("(^|\\n)#.*\\n", "$1"));
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, @Nullable IOException e)
+                throws IOException {
+              if (e != null) {
+                throw e;
+              }
+              Files.delete(dir);
+              return FileVisitResult.CONTINUE;
+            }
+          });
+    } catch (IOException e) {
+      System.err.println("Problem removing partial clone " + c.directory + ": " + e.getMessage());
+    }
+  }
 
-              // Necessary because "git status --porcelain" does not report:
-              //   # Your branch is ahead of 'origin/master' by 1 commit.
-              // If you have pushed but not pulled, then this will report
-              pb2.command(gitExecutable, "log", "--branches", "--not", "--remotes");
-              addArgs(pb2, gitArg);
-              replacers.add(
-                  new Replacer(
-                      "^commit .*(.*\\n)+", "unpushed commits: " + pb2.directory() + "\n"));
+  /**
+   * Returns true if the action contacts the upstream repositories.
+   *
+   * @return true if the action contacts the upstream repositories
+   */
+  private boolean contactsUpstream() {
+    return switch (action) {
+      case CLONE, PULL, PREFETCH, FETCH -> true;
+      default -> false;
+    };
+  }
 
-              // TODO: use pb3 to look for stashes, using `git stash list`.
+  /**
+   * Waits before a round of retries. The wait doubles with each round, up to {@link
+   * #MAX_RETRY_DELAY_MILLIS}, and is randomized so that many clones of one server do not retry in
+   * lockstep. The wait never extends past the deadline.
+   *
+   * @param round the number of earlier rounds of retries
+   */
+  private void sleepBeforeRetry(int round) {
+    long maxMillis = Math.min(MAX_RETRY_DELAY_MILLIS, (retryDelay * 1000L) << Math.min(round, 20));
+    // "Equal jitter": at least half the delay, plus a random part of the rest.
+    long millis = maxMillis / 2 + ThreadLocalRandom.current().nextLong(maxMillis / 2 + 1);
+    if (deadlineNanos != Long.MAX_VALUE) {
+      millis = Math.min(millis, TimeUnit.NANOSECONDS.toMillis(deadlineNanos - System.nanoTime()));
+    }
+    if (millis <= 0) {
+      return;
+    }
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException e) {
+      throw new Error(e);
+    }
+  }
 
-              // TODO: use `if git merge-base --is-ancestor origin/master HEAD ; then ...` to
-              // determine whether this branch has no changes and thus can be deleted.
-              pb4.command(gitExecutable, "merge-base", "--is-ancestor", "origin/master", "HEAD");
-            }
-            case HG -> {
-              pb.command(hgExecutable, "status");
-              addArgs(pb, hgArg);
-              if (debug) {
-                System.out.printf(
-                    "invalidCertificate(%s) => %s%n", c.directory, invalidCertificate(c.directory));
-              }
-              if (invalidCertificate(c.directory)) {
-                pb2.command(hgExecutable, "outgoing", "-l", "1", "--config", "web.cacerts=");
-              } else {
-                pb2.command(hgExecutable, "outgoing", "-l", "1");
-              }
+  /**
+   * Sorts clones so that those that are expected to take the least time come first. A clone with no
+   * recorded duration is expected to take the mean time of those that have one.
+   *
+   * @param order the indices of the clones, which are permuted
+   * @param estimates the expected duration of each clone in {@code order}, in nanoseconds, or -1 if
+   *     it is not known; permuted along with {@code order}
+   */
+  private static void sortByExpectedDuration(int[] order, long[] estimates) {
+    long total = 0;
+    int known = 0;
+    for (long estimate : estimates) {
+      if (estimate >= 0) {
+        total += estimate;
+        known++;
+      }
+    }
+    long mean = (known == 0) ? 0 : total / known;
+    Integer[] positions = new Integer[order.length];
+    for (int p = 0; p < positions.length; p++) {
+      positions[p] = p;
+    }
+    // The sort is stable, so clones with equal estimates stay in their original order.
+    Arrays.sort(
+        positions,
+        Comparator.comparingLong(p -> (estimates[p] >= 0) ? estimates[p] : mean));
+    int[] unsortedOrder = order.clone();
+    long[] unsortedEstimates = estimates.clone();
+    for (int p = 0; p < positions.length; p++) {
+      order[p] = unsortedOrder[positions[p]];
+      estimates[p] = unsortedEstimates[positions[p]];
+    }
+  }
+
+  /**
+   * Runs a task for a clone, waiting first if {@link #jobsPerHost} other tasks that contact the
+   * same host are running, or for the maintain command, if {@link #jobsPerDisk} other tasks on the
+   * same file system are running.
+   *
+   * @param c the clone
+   * @param task the task to run
+   */
+  private void withResourceLimit(Checkout c, Runnable task) {
+    Semaphore permits = permitsFor(c);
+    if (permits == null) {
+      task.run();
+      return;
+    }
+    permits.acquireUninterruptibly();
+    try {
+      task.run();
+    } finally {
+      permits.release();
+    }
+  }
+
+  /**
+   * Returns the permits that limit how many clones that share a resource with {@code c} are
+   * processed at once, or null if there is no limit.
+   *
+   * @param c the clone
+   * @return the permits for the resource that the clone uses, or null
+   */
+  private @Nullable Semaphore permitsFor(Checkout c) {
+    if (contactsUpstream()) {
+      if (jobsPerHost <= 0 || jobs <= jobsPerHost || c.repository == null) {
+        return null;
+      }
+      String host = RepositoryUrls.host(RepositoryUrls.normalize(c.repository));
+      return hostPermits.computeIfAbsent(host, h -> new Semaphore(jobsPerHost));
+    } else if (action == Action.MAINTAIN) {
+      if (jobsPerDisk <= 0 || jobs <= jobsPerDisk) {
+        return null;
+      }
+      FileStore store;
+      try {
+        store = Files.getFileStore(c.directory.toPath());
+      } catch (IOException e) {
+        return null;
+      }
+      return diskPermits.computeIfAbsent(store, s -> new Semaphore(jobsPerDisk));
+    } else {
+      return null;
+    }
+  }
+
+  /**
+   * The result of processing one clone, shared by the daemon's concurrent requests.
+   *
+   * @param output the output for the clone
+   * @param commands the commands that were run for the clone
+   */
+  static record SharedResult(String output, List<CommandRecord> commands) {}
+
+  /**
+   * Like {@link #processCheckout}, but if {@link #inFlight} is non-null and another request is
+   * already performing the same action on the same clone, with the same options and deadline,
+   * waits for it and uses its result rather than running the commands again.
+   *
+   * @param c the clone to process
+   * @param out where to print the output
+   * @param commands the commands that were run are added to this list
+   */
+  private void processCheckoutShared(Checkout c, PrintStream out, List<CommandRecord> commands) {
+    Map<String, CompletableFuture<SharedResult>> inFlight = this.inFlight;
+    if (inFlight == null) {
+      processCheckout(c, out, commands);
+      return;
+    }
+    // Options such as --dry-run, --check-remote, and --git-arg change the commands or their
+    // output, so requests with different options do not share results.
+    String key =
+        actionName()
+            + " "
+            + c.repoType
+            + " "
+            + c.canonicalDirectory
+            + (c.module == null ? "" : " " + c.module)
+            + "\n"
+            + optionSettings
+            + (deadlineNanos == Long.MAX_VALUE ? "" : "\ndeadline " + deadlineNanos);
+    CompletableFuture<SharedResult> mine = new CompletableFuture<>();
+    CompletableFuture<SharedResult> running = inFlight.putIfAbsent(key, mine);
+    if (running == null) {
+      running = mine;
+      try {
+        List<CommandRecord> records = new ArrayList<>();
+        String output = captureOutput(o -> processCheckout(c, o, records));
+        mine.complete(new SharedResult(output, records));
+      } catch (RuntimeException | Error e) {
+        mine.completeExceptionally(e);
+        throw e;
+      } finally {
+        // Later requests run the commands again, so that they see current results.
+        inFlight.remove(key, mine);
+      }
+    }
+    SharedResult result = getResult(running);
+    out.print(result.output());
+    commands.addAll(result.commands());
+  }
+
+  /**
+   * Runs a task on each item, using up to {@link #jobs} threads. Each task prints to its own
+   * buffer. The output of each task is passed to {@code consumer}, on the calling thread. If {@code
+   * inOrder} is true, outputs are passed in the order of {@code items}, as soon as that task and
+   * all earlier ones have finished; otherwise, each is passed as soon as its task finishes. Either
+   * way, the output of one task is never interleaved with the output of another.
+   *
+   * @param <T> the type of the items
+   * @param items the items to process
+   * @param inOrder if true, pass the outputs to {@code consumer} in the order of {@code items}
+   * @param task the task to run on each item; it prints to the given stream
+   * @param consumer is passed each item and the output of its task
+   */
+  private <T> void runInParallel(
+      List<T> items,
+      boolean inOrder,
+      BiConsumer<T, PrintStream> task,
+      BiConsumer<T, String> consumer) {
+    runIndexed(
+        items.size(),
+        inOrder,
+        (out, i) -> task.accept(items.get(i), out),
+        (output, i) -> consumer.accept(items.get(i), output));
+  }
+
+  /**
+   * Like {@link #runInParallel}, but the items are the integers from 0 to {@code count - 1}, so
+   * that the caller can keep their state in arrays. Each thread takes the next item from a shared
+   * counter, so no object is created per item except for its output.
+   *
+   * @param count the number of items
+   * @param inOrder if true, pass the outputs to {@code consumer} in increasing order of item
+   * @param task the task to run on each item; it prints to the given stream
+   * @param consumer is passed the output of each task, and its item
+   */
+  private void runIndexed(
+      int count,
+      boolean inOrder,
+      ObjIntConsumer<PrintStream> task,
+      ObjIntConsumer<String> consumer) {
+    if (count == 0) {
+      return;
+    }
+    AtomicReferenceArray<@Nullable String> outputs = new AtomicReferenceArray<>(count);
+    // The exceptions thrown by tasks, which are rethrown on the calling thread.
+    Map<Integer, Throwable> failures = new ConcurrentHashMap<>();
+    Completions completions = new Completions(count);
+    AtomicInteger next = new AtomicInteger();
+    int threads = Math.min(Math.max(1, jobs), count);
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      for (int t = 0; t < threads; t++) {
+        executor.execute(
+            () -> {
+              for (int i = next.getAndIncrement();
+                  i < count && !Thread.currentThread().isInterrupted();
+                  i = next.getAndIncrement()) {
+                int item = i;
+                try {
+                  outputs.set(item, captureOutput(out -> task.accept(out, item)));
+                } catch (RuntimeException | Error e) {
+                  failures.put(item, e);
+                }
+                completions.finished(item);
+              }
+            });
+      }
+      for (int k = 0; k < count; k++) {
+        int item = inOrder ? completions.await(k) : completions.awaitNth(k);
+        if (!failures.isEmpty()) {
+          Throwable failure = failures.get(item);
+          if (failure instanceof RuntimeException re) {
+            throw re;
+          } else if (failure instanceof Error err) {
+            throw err;
+          }
+        }
+        String output = outputs.getAndSet(item, null);
+        assert output != null : "@AssumeAssertion(nullness): the task did not throw";
+        consumer.accept(output, item);
+      }
+    } catch (InterruptedException e) {
+      throw new Error(e);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /** Records which items of {@link #runIndexed} have finished, and in what order. */
+  private static final class Completions {
+
+    /** For each item, true if its task has finished. */
+    private final boolean[] done;
+
+    /** The items whose tasks have finished, in the order that they finished. */
+    private final int[] order;
+
+    /** The number of items whose tasks have finished. */
+    private int finished = 0;
+
+    /**
+     * Creates a Completions.
+     *
+     * @param count the number of items
+     */
+    Completions(int count) {
+      done = new boolean[count];
+      order = new int[count];
+    }
+
+    /**
+     * Notes that the task for an item has finished.
+     *
+     * @param item the item
+     */
+    synchronized void finished(int item) {
+      done[item] = true;
+      order[finished++] = item;
+      notifyAll();
+    }
+
+    /**
+     * Waits until the task for an item has finished.
+     *
+     * @param item the item
+     * @return {@code item}
+     * @throws InterruptedException if interrupted while waiting
+     */
+    synchronized int await(int item) throws InterruptedException {
+      while (!done[item]) {
+        wait();
+      }
+      return item;
+    }
+
+    /**
+     * Waits until the tasks for {@code n + 1} items have finished, and returns the last of them.
+     *
+     * @param n the number of items that finished earlier
+     * @return the item whose task was the {@code n}-th (from 0) to finish
+     * @throws InterruptedException if interrupted while waiting
+     */
+    synchronized int awaitNth(int n) throws InterruptedException {
+      while (finished <= n) {
+        wait();
+      }
+      return order[n];
+    }
+  }
+
+  /**
+   * Runs a task and returns its output, instead of printing it.
+   *
+   * @param task a task that prints to the given stream
+   * @return the output of the task
+   */
+  private static String captureOutput(Consumer<PrintStream> task) {
+    ByteArrayOutputStream captured = new ByteArrayOutputStream();
+    try (PrintStream out = new PrintStream(captured, false, UTF_8)) {
+      task.accept(out);
+    }
+    return captured.toString(UTF_8);
+  }
+
+  /**
+   * Waits for a task, and returns its result. If the task threw an exception, rethrows it.
+   *
+   * @param <V> the type of the result
+   * @param output the result of a task, once it finishes
+   * @return the result of the task
+   */
+  private static <V> V getResult(Future<V> output) {
+    try {
+      return output.get();
+    } catch (InterruptedException e) {
+      throw new Error(e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException re) {
+        throw re;
+      } else if (cause instanceof Error err) {
+        throw err;
+      } else {
+        throw new Error(cause);
+      }
+    }
+  }
+
+  /**
+   * For {@code --shared-fetch}: groups the git clones by upstream repository, and for each group of
+   * more than one clone, fetches the upstream repository into a bare repository in the cache
+   * directory. Records the bare repositories that were successfully updated in {@link
+   * #fetchCaches}. A clone whose upstream is not in {@link #fetchCaches} is pulled as usual.
+   *
+   * @param checkouts the clones that will be pulled
+   */
+  private void prepareSharedFetch(Set<Checkout> checkouts) {
+    Map<String, List<Checkout>> groups = new LinkedHashMap<>();
+    for (Checkout c : checkouts) {
+      if (c.repoType == RepoType.GIT
+          && c.repository != null
+          && c.directory.isDirectory()
+          && !upToDate.contains(c)) {
+        groups
+            .computeIfAbsent(RepositoryUrls.normalize(c.repository), k -> new ArrayList<>())
+            .add(c);
+      }
+    }
+    groups.values().removeIf(group -> group.size() < 2);
+    if (groups.isEmpty()) {
+      return;
+    }
+    File fetchDir = new File(cacheDir, "fetch");
+    if (!dryRun && !fetchDir.isDirectory() && !fetchDir.mkdirs()) {
+      System.err.println("Cannot create directory " + fetchDir);
+      return;
+    }
+    runInParallel(
+        new ArrayList<>(groups.entrySet()),
+        true,
+        (group, out) -> updateFetchCache(group.getKey(), group.getValue().get(0), fetchDir, out),
+        (group, output) -> {
+          messages().print(output);
+          messages().flush();
+        });
+  }
+
+  /**
+   * Fetches the branches and tags of one upstream repository into its bare repository in the cache
+   * directory, creating the bare repository if necessary. If that succeeds, records the bare
+   * repository in {@link #fetchCaches}.
+   *
+   * @param normalizedUrl the normalized URL of the upstream repository
+   * @param c a clone of the upstream repository
+   * @param fetchDir the directory that contains the bare repositories
+   * @param out where to print the output
+   */
+  private void updateFetchCache(String normalizedUrl, Checkout c, File fetchDir, PrintStream out) {
+    String repository = c.repository;
+    assert repository != null : "@AssumeAssertion(nullness): only clones with a repository";
+    File bare = new File(fetchDir, RepositoryUrls.cacheName(normalizedUrl));
+    List<Replacer> replacers = new ArrayList<>();
+    replacers.add(
+        new Replacer(
+            "(^|\\n)fatal:",
+            "$1fatal in shared fetch of " + Matcher.quoteReplacement(repository) + ":"));
+    ProcessBuilder pb = new ProcessBuilder("");
+    pb.redirectErrorStream(true);
+    if (!new File(bare, "HEAD").exists()) {
+      pb.command(gitExecutable, "init", "-q", "--bare", bare.toString());
+      pb.directory(fetchDir);
+      if (performCommand(pb, replacers, false, out) != 0) {
+        return;
+      }
+    }
+    pb.command(
+        gitExecutable,
+        "fetch",
+        "-q",
+        "--prune",
+        repository,
+        "+refs/heads/*:refs/heads/*",
+        "+refs/tags/*:refs/tags/*");
+    addArgs(pb, gitArg);
+    pb.directory(bare);
+    if (performCommand(pb, replacers, false, out) == 0) {
+      fetchCaches.put(normalizedUrl, bare);
+    }
+  }
+
+  /**
+   * For {@code --precheck}: lists the branches and tags of each git upstream repository once, and
+   * records in {@link #upToDate} the clones that already have them. A clone whose upstream cannot
+   * be listed is pulled as usual.
+   *
+   * @param checkouts the clones that will be pulled
+   */
+  private void precheckPulls(Set<Checkout> checkouts) {
+    Map<String, List<Checkout>> groups = new LinkedHashMap<>();
+    for (Checkout c : checkouts) {
+      if (c.repoType == RepoType.GIT && c.repository != null && c.directory.isDirectory()) {
+        groups
+            .computeIfAbsent(RepositoryUrls.normalize(c.repository), k -> new ArrayList<>())
+            .add(c);
+      }
+    }
+    runInParallel(
+        new ArrayList<>(groups.values()),
+        true,
+        (group, out) -> {
+          Map<String, String> upstreamRefs = listRemoteRefs(group.get(0), out);
+          if (upstreamRefs == null) {
+            return;
+          }
+          for (Checkout c : group) {
+            if (isUpToDate(c, upstreamRefs)) {
+              upToDate.add(c);
+            }
+          }
+        },
+        (group, output) -> {
+          messages().print(output);
+          messages().flush();
+        });
+  }
+
+  /**
+   * Returns the branches and tags of a git clone's upstream repository, or null if they cannot be
+   * listed.
+   *
+   * @param c a git clone
+   * @param out where to print errors
+   * @return a map from each ref name, such as "refs/heads/main" or "refs/tags/v1.0", to its hash,
+   *     or null
+   */
+  private @Nullable Map<String, String> listRemoteRefs(Checkout c, PrintStream out) {
+    String repository = c.repository;
+    if (repository == null || dryRun) {
+      return null;
+    }
+    ProcessBuilder pb =
+        new ProcessBuilder(gitExecutable, "ls-remote", "--heads", "--tags", repository);
+    // Run in the clone, so that its configuration, such as credentials, applies.
+    pb.directory(c.directory);
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    CommandRecord result;
+    try (PrintStream captured = new PrintStream(output, false, UTF_8)) {
+      result = runCommand(pb, Collections.emptyList(), true, timeout, captured);
+    }
+    if (result.exitValue() != 0) {
+      out.printf("Problem listing refs of %s:%n%s", repository, output.toString(UTF_8));
+      return null;
+    }
+    Map<String, String> refs = new TreeMap<>();
+    for (String line : output.toString(UTF_8).split("\n")) {
+      // Each line is a hash, a tab, and a ref name.  An annotated tag is listed twice; the second
+      // time, its name ends with "^{}" and the hash is of the commit that it tags.
+      int tab = line.indexOf('\t');
+      if (tab != -1 && !line.endsWith("^{}")) {
+        refs.put(line.substring(tab + 1), line.substring(0, tab));
+      }
+    }
+    return refs;
+  }
+
+  /**
+   * Returns true if pulling a git clone would not change it: its current branch tracks a branch of
+   * origin, its remote-tracking branches for origin are the same as the upstream's branches, its
+   * current branch is the same as the upstream branch that it tracks, and it has all of the
+   * upstream's tags.
+   *
+   * @param c a git clone
+   * @param upstreamRefs the upstream's branches and tags, as returned by {@link #listRemoteRefs}
+   * @return true if the clone is up to date with its upstream
+   */
+  private static boolean isUpToDate(Checkout c, Map<String, String> upstreamRefs) {
+    File gitDir = GitDir.find(c.directory);
+    if (gitDir == null) {
+      return false;
+    }
+    String branch = GitDir.currentBranch(gitDir);
+    if (branch == null) {
+      return false;
+    }
+    // The upstream was listed by the URL of origin, so the refs of any other remote are unknown.
+    String merge = GitDir.branchSetting(gitDir, branch, "merge");
+    if (merge == null || !"origin".equals(GitDir.branchSetting(gitDir, branch, "remote"))) {
+      return false;
+    }
+    Map<String, String> branches = new TreeMap<>();
+    Map<String, String> tags = new TreeMap<>();
+    for (Map.Entry<String, String> ref : upstreamRefs.entrySet()) {
+      String name = ref.getKey();
+      if (name.startsWith("refs/heads/")) {
+        branches.put(name.substring("refs/heads/".length()), ref.getValue());
+      } else if (name.startsWith("refs/tags/")) {
+        tags.put(name.substring("refs/tags/".length()), ref.getValue());
+      }
+    }
+    if (branches.isEmpty() || !GitDir.refs(gitDir, "refs/remotes/origin/").equals(branches)) {
+      return false;
+    }
+    if (!Objects.equals(upstreamRefs.get(merge), GitDir.resolve(gitDir, "refs/heads/" + branch))) {
+      return false;
+    }
+    return GitDir.refs(gitDir, "refs/tags/").entrySet().containsAll(tags.entrySet());
+  }
+
+  /**
+   * For {@code --mirror}: creates or updates a mirror of each git or Mercurial upstream repository
+   * that will be cloned. Records the mirrors that were successfully updated in {@link #mirrors}. A
+   * clone whose upstream is not in {@link #mirrors} is cloned from the upstream as usual.
+   *
+   * @param checkouts the clones that will be made
+   */
+  private void prepareMirrors(Set<Checkout> checkouts) {
+    Map<String, Checkout> upstreams = new LinkedHashMap<>();
+    for (Checkout c : checkouts) {
+      if ((c.repoType == RepoType.GIT || c.repoType == RepoType.HG)
+          && c.repository != null
+          && !cloneProfile(c).isReduced()
+          && (redoExisting || !c.directory.exists())) {
+        upstreams.putIfAbsent(RepositoryUrls.normalize(c.repository), c);
+      }
+    }
+    if (upstreams.isEmpty()) {
+      return;
+    }
+    File mirrorsDir = new File(cacheDir, "mirrors");
+    if (!dryRun && !mirrorsDir.isDirectory() && !mirrorsDir.mkdirs()) {
+      System.err.println("Cannot create directory " + mirrorsDir);
+      return;
+    }
+    runInParallel(
+        new ArrayList<>(upstreams.entrySet()),
+        true,
+        (upstream, out) -> updateMirror(upstream.getKey(), upstream.getValue(), mirrorsDir, out),
+        (upstream, output) -> {
+          messages().print(output);
+          messages().flush();
+        });
+  }
+
+  /**
+   * Creates or updates the mirror of one upstream repository. If that succeeds, records the mirror
+   * in {@link #mirrors}.
+   *
+   * @param normalizedUrl the normalized URL of the upstream repository
+   * @param c a clone of the upstream repository
+   * @param mirrorsDir the directory that contains the mirrors
+   * @param out where to print the output
+   */
+  private void updateMirror(String normalizedUrl, Checkout c, File mirrorsDir, PrintStream out) {
+    String repository = c.repository;
+    assert repository != null : "@AssumeAssertion(nullness): only clones with a repository";
+    String suffix = (c.repoType == RepoType.GIT) ? ".git" : ".hg";
+    File mirrorDir = new File(mirrorsDir, RepositoryUrls.cacheName(normalizedUrl) + suffix);
+    boolean exists = mirrorDir.isDirectory();
+    List<Replacer> replacers = new ArrayList<>();
+    replacers.add(
+        new Replacer(
+            "(^|\\n)(fatal:|abort:)",
+            "$1$2 in mirror of " + Matcher.quoteReplacement(repository) + ":"));
+    ProcessBuilder pb = new ProcessBuilder("");
+    pb.redirectErrorStream(true);
+    pb.directory(exists ? mirrorDir : mirrorsDir);
+    if (c.repoType == RepoType.GIT) {
+      if (exists) {
+        pb.command(gitExecutable, "fetch", "-q", "--prune");
+      } else {
+        pb.command(
+            gitExecutable, "clone", "-q", "--mirror", "--", repository, mirrorDir.toString());
+      }
+      addArgs(pb, gitArg);
+    } else {
+      if (exists) {
+        pb.command(hgExecutable, "pull", "-q");
+      } else {
+        pb.command(hgExecutable, "clone", "-q", "-U", repository, mirrorDir.toString());
+      }
+      addArgs(pb, hgArg);
+      if (insecure) {
+        addArg(pb, "--insecure");
+      }
+    }
+    int fullTimeout = CloneProfile.FULL.timeout(timeout);
+    if (runCommand(pb, replacers, false, fullTimeout, out).exitValue() == 0) {
+      mirrors.put(normalizedUrl, mirrorDir);
+    }
+  }
+
+  /**
+   * Returns the clone profile for a clone: the one given on the command line, if any, or else the
+   * one in the checkouts file.
+   *
+   * @param c a clone
+   * @return the clone profile for the clone
+   */
+  private CloneProfile cloneProfile(Checkout c) {
+    if (commandLineCloneProfile != null) {
+      return commandLineCloneProfile;
+    }
+    return (c.cloneProfile != null) ? c.cloneProfile : CloneProfile.FULL;
+  }
+
+  /**
+   * Returns the mirror from which to make a clone, or null if it should be cloned from its
+   * upstream repository.
+   *
+   * @param c a clone
+   * @return the mirror of the clone's upstream repository, or null
+   */
+  private @Nullable File mirrorFor(Checkout c) {
+    return (c.repository == null) ? null : mirrors.get(RepositoryUrls.normalize(c.repository));
+  }
+
+  /**
+   * Sets the default path of a Mercurial clone, by rewriting its {@code .hg/hgrc} file.
+   *
+   * @param dir a Mercurial clone that was just made, whose {@code .hg/hgrc} file sets only the
+   *     default path
+   * @param path the new default path
+   * @param out where to print the output
+   */
+  private void setHgDefaultPath(File dir, String path, PrintStream out) {
+    File hgrc = new File(new File(dir, ".hg"), "hgrc");
+    if (show) {
+      out.printf("  (set default path in %s to %s)%n", hgrc, path);
+    }
+    if (dryRun) {
+      return;
+    }
+    try {
+      Files.writeString(hgrc.toPath(), "[paths]\ndefault = " + path + "\n", UTF_8);
+    } catch (IOException e) {
+      out.println("Problem writing " + hgrc + ": " + e.getMessage());
+    }
+  }
+
+  /**
+   * Returns the stream for output that is not about any one clone, such as problems updating a
+   * shared cache. With {@code --format=ndjson}, standard output holds only JSON, so such output
+   * goes to standard error.
+   *
+   * @return the stream for output that is not about any one clone
+   */
+  private PrintStream messages() {
+    return format.equals("ndjson") ? System.err : stdout;
+  }
+
+  /**
+   * Returns the name of the action, as it is written on the command line.
+   *
+   * @return the name of the action, such as "pull"
+   */
+  private String actionName() {
+    return action.toString().toLowerCase(Locale.ROOT);
+  }
+
+  /**
+   * Returns true if diagnostic output, such as the commands being run, was requested. Such output
+   * is not cached, and it is not the status of a clone.
+   *
+   * @return true if diagnostic output was requested
+   */
+  private boolean diagnosticOutput() {
+    return dryRun || show || printDirectory || debugReplacers || debugProcessOutput;
+  }
+
+  /**
+   * Returns the file that holds the status cache.
+   *
+   * @return the file that holds the status cache
+   */
+  private File statusCacheFile() {
+    return new File(cacheDir, "status-cache");
+  }
+
+  /**
+   * Returns the file that holds how long each clone took in earlier runs.
+   *
+   * @return the file that holds how long each clone took in earlier runs
+   */
+  private File durationHistoryFile() {
+    return new File(cacheDir, "durations");
+  }
+
+  /**
+   * Writes the duration history, if there is one.
+   *
+   * @param history the duration history, or null
+   */
+  private void writeDurationHistory(@Nullable DurationHistory history) {
+    if (history != null) {
+      try {
+        history.write();
+      } catch (IOException e) {
+        System.err.println("Problem writing duration history " + durationHistoryFile() + ": " + e);
+      }
+    }
+  }
+
+  /**
+   * Returns the file that holds the snapshots of the clones, for {@code --changes-only}.
+   *
+   * @return the file that holds the snapshots of the clones
+   */
+  private File snapshotFile() {
+    return new File(cacheDir, "snapshots");
+  }
+
+  /**
+   * Returns the command-line settings that affect the output of the status command. Cached results
+   * computed with different settings are not reused.
+   *
+   * @return the settings that affect the output of the status command
+   */
+  private String statusCacheSettings() {
+    return String.join(
+        " ",
+        "cvsDiff=" + cvsDiff,
+        "checkRemote=" + checkRemote,
+        "insecure=" + insecure,
+        cvsExecutable,
+        gitExecutable,
+        hgExecutable,
+        svnExecutable,
+        cvsArg.toString(),
+        gitArg.toString(),
+        hgArg.toString(),
+        svnArg.toString());
+  }
+
+  /**
+   * Run the action described by field {@code action}, for one clone.
+   *
+   * @param c the clone or checkout to process
+   * @param out where to print the output
+   * @param commands the commands that were run; is side-effected by this method
+   */
+  void processCheckout(Checkout c, PrintStream out, List<CommandRecord> commands) {
+    // Always run at least one command, but sometimes up to three.
+    ProcessBuilder pb = new ProcessBuilder("");
+    pb.redirectErrorStream(true);
+    ProcessBuilder pb2 = new ProcessBuilder(new ArrayList<>());
+    pb2.redirectErrorStream(true);
+    ProcessBuilder pb3 = new ProcessBuilder(new ArrayList<>());
+    pb3.redirectErrorStream(true);
+    // pb4 is only for checking whether there are no commits in this branch.
+    ProcessBuilder pb4 = new ProcessBuilder(new ArrayList<>());
+    pb4.redirectErrorStream(true);
+    // pb5 is only for printing the origin URL.
+    ProcessBuilder pb5 =
+        new ProcessBuilder(List.of(gitExecutable, "config", "--get", "remote.origin.url"));
+    pb5.redirectErrorStream(true);
+
+    if (debug) {
+      out.println(c);
+      out.flush();
+    }
+    File dir = c.directory;
+
+    List<Replacer> replacers = new ArrayList<>();
+    List<Replacer> replacers3 = new ArrayList<>();
+
+    switch (c.repoType) {
+      case BZR -> {}
+      case CVS -> {
+        replacers.add(new Replacer("(^|\\n)([?]) ", "$1$2 " + dir + "/"));
+      }
+      case GIT -> {
+        replacers.add(new Replacer("(^|\\n)fatal:", "$1fatal in " + dir + ":"));
+        replacers.add(new Replacer("(^|\\n)warning:", "$1warning in " + dir + ":"));
+        replacers.add(
+            new Replacer(
+                "(^|\\n)(There is no tracking information for the current branch\\.)",
+                "$1" + dir + ": $2"));
+        replacers.add(
+            new Replacer("(^|\\n)(Your configuration specifies to merge)", dir + ": $1$2"));
+      }
+      case HG -> {
+        // "real URL" is for bitbucket.org.  (Should be early in list.)
+        replacers.add(new Replacer("(^|\\n)real URL is .*\\n", "$1"));
+        replacers.add(new Replacer("(^|\\n)(abort: .*)", "$1$2: " + dir));
+        replacers.add(new Replacer("(^|\\n)([MARC!?I]) ", "$1$2 " + dir + "/"));
+        replacers.add(
+            new Replacer(
+                "(^|\\n)(\\*\\*\\* failed to import extension .*: No module named demandload\\n)",
+                "$1"));
+        // Hack, should be replaced when googlecode certificate problems are fixed.
+        replacers.add(
+            new Replacer(
+                "(^|\\n)warning: .* certificate not verified"
+                    + " \\(check web.cacerts config setting\\)\\n",
+                "$1"));
+        // May appear twice in output with overlapping matches, so repeat the replacer
+        replacers.add(
+            new Replacer(
+                "(^|\\n)warning: .* certificate not verified"
+                    + " \\(check web.cacerts config setting\\)\\n",
+                "$1"));
+        // Does this mask too many errors?
+        replacers.add(
+            new Replacer(
+                "(^|\\n)((comparing with default-push\\n)?"
+                    + "abort: repository default(-push)? not found!: .*\\n)",
+                "$1"));
+      }
+      case SVN -> {
+        replacers.add(
+            new Replacer("(svn: Network connection closed unexpectedly)", "$1 for " + dir));
+        replacers.add(new Replacer("(svn: Repository) (UUID)", "$1 " + dir + " $2"));
+        replacers.add(
+            new Replacer(
+                "(svn: E155037: Previous operation has not finished; run 'cleanup' if it was"
+                    + " interrupted)",
+                "$1; for " + dir));
+      }
+      default -> {
+        assert false;
+      }
+    }
+    // The \r* is necessary here; (sometimes?) there are two carriage returns.
+    replacers.add(
+        new Replacer(
+            "(remote: )?Warning: untrusted X11 forwarding setup failed: xauth key data not"
+                + " generated\r*\n"
+                + "(remote: )?Warning: No xauth data; using fake authentication data for X11"
+                + " forwarding\\.\r*\n",
+            ""));
+    replacers.add(new Replacer("(working copy ')", "$1" + dir));
+
+    pb.command("echo", "command", "not", "set");
+    pb.directory(dir);
+    pb2.command(new ArrayList<>());
+    pb2.directory(dir);
+    pb3.command(new ArrayList<>());
+    pb3.directory(dir);
+    pb4.command(new ArrayList<>());
+    pb4.directory(dir);
+    boolean showNormalOutput = false;
+    // The time limit for each command, in seconds.
+    int commandTimeout = timeout;
+    // If true, compute the status in-process rather than by running pb.
+    boolean cvsLocalStatus = false;
+    // If true, inspect and tune the git clone rather than running pb.
+    boolean gitTune = false;
+    // If non-null, output that was computed in-process, to print after that of pb.
+    @Nullable String localOutput = null;
+    // If non-null, the default path to set in the Mercurial clone that pb makes.
+    String hgDefaultPath = null;
+    // Set pb.command() to be the command to be executed.
+    switch (action) {
+      case LIST -> {
+        out.println(c);
+        return;
+      }
+      case CLONE -> {
+        pb.directory(dir.getParentFile());
+        String dirbase = dir.getName();
+        if (c.repository == null) {
+          out.printf("Skipping checkout with unknown repository:%n  %s%n", dir);
+          return;
+        }
+        CloneProfile profile = cloneProfile(c);
+        commandTimeout = profile.timeout(timeout);
+        switch (c.repoType) {
+          case BZR -> {
+            out.println("bzr handling not yet implemented: skipping " + c.directory);
+          }
+          case CVS -> {
+            assert c.module != null : "@AssumeAssertion(nullness): dependent type CVS";
+            pb.command(
+                cvsExecutable,
+                "-d",
+                c.repository,
+                "checkout",
+                "-P", // prune empty directories
+                "-ko", // no keyword substitution
+                c.module);
+            addArgs(pb, cvsArg);
+          }
+          case GIT -> {
+            // "--" is to prevent the directory name from being interpreted as a command-line
+            // option, if it starts with a hyphen.
+            // "--filter=blob:none" makes cloning fast and reduces disk space.  It makes a
+            // subsequent `git blame` command slower, since it has retrieve information from the
+            // remote repository.  It makes pulling from the cloned repository impossible.
+            File mirrorDir = profile.isReduced() ? null : mirrorFor(c);
+            if (mirrorDir != null) {
+              // Borrow objects from the mirror, then copy them so the clone does not depend on it.
+              pb.command(
+                  gitExecutable,
+                  "clone",
+                  "--reference",
+                  mirrorDir.toString(),
+                  "--dissociate",
+                  "--",
+                  c.repository,
+                  dirbase);
+            } else {
+              pb.command(gitExecutable, "clone" /*, "--recursive" */);
+              if (profile.blobless) {
+                addArg(pb, "--filter=blob:none");
+              }
+              if (profile.depth > 0) {
+                addArg(pb, "--depth=" + profile.depth);
+              }
+              if (!profile.sparse.isEmpty()) {
+                // Check out only the top-level files; pb2 adds the directories.
+                addArg(pb, "--sparse");
+                pb2.command(gitExecutable, "sparse-checkout", "set", "--cone");
+                pb2.command().addAll(profile.sparse);
+                addArgs(pb2, gitArg);
+              }
+              addArg(pb, "--");
+              addArg(pb, c.repository);
+              addArg(pb, dirbase);
+            }
+            addArgs(pb, gitArg);
+          }
+          case HG -> {
+            File mirrorDir = profile.isReduced() ? null : mirrorFor(c);
+            if (mirrorDir != null) {
+              pb.command(hgExecutable, "clone", mirrorDir.toString(), dirbase);
+              hgDefaultPath = c.repository;
+            } else {
+              pb.command(hgExecutable, "clone", c.repository, dirbase);
+            }
+            addArgs(pb, hgArg);
+            if (insecure) {
+              addArg(pb, "--insecure");
+            }
+          }
+          case SVN -> {
+            if (c.module != null) {
+              pb.command(svnExecutable, "checkout", c.repository, c.module);
+            } else {
+              pb.command(svnExecutable, "checkout", c.repository);
+            }
+            if (!profile.sparse.isEmpty()) {
+              // Check out only the top-level files; pb2 adds the directories.
+              addArg(pb, "--depth=files");
+              pb2.command(svnExecutable, "update", "--parents", "--set-depth=infinity");
+              pb2.command().addAll(profile.sparse);
+              addArgs(pb2, svnArg);
+            }
+            addArgs(pb, svnArg);
+          }
+          default -> {
+            assert false;
+          }
+        }
+      }
+      case STATUS -> {
+        // I need a replacer for other version control systems, to add
+        // directory names.
+        showNormalOutput = true;
+        switch (c.repoType) {
+          case BZR -> {
+            out.println("bzr handling not yet implemented: skipping " + c.directory);
+          }
+          case CVS -> {
+            if (!cvsDiff) {
+              // Avoid a server round trip; compare CVS/Entries with file timestamps instead.
+              cvsLocalStatus = true;
+            } else {
+              assert c.repository != null;
+              pb.command(
+                  cvsExecutable,
+                  "-q",
+                  // Including "-d REPOS" seems to give errors when a
+                  // subdirectory is in a different CVS repository.
+                  // "-d", c.repository,
+                  "diff",
+                  "-b", // compress whitespace
+                  "--brief", // report only whether files differ, not details
+                  "-N"); // report new files
+              addArgs(pb, cvsArg);
+              //         # For the last perl command, this also works:
+              //         #   perl -p -e 'chomp(\$cwd = `pwd`); s/^Index: /\$cwd\\//'";
+              //         # but the one we use is briefer and uses the abbreviated directory name.
+              //         $filter = "grep -v \"unrecognized keyword 'UseNewInfoFmtStrings'\" | grep
+              // \"^Index:\" | perl -p -e 's|^Index: |$dir\\/|'";
+              String removeRegexp =
+                  ("\n=+"
+                      + "\nRCS file: .*" // no trailing ,v for newly-created files
+                      + "(\nretrieving revision .*)?" // no output for newly-created files
+                      + "\ndiff .*"
+                      + "(\nFiles .* and .* differ)?" // no output if only whitespace differences
+                  );
+              replacers.add(new Replacer(removeRegexp, ""));
+              replacers.add(new Replacer("(^|\\n)Index: ", "$1" + dir + "/"));
+              replacers.add(
+                  new Replacer("(^|\\n)(cvs \\[diff aborted)(\\]:)", "$1$2 in " + dir + "$3"));
+              replacers.add(new Replacer("(^|\\n)(Permission denied)", "$1$2 in " + dir));
+              replacers.add(
+                  new Replacer(
+                      "(^|\\n)(cvs diff: )(cannot find revision control)",
+                      "$1$2 in " + dir + ": $3"));
+              replacers.add(new Replacer("(^|\\n)(cvs diff: cannot find )", "$1$2" + dir));
+              replacers.add(new Replacer("(^|\\n)(cvs diff: in directory )", "$1$2" + dir + "/"));
+              replacers.add(new Replacer("(^|\\n)(cvs diff: ignoring )", "$1$2" + dir + "/"));
+            }
+          }
+          case GIT -> {
+            pb.command(gitExecutable, "status");
+            addArgs(pb, gitArg);
+            // Why was I using this option??
+            // addArg(pb, "--untracked-files=no");
+            addArg(pb, "--porcelain"); // experimenting with porcelain output
+            replacers.add(
+                new Replacer(
+                    "(^|\\n)On branch master\\n"
+                        + "Your branch is up-to-date with 'origin/master'.\\n"
+                        + "\\n?",
+                    "$1"));
+            replacers.add(
+                new Replacer("(^|\\n)nothing to commit,? working directory clean\\n", "$1"));
+            replacers.add(
+                new Replacer(
+                    "(^|\\n"
+                        + ")no changes added to commit \\(use \"git add\" and/or \"git commit"
+                        + " -a\"\\)\\n",
+                    "$1"));
+            replacers.add(
+                new Replacer(
+                    "(^|\\n)nothing added to commit but untracked files present"
+                        + " \\(use \"git add\" to track\\)\\n",
+                    "$1"));
+            replacers.add(
+                new Replacer(
+                    "(^|\\n)nothing to commit \\(use -u to show untracked files\\)\n", "$1"));
+
+            replacers.add(new Replacer("(^|\\n)#\\n", "$1"));
+            replacers.add(new Replacer("(^|\\n)# On branch master\\n", "$1"));
+            replacers.add(
+                new Replacer("(^|\\n)nothing to commit \\(working directory clean\\)\\n", "$1"));
+            replacers.add(new Replacer("(^|\\n)# Changed but not updated:\\n", "$1"));
+            replacers.add(
+                new Replacer(
+                    "(^|\\n)#   \\(use \"git add <file>...\""
+                        + " to update what will be committed\\)\\n",
+                    "$1"));
+            replacers.add(
+                new Replacer(
+                    "(^|\\n)#   \\(use \"git checkout -- <file>...\""
+                        + " to discard changes in working directory\\)\\n",
+                    "$1"));
+            replacers.add(new Replacer("(^|\\n)# Untracked files:\\n", "$1"));
+            replacers.add(
+                new Replacer(
+                    "(^|\\n)#   \\(use \"git add <file>...\""
+                        + " to include in what will be committed\\)\\n",
+                    "$1"));
+
+            replacers.add(new Replacer("(^|\\n)(#\tmodified:   )", "$1" + dir + "/"));
+            // This must come after the above, since it matches a prefix of the above
+            replacers.add(new Replacer("(^|\\n)(#\t)", "$1untracked: " + dir + "/"));
+            replacers.add(
+                new Replacer(
+                    "(^|\\n)# Your branch is ahead of .*\\n",
+                    "$1unpushed changesets: " + dir + "\n"));
+            replacers.add(new Replacer("(^|\\n)([?][?]) ", "$1$2 " + dir + "/"));
+            replacers.add(
+                new Replacer(
+                    "(^|\\n)([ACDMRU][ ACDMRTU]|[ ACDMRU][ACDMRTU]) ", "$1$2 " + dir + "/"));
+
+            // Useful info, but don't bother to report it, for consistency with other VCSes
+            replacers.add(
+                new Replacer(
+                    "(^|\\n)# Your branch is behind .*\\n",
+                    "$1unpushed changesets: " + dir + "\n"));
+
+            // Could remove all other output, but this could suppress messages
+            // replacers.add(new Replacer("(^|\\n)#.*\\n", "$1"));
+
+            // Necessary because "git status --porcelain" does not report:
+            //   # Your branch is ahead of 'origin/master' by 1 commit.
+            // If you have pushed but not pulled, then this will report
+            pb2.command(gitExecutable, "log", "--branches", "--not", "--remotes");
+            addArgs(pb2, gitArg);
+            replacers.add(
+                new Replacer("^commit .*(.*\\n)+", "unpushed commits: " + pb2.directory() + "\n"));
+
+            // TODO: use pb3 to look for stashes, using `git stash list`.
+
+            // TODO: use `if git merge-base --is-ancestor origin/master HEAD ; then ...` to
+            // determine whether this branch has no changes and thus can be deleted.
+            pb4.command(gitExecutable, "merge-base", "--is-ancestor", "origin/master", "HEAD");
+          }
+          case HG -> {
+            pb.command(hgExecutable, "status");
+            addArgs(pb, hgArg);
+            if (debug) {
+              out.printf(
+                  "invalidCertificate(%s) => %s%n", c.directory, invalidCertificate(c.directory));
+            }
+            if (checkRemote) {
+              if (invalidCertificate(c.directory)) {
+                pb2.command(hgExecutable, "outgoing", "-l", "1", "--config", "web.cacerts=");
+              } else {
+                pb2.command(hgExecutable, "outgoing", "-l", "1");
+              }
               addArgs(pb2, hgArg);
               if (insecure) {
                 addArg(pb2, "--insecure");
@@ -1767,77 +3974,130 @@ public class MultiVersionControl {
                       "unpushed changesets: " + dir + "\n"));
               replacers.add(
                   new Replacer(
-                      "^\\n?comparing with .*\\nsearching for changes\\nno changes found\n", ""));
-              pb3.command(hgExecutable, "shelve", "-l");
-              addArgs(pb3, hgArg);
-              // Shelve is an optional extension, so don't print anything if not installed.
-              replacers3.add(new Replacer("^hg: unknown command 'shelve'\\n(.*\\n)+", ""));
-              replacers3.add(new Replacer("^(.*\\n)+", "shelved changes: " + dir + "\n"));
-            }
-            case SVN -> {
-              // Handle some changes.
-              // "svn status" outputs an eighth column, if you pass the --show-updates switch: [* ]
-              replacers.add(
-                  new Replacer("(^|\\n)([ACDIMRX?!~ ][CM ][L ][+ ][$ ]) *", "$1$2 " + dir + "/"));
-              pb.command(svnExecutable, "status");
-              addArgs(pb, svnArg);
-            }
-            default -> {
-              assert false;
+                      "^\\n?comparing with .*\\nsearching for changes\\nno changes found\n",
+                      ""));
+            } else {
+              // Unpushed changesets are those in the draft phase.
+              try {
+                if (HgDir.hasDraftChangesets(new File(dir, ".hg"))) {
+                  localOutput = "unpushed changesets: " + dir + "\n";
+                }
+              } catch (IOException e) {
+                // Let hg read the phases.
+                pb2.command(hgExecutable, "log", "-r", "draft()", "-l", "1", "-T", "draft\\n");
+                addArgs(pb2, hgArg);
+                replacers.add(new Replacer("^draft\\n", "unpushed changesets: " + dir + "\n"));
+              }
             }
+            pb3.command(hgExecutable, "shelve", "-l");
+            addArgs(pb3, hgArg);
+            // Shelve is an optional extension, so don't print anything if not installed.
+            replacers3.add(new Replacer("^hg: unknown command 'shelve'\\n(.*\\n)+", ""));
+            replacers3.add(new Replacer("^(.*\\n)+", "shelved changes: " + dir + "\n"));
+          }
+          case SVN -> {
+            // Handle some changes.
+            // "svn status" outputs an eighth column, if you pass the --show-updates switch: [* ]
+            replacers.add(
+                new Replacer("(^|\\n)([ACDIMRX?!~ ][CM ][L ][+ ][$ ]) *", "$1$2 " + dir + "/"));
+            pb.command(svnExecutable, "status");
+            addArgs(pb, svnArg);
+          }
+          default -> {
+            assert false;
           }
         }
-        case PULL -> {
-          switch (c.repoType) {
-            case BZR -> {
-              System.out.println("bzr handling not yet implemented: skipping " + c.directory);
+      }
+      case PULL -> {
+        switch (c.repoType) {
+          case BZR -> {
+            out.println("bzr handling not yet implemented: skipping " + c.directory);
+          }
+          case CVS -> {
+            replacers.add(
+                new Replacer(
+                    "(^|\\n)(cvs update: ((in|skipping) directory|conflicts found in )) +",
+                    "$1$2 " + dir + "/"));
+            replacers.add(
+                new Replacer(
+                    "(^|\\n)(Merging differences between 1.16 and 1.17 into )",
+                    "$1$2 " + dir + "/"));
+            assert c.repository != null;
+            pb.command(
+                cvsExecutable,
+                // Including -d causes problems with CVS repositories
+                // that are embedded inside other repositories.
+                // "-d", c.repository,
+                "-Q",
+                "update",
+                "-d");
+            addArgs(pb, cvsArg);
+            //         $filter = "grep -v \"config: unrecognized keyword
+            // 'UseNewInfoFmtStrings'\"";
+            replacers.add(new Replacer("(cvs update: move away )", "$1" + dir + "/"));
+            replacers.add(new Replacer("(cvs \\[update aborted)(\\])", "$1 in " + dir + "$2"));
+          }
+          case GIT -> {
+            if (upToDate.contains(c)) {
+              if (show) {
+                out.println("Skipping pull (already up to date): " + dir);
+              }
+              return;
             }
-            case CVS -> {
-              replacers.add(
-                  new Replacer(
-                      "(^|\\n)(cvs update: ((in|skipping) directory|conflicts found in )) +",
-                      "$1$2 " + dir + "/"));
-              replacers.add(
-                  new Replacer(
-                      "(^|\\n)(Merging differences between 1.16 and 1.17 into )",
-                      "$1$2 " + dir + "/"));
-              assert c.repository != null;
+            replacers.add(new Replacer("(^|\\n)Already up-to-date\\.\\n", "$1"));
+            replacers.add(new Replacer("(^|\\n)error:", "$1error in " + dir + ":"));
+            replacers.add(
+                new Replacer(
+                    "(^|\\n)Please, commit your changes or stash them before you can merge.\\n"
+                        + "Aborting\\n",
+                    "$1"));
+            replacers.add(
+                new Replacer(
+                    "((^|\\n)CONFLICT \\(content\\): Merge conflict in )", "$1" + dir + "/"));
+            replacers.add(new Replacer("(^|\\n)([ACDMRU]\t)", "$1$2" + dir + "/"));
+            File fetchCache =
+                (c.repository == null)
+                    ? null
+                    : fetchCaches.get(RepositoryUrls.normalize(c.repository));
+            if (fetchCache != null) {
+              // The upstream was just fetched into fetchCache; fetch from it, then merge.
+              // "--prune" prunes remote-tracking branches, as "git fetch -p" does below.  It does
+              // not prune tags that were fetched because of "--tags".
               pb.command(
-                  cvsExecutable,
-                  // Including -d causes problems with CVS repositories
-                  // that are embedded inside other repositories.
-                  // "-d", c.repository,
-                  "-Q",
-                  "update",
-                  "-d");
-              addArgs(pb, cvsArg);
-              //         $filter = "grep -v \"config: unrecognized keyword
-              // 'UseNewInfoFmtStrings'\"";
-              replacers.add(new Replacer("(cvs update: move away )", "$1" + dir + "/"));
-              replacers.add(new Replacer("(cvs \\[update aborted)(\\])", "$1 in " + dir + "$2"));
-            }
-            case GIT -> {
-              replacers.add(new Replacer("(^|\\n)Already up-to-date\\.\\n", "$1"));
-              replacers.add(new Replacer("(^|\\n)error:", "$1error in " + dir + ":"));
-              replacers.add(
-                  new Replacer(
-                      "(^|\\n)Please, commit your changes or stash them before you can merge.\\n"
-                          + "Aborting\\n",
-                      "$1"));
-              replacers.add(
-                  new Replacer(
-                      "((^|\\n)CONFLICT \\(content\\): Merge conflict in )", "$1" + dir + "/"));
-              replacers.add(new Replacer("(^|\\n)([ACDMRU]\t)", "$1$2" + dir + "/"));
+                  gitExecutable,
+                  "fetch",
+                  "-q",
+                  "--prune",
+                  "--tags",
+                  fetchCache.toString(),
+                  "+refs/heads/*:refs/remotes/origin/*");
+              addArgs(pb, gitArg);
+              pb2.command(gitExecutable, "merge", "-q", "--no-edit");
+            } else if (prefetchIsFresh(c)) {
+              // A recent prefetch fetched the upstream; take the commits from the prefetch refs.
+              pb.command(
+                  gitExecutable,
+                  "fetch",
+                  "-q",
+                  "--prune",
+                  ".",
+                  "+" + GIT_PREFETCH_REFS + "*:refs/remotes/origin/*");
+              addArgs(pb, gitArg);
+              pb2.command(gitExecutable, "merge", "-q", "--no-edit");
+            } else {
               pb.command(gitExecutable, "pull", "-q" /*, "--recurse-submodules"*/);
               addArgs(pb, gitArg);
               // prune branches; alternately do "git remote prune origin"; "git gc" doesn't do this.
               pb2.command(gitExecutable, "fetch", "-p");
             }
-            case HG -> {
-              replacers.add(new Replacer("(^|\\n)([?!AMR] ) +", "$1$2 " + dir + "/"));
-              replacers.add(new Replacer("(^|\\n)abort: ", "$1"));
-              pb.command(hgExecutable, "-q", "update");
-              addArgs(pb, hgArg);
+          }
+          case HG -> {
+            replacers.add(new Replacer("(^|\\n)([?!AMR] ) +", "$1$2 " + dir + "/"));
+            replacers.add(new Replacer("(^|\\n)abort: ", "$1"));
+            pb.command(hgExecutable, "-q", "update");
+            addArgs(pb, hgArg);
+            // If a recent prefetch pulled the upstream, updating is all that is needed.
+            if (!prefetchIsFresh(c)) {
               if (invalidCertificate(c.directory)) {
                 pb2.command(hgExecutable, "-q", "fetch", "--config", "web.cacerts=");
               } else {
@@ -1848,98 +4108,443 @@ public class MultiVersionControl {
                 addArg(pb2, "--insecure");
               }
             }
-            case SVN -> {
-              replacers.add(new Replacer("(^|\\n)([?!AMR] ) +", "$1$2 " + dir + "/"));
-              replacers.add(new Replacer("(svn: Failed to add file ')(.*')", "$1" + dir + "/$2"));
-              assert c.repository != null;
-              pb.command(svnExecutable, "-q", "update");
-              addArgs(pb, svnArg);
-              //         $filter = "grep -v \"Killed by signal 15.\"";
+          }
+          case SVN -> {
+            replacers.add(new Replacer("(^|\\n)([?!AMR] ) +", "$1$2 " + dir + "/"));
+            replacers.add(new Replacer("(svn: Failed to add file ')(.*')", "$1" + dir + "/$2"));
+            assert c.repository != null;
+            pb.command(svnExecutable, "-q", "update");
+            addArgs(pb, svnArg);
+            //         $filter = "grep -v \"Killed by signal 15.\"";
+          }
+          default -> {
+            assert false;
+          }
+        }
+      }
+      case PREFETCH -> {
+        switch (c.repoType) {
+          case GIT -> {
+            // These are the arguments that "git maintenance run --task=prefetch" uses.
+            pb.command(
+                gitExecutable,
+                "fetch",
+                "-q",
+                "--prune",
+                "--no-tags",
+                "--no-write-fetch-head",
+                "--refmap=",
+                "origin",
+                "+refs/heads/*:" + GIT_PREFETCH_REFS + "*");
+            addArgs(pb, gitArg);
+          }
+          case HG -> {
+            replacers.add(new Replacer("(^|\\n)abort: ", "$1" + dir + ": "));
+            pb.command(hgExecutable, "-q", "pull");
+            if (invalidCertificate(c.directory)) {
+              addArgs(pb, List.of("--config", "web.cacerts="));
             }
-            default -> {
-              assert false;
+            addArgs(pb, hgArg);
+            if (insecure) {
+              addArg(pb, "--insecure");
             }
           }
+          default -> {
+            // CVS and Subversion cannot fetch without updating the working copy.
+            return;
+          }
         }
-        default -> {
-          assert false;
-        }
+        lowPriority(pb);
       }
-
-      // Check that the directory exists (OK if it doesn't for checkout).
-      if (debug) {
-        System.out.println(dir + ":");
+      case FETCH -> {
+        // Without -q, git and hg report what was fetched; the replacers remove everything else.
+        switch (c.repoType) {
+          case GIT -> {
+            replacers.add(new Replacer("(^|\\n)From ", "$1" + dir + ": from "));
+            pb.command(gitExecutable, "fetch", "-p");
+            addArgs(pb, gitArg);
+          }
+          case HG -> {
+            replacers.add(new Replacer("(^|\\n)pulling from .*\\n", "$1"));
+            replacers.add(new Replacer("(^|\\n)searching for changes\\n", "$1"));
+            replacers.add(new Replacer("(^|\\n)no changes found\\n", "$1"));
+            replacers.add(
+                new Replacer("(^|\\n)adding (changesets|manifests|file changes)\\n", "$1"));
+            replacers.add(new Replacer("(^|\\n)\\(run 'hg [^\\n]*\\)\\n", "$1"));
+            replacers.add(new Replacer("(^|\\n)(added [0-9]+ changesets?)", "$1" + dir + ": $2"));
+            // Also printed when changesets arrive: "new changesets 1a2b3c:4d5e6f", and changes to
+            // bookmarks.
+            replacers.add(
+                new Replacer(
+                    "(^|\\n)(new changesets |updating bookmark |adding remote bookmark "
+                        + "|divergent bookmark )",
+                    "$1" + dir + ": $2"));
+            replacers.add(new Replacer("(^|\\n)abort: ", "$1" + dir + ": "));
+            pb.command(hgExecutable, "pull");
+            if (invalidCertificate(c.directory)) {
+              addArgs(pb, List.of("--config", "web.cacerts="));
+            }
+            addArgs(pb, hgArg);
+            if (insecure) {
+              addArg(pb, "--insecure");
+            }
+          }
+          default -> {
+            // Fetching a CVS or Subversion checkout would update its working copy, so it is a
+            // no-op.
+            return;
+          }
+        }
+        showNormalOutput = true;
       }
-      if (dir.exists()) {
-        if (action == Action.CLONE && !redoExisting) {
-          if (!quiet) {
-            System.out.println("Skipping checkout (dir already exists): " + dir);
+      case MAINTAIN -> {
+        switch (c.repoType) {
+          case GIT -> {
+            pb.command(gitExecutable, "maintenance", "run", "--auto", "--quiet");
+            addArgs(pb, gitArg);
+          }
+          case HG -> {
+            // Checks for format upgrades, without performing them.  The report of what an upgrade
+            // would do follows any warnings, which are printed unchanged.  It is printed even if
+            // there are no format upgrades.
+            replacers.add(
+                new Replacer(
+                    "(^|\\n)\\(no format upgrades found in existing repository\\)[\\s\\S]*",
+                    "$1"));
+            replacers.add(
+                new Replacer(
+                    "(^|\\n)(repository lacks? features|performing an upgrade with|requirements\\n)"
+                        + "[\\s\\S]*",
+                    "$1" + dir + ": format upgrades are available; see hg debugupgraderepo\n"));
+            pb.command(hgExecutable, "debugupgraderepo");
+            addArgs(pb, hgArg);
+            showNormalOutput = true;
+          }
+          case SVN -> {
+            pb.command(svnExecutable, "cleanup", "--vacuum-pristines");
+            addArgs(pb, svnArg);
+          }
+          default -> {
+            return;
           }
-          continue;
         }
-      } else {
-        // Directory does not exist
-        File parent = dir.getParentFile();
-        if (parent == null) {
-          // This happens when dir is the root directory.
-          // It doesn't happen merely when the parent doesn't yet exist.
-          System.err.printf("Directory %s does not exist, and it has no parent%n", dir);
-          continue;
+        lowPriority(pb);
+      }
+      case TUNE -> {
+        if (c.repoType != RepoType.GIT) {
+          return;
         }
-        switch (action) {
-          case CLONE -> {
-            if (!parent.exists()) {
-              if (show) {
-                if (!dryRun) {
-                  System.out.printf("Parent directory %s does not exist (creating)%n", parent);
-                } else {
-                  System.out.printf("  mkdir -p %s%n", parent);
-                }
-              }
+        gitTune = true;
+      }
+      case EXEC -> {
+        // The command's output is the user's, so do not rewrite it; only label it.
+        replacers.clear();
+        replacers.add(new Replacer("^", Matcher.quoteReplacement(dir + ":\n")));
+        List<String> command = new ArrayList<>(execCommand.size());
+        for (String arg : execCommand) {
+          command.add(arg.replace("{vcs}", executable(c.repoType)).replace("{dir}", dir.getPath()));
+        }
+        pb.command(command);
+        showNormalOutput = true;
+      }
+      default -> {
+        assert false;
+      }
+    }
+
+    // Check that the directory exists (OK if it doesn't for checkout).
+    if (debug) {
+      out.println(dir + ":");
+    }
+    if (dir.exists()) {
+      if (action == Action.CLONE && !redoExisting) {
+        if (!quiet) {
+          out.println("Skipping checkout (dir already exists): " + dir);
+        }
+        return;
+      }
+    } else {
+      // Directory does not exist
+      File parent = dir.getParentFile();
+      if (parent == null) {
+        // This happens when dir is the root directory.
+        // It doesn't happen merely when the parent doesn't yet exist.
+        System.err.printf("Directory %s does not exist, and it has no parent%n", dir);
+        return;
+      }
+      switch (action) {
+        case CLONE -> {
+          if (!parent.exists()) {
+            if (show) {
               if (!dryRun) {
-                if (!parent.mkdirs()) {
-                  System.err.println("Could not create directory: " + parent);
-                  System.exit(1);
-                }
+                out.printf("Parent directory %s does not exist (creating)%n", parent);
+              } else {
+                out.printf("  mkdir -p %s%n", parent);
               }
             }
-          }
-          case STATUS, PULL -> {
-            if (!quiet) {
-              System.out.println("Cannot find directory: " + dir);
+            if (!dryRun) {
+              // Another thread may have created the directory in the meantime.
+              if (!parent.mkdirs() && !parent.isDirectory()) {
+                System.err.println("Could not create directory: " + parent);
+                System.exit(1);
+              }
             }
-            continue CLONELOOP;
-          }
-          case LIST -> {
-            assert false;
           }
-          default -> {
-            assert false;
+        }
+        case STATUS, PULL, PREFETCH, FETCH, MAINTAIN, TUNE, EXEC -> {
+          if (!quiet) {
+            out.println("Cannot find directory: " + dir);
           }
+          return;
+        }
+        case LIST -> {
+          assert false;
+        }
+        default -> {
+          assert false;
         }
       }
+    }
 
-      if (printDirectory) {
-        System.out.println(dir + " :");
-        pb5.directory(dir);
-        performCommand(pb5, Collections.emptyList(), true);
+    if (printDirectory) {
+      out.println(dir + " :");
+      pb5.directory(dir);
+      commands.add(runCommand(pb5, Collections.emptyList(), true, timeout, out));
+    }
+    // If the clone command failed, there is no clone for pb2 to work in.
+    boolean cloneFailed = false;
+    if (cvsLocalStatus) {
+      printCvsLocalStatus(dir, out);
+    } else if (gitTune) {
+      tuneGitClone(dir, out, commands);
+    } else {
+      Footprint before = (action == Action.MAINTAIN && !dryRun) ? Footprint.measure(c) : null;
+      CommandRecord result = runCommand(pb, replacers, showNormalOutput, commandTimeout, out);
+      commands.add(result);
+      cloneFailed = action == Action.CLONE && (result.exitValue() != 0 || result.timedOut());
+      Footprint after = (before == null) ? null : Footprint.measure(c);
+      if (before != null && after != null) {
+        String change = after.changeSince(before);
+        if (!change.isEmpty()) {
+          out.println(dir + ": " + change);
+        }
       }
-      performCommand(pb, replacers, showNormalOutput);
-      if (!pb2.command().isEmpty()) {
-        performCommand(pb2, replacers, showNormalOutput);
+      if (hgDefaultPath != null && result.exitValue() == 0) {
+        setHgDefaultPath(dir, hgDefaultPath, out);
       }
-      if (!pb3.command().isEmpty()) {
-        performCommand(pb3, replacers3, showNormalOutput);
+      if (action == Action.PREFETCH && result.exitValue() == 0 && !dryRun) {
+        touchPrefetchStamp(c, out);
       }
-      // TODO:
-      // if (!pb4.command().isEmpty()) {
-      //   int isAncestorStatus = performCommand(pb4, replacers4, showNormalOutput);
-      //   if (isAncestorStatus == 0) {
-      //     // TODO: Output this message only for non-master branches.
-      //     // System.out.println("No changes committed in " + dir);
-      //   }
-      // }
-      System.out.flush();
+    }
+    if (localOutput != null && !dryRun) {
+      out.print(localOutput);
+    }
+    if (!pb2.command().isEmpty() && !cloneFailed) {
+      commands.add(runCommand(pb2, replacers, showNormalOutput, commandTimeout, out));
+    }
+    if (!pb3.command().isEmpty()) {
+      commands.add(runCommand(pb3, replacers3, showNormalOutput, commandTimeout, out));
+    }
+    // TODO:
+    // if (!pb4.command().isEmpty()) {
+    //   int isAncestorStatus = performCommand(pb4, replacers4, showNormalOutput);
+    //   if (isAncestorStatus == 0) {
+    //     // TODO: Output this message only for non-master branches.
+    //     // out.println("No changes committed in " + dir);
+    //   }
+    // }
+    out.flush();
+  }
+
+  /**
+   * Prints the features that would make a git clone faster but that it does not use, and how long
+   * {@code git status} takes. If {@link #applyTuning} is true, enables the features and prints how
+   * long {@code git status} takes afterward. Prints nothing if no features are missing.
+   *
+   * @param dir the top-level directory of a git clone
+   * @param out where to print the output
+   * @param commands the commands that were run; this method adds to it
+   */
+  private void tuneGitClone(File dir, PrintStream out, List<CommandRecord> commands) {
+    File gitDir = GitDir.find(dir);
+    if (gitDir == null) {
+      out.println(dir + ": cannot find the git directory");
+      return;
+    }
+    ProcessBuilder configPb = new ProcessBuilder(gitExecutable, "config", "--list");
+    configPb.directory(dir);
+    ByteArrayOutputStream configOutput = new ByteArrayOutputStream();
+    try (PrintStream configOut = new PrintStream(configOutput, false, UTF_8)) {
+      commands.add(runCommand(configPb, Collections.emptyList(), true, timeout, configOut));
+    }
+    Set<GitTuning.Feature> missing =
+        GitTuning.missing(gitDir, GitTuning.parseConfigList(configOutput.toString(UTF_8)));
+    if (missing.isEmpty()) {
+      return;
+    }
+
+    long before = gitStatusNanos(dir, out, commands);
+    StringJoiner features = new StringJoiner(", ");
+    boolean enabled = true;
+    for (GitTuning.Feature feature : missing) {
+      features.add(feature.description);
+      if (applyTuning) {
+        for (List<String> args : feature.enableCommands) {
+          List<String> command = new ArrayList<>(args.size() + 1);
+          command.add(gitExecutable);
+          command.addAll(args);
+          ProcessBuilder pb = new ProcessBuilder(command);
+          pb.directory(dir);
+          CommandRecord result = runCommand(pb, Collections.emptyList(), false, timeout, out);
+          commands.add(result);
+          enabled &= result.exitValue() == 0;
+        }
+      }
+    }
+    if (dryRun) {
+      return;
+    }
+    if (!applyTuning) {
+      out.printf("%s: missing %s; status takes %s%n", dir, features, formatMillis(before));
+    } else {
+      long after = gitStatusNanos(dir, out, commands);
+      out.printf(
+          "%s: %s %s; status took %s, now %s%n",
+          dir,
+          (enabled ? "enabled" : "tried to enable"),
+          features,
+          formatMillis(before),
+          formatMillis(after));
+    }
+  }
+
+  /**
+   * Runs {@code git status} twice, and returns the shorter time. The first run may be slowed by
+   * reading the clone into the file system cache, or by git updating the index.
+   *
+   * @param dir the top-level directory of a git clone
+   * @param out where to print the output if the command fails
+   * @param commands the commands that were run; this method adds to it
+   * @return how long {@code git status} took, in nanoseconds
+   */
+  private long gitStatusNanos(File dir, PrintStream out, List<CommandRecord> commands) {
+    ProcessBuilder pb = new ProcessBuilder(gitExecutable, "status", "--porcelain");
+    pb.directory(dir);
+    addArgs(pb, gitArg);
+    long result = Long.MAX_VALUE;
+    for (int i = 0; i < 2; i++) {
+      CommandRecord record = runCommand(pb, Collections.emptyList(), false, timeout, out);
+      commands.add(record);
+      result = Math.min(result, record.wallNanos());
+    }
+    return result;
+  }
+
+  /**
+   * Formats a duration in milliseconds, such as "412 ms".
+   *
+   * @param nanos a duration, in nanoseconds
+   * @return the duration in milliseconds, formatted for people to read
+   */
+  private static String formatMillis(long nanos) {
+    return TimeUnit.NANOSECONDS.toMillis(nanos) + " ms";
+  }
+
+  /**
+   * Returns the program for a version control system, such as the value of {@code
+   * --git-executable}.
+   *
+   * @param repoType a version control system
+   * @return the program for the version control system
+   */
+  private String executable(RepoType repoType) {
+    return switch (repoType) {
+      case BZR -> "bzr";
+      case CVS -> cvsExecutable;
+      case GIT -> gitExecutable;
+      case HG -> hgExecutable;
+      case SVN -> svnExecutable;
+    };
+  }
+
+  /**
+   * Print the status of a CVS checkout, computed from its {@code CVS/Entries} files rather than by
+   * running {@code cvs diff}.
+   *
+   * @param dir the top-level directory of a CVS checkout
+   * @param out where to print the status
+   */
+  private void printCvsLocalStatus(File dir, PrintStream out) {
+    if (show) {
+      out.println("  cd " + dir + "\n  (compare CVS/Entries timestamps to files)");
+      out.flush();
+    }
+    if (dryRun) {
+      return;
+    }
+    try {
+      out.print(CvsStatus.status(dir));
+    } catch (IOException e) {
+      out.println("Problem reading CVS/Entries in " + dir + ": " + e.getMessage());
+    }
+    out.flush();
+  }
+
+  /**
+   * Returns the file whose modification time is when a clone was last prefetched successfully.
+   *
+   * @param c a git or Mercurial clone
+   * @return the file that records when the clone was last prefetched
+   */
+  private static File prefetchStamp(Checkout c) {
+    String metadataDir = (c.repoType == RepoType.HG) ? ".hg" : ".git";
+    return new File(new File(c.directory, metadataDir), "mvc-prefetch");
+  }
+
+  /**
+   * Records that a clone was just prefetched.
+   *
+   * @param c a git or Mercurial clone
+   * @param out where to print a message if the record cannot be written
+   */
+  private static void touchPrefetchStamp(Checkout c, PrintStream out) {
+    File stamp = prefetchStamp(c);
+    File metadataDir = stamp.getParentFile();
+    if (metadataDir == null || !metadataDir.isDirectory()) {
+      // For example, ".git" is a file in a linked worktree.  Pulls will contact the upstream.
+      return;
+    }
+    try {
+      Files.write(stamp.toPath(), new byte[0]);
+    } catch (IOException e) {
+      out.println("Problem writing " + stamp + ": " + e.getMessage());
+    }
+  }
+
+  /**
+   * Returns true if a clone was prefetched at most {@link #prefetchMaxAge} seconds ago.
+   *
+   * @param c a git or Mercurial clone
+   * @return true if a pull of the clone can use the prefetched commits
+   */
+  private boolean prefetchIsFresh(Checkout c) {
+    if (prefetchMaxAge <= 0) {
+      return false;
+    }
+    // lastModified is 0 if the file does not exist.
+    long modified = prefetchStamp(c).lastModified();
+    return System.currentTimeMillis() - modified <= TimeUnit.SECONDS.toMillis(prefetchMaxAge);
+  }
+
+  /**
+   * Changes a command so that it runs at the lowest CPU priority, if the operating system supports
+   * that.
+   *
+   * @param pb the ProcessBuilder to modify
+   */
+  private static void lowPriority(ProcessBuilder pb) {
+    if (!System.getProperty("os.name", "").startsWith("Windows")) {
+      pb.command().addAll(0, List.of("nice", "-n", "19"));
     }
   }
 
@@ -2002,15 +4607,37 @@ public class MultiVersionControl {
    * @param replacers replacements to make in the output before displaying it, to reduce verbosity
    * @param showNormalOutput if true, then display the output even if the process completed
    *     normally. Ordinarily, output is displayed only if the process completed erroneously.
+   * @param out where to print the output
    * @return the status code: 0 for normal completion, non-zero for erroneous completion
    */
-  int performCommand(ProcessBuilder pb, List<Replacer> replacers, boolean showNormalOutput) {
+  int performCommand(
+      ProcessBuilder pb, List<Replacer> replacers, boolean showNormalOutput, PrintStream out) {
+    return runCommand(pb, replacers, showNormalOutput, timeout, out).exitValue();
+  }
+
+  /**
+   * Perform {@code pb}'s command, with the given time limit, and record how long it took.
+   *
+   * @param pb the ProcessBuilder whose commands to run
+   * @param replacers replacements to make in the output before displaying it, to reduce verbosity
+   * @param showNormalOutput if true, then display the output even if the process completed
+   *     normally. Ordinarily, output is displayed only if the process completed erroneously.
+   * @param timeoutSeconds the time limit for the command, in seconds
+   * @param out where to print the output
+   * @return the outcome of the command; its exit value is 0 for normal completion
+   */
+  CommandRecord runCommand(
+      ProcessBuilder pb,
+      List<Replacer> replacers,
+      boolean showNormalOutput,
+      int timeoutSeconds,
+      PrintStream out) {
     if (show) {
-      System.out.println(command(pb));
-      System.out.flush();
+      out.println(command(pb));
+      out.flush();
     }
     if (dryRun) {
-      return 0;
+      return CommandRecord.notRun(pb.command());
     }
     // Perform the command
 
@@ -2036,107 +4663,173 @@ public class MultiVersionControl {
     DefaultExecutor executor =
         DefaultExecutor.builder().setWorkingDirectory(defaultDirectory).get();
 
-    ExecuteWatchdog watchdog =
-        ExecuteWatchdog.builder().setTimeout(Duration.ofSeconds(timeout)).get();
+    Duration limit = Duration.ofSeconds(timeoutSeconds);
+    boolean limitedByDeadline = false;
+    if (deadlineNanos != Long.MAX_VALUE) {
+      long untilDeadline = deadlineNanos - System.nanoTime();
+      if (untilDeadline < limit.toNanos()) {
+        // Stop the command at the deadline.  Commons Exec requires a positive timeout.
+        limit = Duration.ofNanos(Math.max(untilDeadline, TimeUnit.MILLISECONDS.toNanos(1)));
+        limitedByDeadline = true;
+      }
+    }
+    ExecuteWatchdog watchdog = ExecuteWatchdog.builder().setTimeout(limit).get();
     executor.setWatchdog(watchdog);
+    SpawnTimer spawnTimer = new SpawnTimer();
+    executor.setProcessDestroyer(spawnTimer);
 
-    final ByteArrayOutputStream outStream = new ByteArrayOutputStream();
+    // The output is printed only if the command fails, unless showNormalOutput or debugging is on.
+    // When it will probably not be printed, keep only its end, which is where errors appear.
+    boolean outputLikelyDiscarded = !(showNormalOutput || debugReplacers || debugProcessOutput);
+    final OutputCapture outStream = new OutputCapture(outputLikelyDiscarded);
     PumpStreamHandler streamHandler =
         new PumpStreamHandler(outStream); // send both stderr and stdout
     executor.setStreamHandler(streamHandler);
 
+    // Close the capture, which deletes its temporary file, even if a replacer throws.
     try {
-      executor.execute(cmdLine, resultHandler);
-    } catch (IOException e) {
-      String msg = e.toString();
-      if (msg.startsWith("java.io.IOException: Cannot run program \"")
-          && msg.endsWith(", No such file or directory")) {
-        System.err.println(msg.substring(21));
-      } else {
-        throw new UncheckedIOException(e);
+      MvcEvents.ProcessEvent event = new MvcEvents.ProcessEvent();
+      event.begin();
+      long startNanos = System.nanoTime();
+      try {
+        executor.execute(cmdLine, resultHandler);
+      } catch (IOException e) {
+        String msg = e.toString();
+        if (msg.startsWith("java.io.IOException: Cannot run program \"")
+            && msg.endsWith(", No such file or directory")) {
+          System.err.println(msg.substring(21));
+        } else {
+          throw new UncheckedIOException(e);
+        }
       }
-    }
 
-    int exitValue;
-    try {
-      resultHandler.waitFor();
-      exitValue = resultHandler.getExitValue();
-    } catch (InterruptedException e) {
-      throw new Error(e);
-    }
-    boolean timedOut = executor.isFailure(exitValue) && watchdog.killedProcess();
+      int exitValue;
+      try {
+        resultHandler.waitFor();
+        exitValue = resultHandler.getExitValue();
+      } catch (InterruptedException e) {
+        throw new Error(e);
+      }
+      long wallNanos = System.nanoTime() - startNanos;
+      boolean timedOut = executor.isFailure(exitValue) && watchdog.killedProcess();
+      event.end();
+      if (event.shouldCommit()) {
+        event.command = String.join(" ", pb.command());
+        event.directory = defaultDirectory.toString();
+        event.exitCode = exitValue;
+        event.timedOut = timedOut;
+        event.outputBytes = outStream.size();
+        event.commit();
+      }
+      long spawnNanos = spawnTimer.spawnNanos(startNanos);
+      Metrics.COMMANDS.increment();
+      Metrics.COMMAND_SPAWN.record(spawnNanos);
+      Metrics.COMMAND_WALL.record(wallNanos - spawnNanos);
+      if (exitValue != 0) {
+        Metrics.COMMAND_FAILURES.increment();
+      }
+      if (timedOut) {
+        Metrics.COMMAND_TIMEOUTS.increment();
+      }
 
-    if (timedOut) {
-      System.out.printf("Timed out (limit: %ss):%n", timeout);
-      System.out.println(command(pb));
-      System.out.flush();
-      // Don't return; also show the output
-    }
-
-    // Under what conditions should the output be printed?
-    //  * for status, always
-    //  * whenever the process exited non-normally
-    //  * when debugging
-    //  * other circumstances?
-    // I could try printing always, to better understand this question.
-    if (showNormalOutput || exitValue != 0 || debugReplacers || debugProcessOutput) {
-      // Filter then print the output.
-      String output = outStream.toString(UTF_8);
-
-      if (debugReplacers || debugProcessOutput) {
-        System.out.println("preoutput=<<<" + output + ">>>");
-      }
-      if (!output.equals("")) {
-        boolean noReplacement = false;
-        for (Replacer r : replacers) {
-          String printableRegexp = r.regexp.toString().replace("\r", "\\r").replace("\n", "\\n");
-          if (debugReplacers) {
-            System.out.println("midoutput_pre[" + printableRegexp + "]=<<<" + output + ">>>");
+      if (timedOut) {
+        if (limitedByDeadline) {
+          out.printf(
+              "Timed out (limit: %.1fs, the time left before --deadline):%n",
+              limit.toMillis() / 1000.0);
+        } else {
+          out.printf("Timed out (limit: %ss):%n", timeoutSeconds);
+        }
+        out.println(command(pb));
+        out.flush();
+        // Don't return; also show the output
+      }
+
+      // Under what conditions should the output be printed?
+      //  * for status, always
+      //  * whenever the process exited non-normally
+      //  * when debugging
+      //  * other circumstances?
+      // I could try printing always, to better understand this question.
+      // The unfiltered output, if it is needed: to print, or to classify a failure.  Reading it may
+      // read the whole temporary file, so it is read at most once.
+      @Nullable String unfilteredOutput =
+          (showNormalOutput || exitValue != 0 || debugReplacers || debugProcessOutput)
+              ? outStream.contents()
+              : null;
+      if (unfilteredOutput != null) {
+        // Filter then print the output.
+        String output = unfilteredOutput;
+
+        if (debugReplacers || debugProcessOutput) {
+          out.println("preoutput=<<<" + output + ">>>");
+        }
+        if (!output.equals("")) {
+          boolean noReplacement = false;
+          long replaceStartNanos = System.nanoTime();
+          for (Replacer r : replacers) {
+            String printableRegexp = r.regexp.toString().replace("\r", "\\r").replace("\n", "\\n");
+            if (debugReplacers) {
+              out.println("midoutput_pre[" + printableRegexp + "]=<<<" + output + ">>>");
+            }
+            String origOutput = output;
+            // Don't loop, because some regexps will continue to match repeatedly
+            try {
+              output = r.replaceAll(output);
+            } catch (StackOverflowError soe) {
+              noReplacement = true;
+            } catch (Throwable e) {
+              out.println("Exception in replaceAll.");
+              out.println("  defaultDirectory = " + defaultDirectory);
+              out.println("  cmdLine = " + cmdLine);
+              out.println("  regexp = " + printableRegexp);
+              out.println("  orig output (size " + origOutput.length() + ") = " + origOutput);
+              out.println("  output (size " + output.length() + ") = " + output);
+              throw e;
+            }
+            if (debugReplacers) {
+              out.println("midoutput_post[" + printableRegexp + "]=<<<" + output + ">>>");
+            }
           }
-          String origOutput = output;
-          // Don't loop, because some regexps will continue to match repeatedly
-          try {
-            output = r.replaceAll(output);
-          } catch (StackOverflowError soe) {
-            noReplacement = true;
-          } catch (Throwable e) {
-            System.out.println("Exception in replaceAll.");
-            System.out.println("  defaultDirectory = " + defaultDirectory);
-            System.out.println("  cmdLine = " + cmdLine);
-            System.out.println("  regexp = " + printableRegexp);
-            System.out.println("  orig output (size " + origOutput.length() + ") = " + origOutput);
-            System.out.println("  output (size " + output.length() + ") = " + output);
-            throw e;
+          Metrics.REPLACERS.recordSince(replaceStartNanos);
+          if (debugReplacers || debugProcessOutput) {
+            out.println("postoutput=<<<" + output + ">>>");
           }
           if (debugReplacers) {
-            System.out.println("midoutput_post[" + printableRegexp + "]=<<<" + output + ">>>");
+            for (int i = 0; i < Math.min(100, output.length()); i++) {
+              out.println(
+                  i + ": " + (int) output.charAt(i) + "\n        \"" + output.charAt(i) + "\"");
+            }
           }
-        }
-        if (debugReplacers || debugProcessOutput) {
-          System.out.println("postoutput=<<<" + output + ">>>");
-        }
-        if (debugReplacers) {
-          for (int i = 0; i < Math.min(100, output.length()); i++) {
-            System.out.println(
-                i + ": " + (int) output.charAt(i) + "\n        \"" + output.charAt(i) + "\"");
+          if (noReplacement) {
+            out.println(
+                "No replacement done in " + defaultDirectory + " because output is too long.");
+          }
+          if (output.startsWith("You are not currently on a branch.")) {
+            out.println(pb.directory() + ":");
+          }
+          out.print(output);
+          if (noReplacement) {
+            out.println("End of output for " + defaultDirectory + ".");
           }
-        }
-        if (noReplacement) {
-          System.out.println(
-              "No replacement done in " + defaultDirectory + " because output is too long.");
-        }
-        if (output.startsWith("You are not currently on a branch.")) {
-          System.out.println(pb.directory() + ":");
-        }
-        System.out.print(output);
-        if (noReplacement) {
-          System.out.println("End of output for " + defaultDirectory + ".");
         }
       }
+      out.flush();
+
+      boolean transientFailure =
+          exitValue != 0
+              && !timedOut
+              && unfilteredOutput != null
+              && TransientFailures.isTransient(unfilteredOutput);
+      return new CommandRecord(
+          List.copyOf(pb.command()), exitValue, timedOut, spawnNanos, wallNanos, transientFailure);
+    } finally {
+      try {
+        outStream.close();
+      } catch (IOException e) {
+        System.err.println("Problem deleting temporary file: " + e.getMessage());
+      }
     }
-    System.out.flush();
-
-    return exitValue;
   }
 
   /**
@@ -0,0 +1,107 @@
+package org.plumelib.multiversioncontrol;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * JDK Flight Recorder events for the phases of a run of mvc. To record them, run mvc with {@code
+ * -XX:StartFlightRecording=filename=mvc.jfr}, and view the recording with JDK Mission Control or
+ * {@code jfr print --categories mvc mvc.jfr}.
+ *
+ * <p>When recording is off, {@link Event#shouldCommit} is false, so the event fields are never
+ * computed; the JIT compiler removes the event objects themselves.
+ */
+final class MvcEvents {
+
+  /** Do not instantiate. */
+  private MvcEvents() {
+    throw new Error("Do not instantiate");
+  }
+
+  /** Searching found a version control directory, and made a clone description for it. */
+  @Name("org.plumelib.mvc.Discovery")
+  @Label("Clone Discovery")
+  @Category("mvc")
+  @Description("A version control directory found while searching for clones")
+  @StackTrace(false)
+  static final class DiscoveryEvent extends Event {
+    /** The version control directory, such as "/home/me/proj/.git". */
+    @Label("Directory")
+    String directory = "";
+
+    /** The type of the repository, such as "GIT". */
+    @Label("Repository Type")
+    String repoType = "";
+  }
+
+  /** One line of the checkouts file was parsed. */
+  @Name("org.plumelib.mvc.ConfigLine")
+  @Label("Checkouts File Line")
+  @Category("mvc")
+  @Description("One line of the checkouts file")
+  @StackTrace(false)
+  static final class ConfigLineEvent extends Event {
+    /** The checkouts file. */
+    @Label("File")
+    String file = "";
+
+    /** The line number. */
+    @Label("Line Number")
+    long lineNumber;
+
+    /** The line. */
+    @Label("Line")
+    String line = "";
+  }
+
+  /** An external command, such as {@code git pull}, was run. */
+  @Name("org.plumelib.mvc.Process")
+  @Label("Command")
+  @Category("mvc")
+  @Description("An external command run for a clone")
+  @StackTrace(false)
+  static final class ProcessEvent extends Event {
+    /** The command and its arguments. */
+    @Label("Command")
+    String command = "";
+
+    /** The directory in which the command was run. */
+    @Label("Directory")
+    String directory = "";
+
+    /** The exit status of the command. */
+    @Label("Exit Code")
+    int exitCode;
+
+    /** True if the command was killed because it exceeded its time limit. */
+    @Label("Timed Out")
+    boolean timedOut;
+
+    /** The size of the command's output. */
+    @Label("Output Size")
+    @DataAmount
+    long outputBytes;
+  }
+
+  /** A replacer was applied to the output of a command. */
+  @Name("org.plumelib.mvc.Replacer")
+  @Label("Output Filter")
+  @Category("mvc")
+  @Description("A regular-expression replacement applied to the output of a command")
+  @StackTrace(false)
+  static final class ReplacerEvent extends Event {
+    /** The regular expression. */
+    @Label("Pattern")
+    String pattern = "";
+
+    /** The length of the text to which the replacement was applied. */
+    @Label("Input Size")
+    @DataAmount
+    long inputSize;
+  }
+}
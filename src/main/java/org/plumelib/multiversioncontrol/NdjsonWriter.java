@@ -0,0 +1,173 @@
+package org.plumelib.multiversioncontrol;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.plumelib.multiversioncontrol.MultiVersionControl.Checkout;
+
+/**
+ * Writes the result for each clone as one line of JSON (the format known as NDJSON or JSON Lines),
+ * for {@code --format=ndjson}. For example (split over several lines here):
+ *
+ * <pre>
+ * {"repoType":"GIT","directory":"/home/me/proj","action":"pull","lines":["..."],"exitCode":0,
+ *  "timedOut":false,"commands":[{"command":["git","pull","-q"],"exitCode":0,"timedOut":false,
+ *  "spawnMicros":812,"wallMicros":402113}]}</pre>
+ *
+ * The exit code of a clone is that of the first command that failed, or 0 if none did. A result
+ * that was taken from the status cache has {@code "cached":true} and no commands. A clone that was
+ * retried after a transient failure has {@code "retries"}, and only the commands of its last try.
+ *
+ * <p>Output is buffered. It is flushed when the buffer is full, when a second has passed since the
+ * last flush, and when {@link #flush} is called, rather than after every line.
+ */
+final class NdjsonWriter {
+
+  /** The size of the output buffer, in characters. */
+  private static final int BUFFER_SIZE = 1 << 16;
+
+  /** The longest time that a result may stay in the buffer, in nanoseconds. */
+  private static final long MAX_FLUSH_DELAY_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+  /** Where to write the output. */
+  private final OutputStream out;
+
+  /** Output that has not yet been written to {@link #out}. */
+  private final StringBuilder buffer = new StringBuilder(BUFFER_SIZE);
+
+  /** The value of {@link System#nanoTime} at the last flush. */
+  private long lastFlush = System.nanoTime();
+
+  /**
+   * Creates an NdjsonWriter.
+   *
+   * @param out where to write the output
+   */
+  NdjsonWriter(OutputStream out) {
+    this.out = out;
+  }
+
+  /**
+   * Writes the result for one clone.
+   *
+   * @param c the clone
+   * @param action the action, such as "pull"
+   * @param output the filtered output for the clone
+   * @param commands the commands that were run for the clone
+   * @param cached true if the output was taken from the status cache
+   * @param retries how many times the clone was retried after a transient failure
+   */
+  synchronized void write(
+      Checkout c,
+      String action,
+      String output,
+      List<CommandRecord> commands,
+      boolean cached,
+      int retries) {
+    buffer.append("{\"repoType\":");
+    appendString(buffer, c.repoType.toString());
+    buffer.append(",\"directory\":");
+    appendString(buffer, c.directory.toString());
+    buffer.append(",\"action\":");
+    appendString(buffer, action);
+    buffer.append(",\"lines\":[");
+    if (!output.isEmpty()) {
+      String[] lines = output.split("\n", -1);
+      // Omit the empty string after the final newline.
+      int count = output.endsWith("\n") ? lines.length - 1 : lines.length;
+      for (int i = 0; i < count; i++) {
+        if (i > 0) {
+          buffer.append(',');
+        }
+        appendString(buffer, lines[i]);
+      }
+    }
+    int exitCode = 0;
+    boolean timedOut = false;
+    for (CommandRecord command : commands) {
+      if (exitCode == 0) {
+        exitCode = command.exitValue();
+      }
+      timedOut |= command.timedOut();
+    }
+    buffer.append("],\"exitCode\":").append(exitCode);
+    buffer.append(",\"timedOut\":").append(timedOut);
+    if (cached) {
+      buffer.append(",\"cached\":true");
+    }
+    if (retries > 0) {
+      buffer.append(",\"retries\":").append(retries);
+    }
+    buffer.append(",\"commands\":[");
+    for (int i = 0; i < commands.size(); i++) {
+      CommandRecord command = commands.get(i);
+      if (i > 0) {
+        buffer.append(',');
+      }
+      buffer.append("{\"command\":[");
+      for (int j = 0; j < command.command().size(); j++) {
+        if (j > 0) {
+          buffer.append(',');
+        }
+        appendString(buffer, command.command().get(j));
+      }
+      buffer.append("],\"exitCode\":").append(command.exitValue());
+      buffer.append(",\"timedOut\":").append(command.timedOut());
+      buffer.append(",\"spawnMicros\":");
+      buffer.append(TimeUnit.NANOSECONDS.toMicros(command.spawnNanos()));
+      buffer.append(",\"wallMicros\":");
+      buffer.append(TimeUnit.NANOSECONDS.toMicros(command.wallNanos()));
+      buffer.append('}');
+    }
+    buffer.append("]}\n");
+
+    if (buffer.length() >= BUFFER_SIZE
+        || System.nanoTime() - lastFlush > MAX_FLUSH_DELAY_NANOS) {
+      flush();
+    }
+  }
+
+  /**
+   * Appends a string to {@code sb} as a JSON string literal.
+   *
+   * @param sb where to append the literal
+   * @param s the string
+   */
+  private static void appendString(StringBuilder sb, String s) {
+    sb.append('"');
+    for (int i = 0; i < s.length(); i++) {
+      char ch = s.charAt(i);
+      switch (ch) {
+        case '"' -> sb.append("\\\"");
+        case '\\' -> sb.append("\\\\");
+        case '\n' -> sb.append("\\n");
+        case '\r' -> sb.append("\\r");
+        case '\t' -> sb.append("\\t");
+        default -> {
+          if (ch < 0x20) {
+            sb.append(String.format("\\u%04x", (int) ch));
+          } else {
+            sb.append(ch);
+          }
+        }
+      }
+    }
+    sb.append('"');
+  }
+
+  /** Writes all buffered output. */
+  synchronized void flush() {
+    try {
+      out.write(buffer.toString().getBytes(UTF_8));
+      out.flush();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    buffer.setLength(0);
+    lastFlush = System.nanoTime();
+  }
+}
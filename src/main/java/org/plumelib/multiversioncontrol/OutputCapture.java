@@ -0,0 +1,169 @@
+package org.plumelib.multiversioncontrol;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * Captures the output of a command, using a bounded amount of memory. There are two policies:
+ *
+ * <ul>
+ *   <li>If the output will probably be discarded, as for a pull that succeeds, only its last
+ *       {@link #TAIL_LIMIT} bytes are kept, in a ring buffer. That is where a failing command
+ *       prints its error message.
+ *   <li>Otherwise, the first {@link #MEMORY_LIMIT} bytes are kept in memory, and the rest is
+ *       written to a temporary file. The complete output is read back only when {@link #contents}
+ *       is called.
+ * </ul>
+ *
+ * <p>The output and error streams of a command are copied by two threads, so the write methods are
+ * synchronized.
+ */
+final class OutputCapture extends OutputStream {
+
+  /** The number of bytes kept when the output will probably be discarded. */
+  static final int TAIL_LIMIT = 16 * 1024;
+
+  /** The number of bytes kept in memory when the output is kept; the rest goes to a file. */
+  static final int MEMORY_LIMIT = 256 * 1024;
+
+  /** If only the end of the output is kept, the ring buffer that holds it; otherwise, null. */
+  private final byte @Nullable [] tail;
+
+  /** If all the output is kept, its first {@link #MEMORY_LIMIT} bytes. */
+  private final ByteArrayOutputStream head = new ByteArrayOutputStream();
+
+  /** The file that holds the output after the first {@link #MEMORY_LIMIT} bytes, or null. */
+  private @Nullable Path spillFile = null;
+
+  /** The stream that writes {@link #spillFile}, or null. */
+  private @Nullable OutputStream spill = null;
+
+  /** The total number of bytes written. */
+  private long size = 0;
+
+  /**
+   * Creates an OutputCapture.
+   *
+   * @param tailOnly if true, the output will probably be discarded, so keep only its end
+   */
+  OutputCapture(boolean tailOnly) {
+    this.tail = tailOnly ? new byte[TAIL_LIMIT] : null;
+  }
+
+  @Override
+  public synchronized void write(int b) throws IOException {
+    write(new byte[] {(byte) b}, 0, 1);
+  }
+
+  @Override
+  public synchronized void write(byte[] b, int off, int len) throws IOException {
+    if (tail != null) {
+      // Copy at most the last TAIL_LIMIT bytes, in at most two pieces.
+      int skip = Math.max(0, len - TAIL_LIMIT);
+      long pos = size + skip;
+      int remaining = len - skip;
+      int from = off + skip;
+      while (remaining > 0) {
+        int index = (int) (pos % TAIL_LIMIT);
+        int n = Math.min(remaining, TAIL_LIMIT - index);
+        System.arraycopy(b, from, tail, index, n);
+        pos += n;
+        from += n;
+        remaining -= n;
+      }
+    } else {
+      int inMemory = (int) Math.max(0, Math.min(len, MEMORY_LIMIT - size));
+      head.write(b, off, inMemory);
+      if (inMemory < len) {
+        spillStream().write(b, off + inMemory, len - inMemory);
+      }
+    }
+    size += len;
+  }
+
+  /**
+   * Returns the stream to which output beyond {@link #MEMORY_LIMIT} is written, creating the file
+   * if necessary.
+   *
+   * @return the stream that writes the spill file
+   * @throws IOException if the file cannot be created
+   */
+  private OutputStream spillStream() throws IOException {
+    OutputStream result = spill;
+    if (result == null) {
+      Path file = Files.createTempFile("mvc-output", ".tmp");
+      spillFile = file;
+      result = new BufferedOutputStream(Files.newOutputStream(file));
+      spill = result;
+    }
+    return result;
+  }
+
+  /**
+   * Returns the number of bytes written, including any that were not kept.
+   *
+   * @return the number of bytes written
+   */
+  synchronized long size() {
+    return size;
+  }
+
+  /**
+   * Returns the captured output. If only the end of the output was kept, the result starts at a
+   * line boundary, after a line that says how much output was omitted.
+   *
+   * @return the captured output
+   */
+  synchronized String contents() {
+    if (tail != null) {
+      if (size <= TAIL_LIMIT) {
+        return new String(tail, 0, (int) size, UTF_8);
+      }
+      int start = (int) (size % TAIL_LIMIT);
+      byte[] ordered = new byte[TAIL_LIMIT];
+      System.arraycopy(tail, start, ordered, 0, TAIL_LIMIT - start);
+      System.arraycopy(tail, 0, ordered, TAIL_LIMIT - start, start);
+      String text = new String(ordered, UTF_8);
+      // Drop the partial first line.
+      int newline = text.indexOf('\n');
+      String lines = (newline == -1) ? text : text.substring(newline + 1);
+      long omitted = size - lines.getBytes(UTF_8).length;
+      return "[" + omitted + " bytes of output omitted]\n" + lines;
+    }
+    if (spillFile == null) {
+      return head.toString(UTF_8);
+    }
+    try {
+      assert spill != null : "@AssumeAssertion(nullness): spill is set with spillFile";
+      spill.flush();
+      // Decode all the bytes together, in case a character spans the two parts.
+      ByteArrayOutputStream all = new ByteArrayOutputStream();
+      head.writeTo(all);
+      all.write(Files.readAllBytes(spillFile));
+      return all.toString(UTF_8);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /** Deletes the spill file, if any. */
+  @Override
+  public synchronized void close() throws IOException {
+    if (spill != null) {
+      spill.close();
+      spill = null;
+    }
+    if (spillFile != null) {
+      Files.deleteIfExists(spillFile);
+      spillFile = null;
+    }
+  }
+}
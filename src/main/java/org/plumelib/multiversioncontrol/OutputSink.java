@@ -0,0 +1,221 @@
+package org.plumelib.multiversioncontrol;
+
+import java.io.Console;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.Method;
+import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
+import java.nio.charset.UnsupportedCharsetException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * A buffer in front of standard output. {@link System#out} flushes after every line, which makes a
+ * system call per line; when mvc prints many lines, as {@code mvc list} does for a large set of
+ * clones, most of its time goes to those calls.
+ *
+ * <p>Output is written when the buffer fills, and at most {@link #MAX_FLUSH_DELAY_NANOS} after it
+ * was printed. A call to {@link #flush}, which mvc makes after the output for each clone, writes
+ * the output immediately only if standard output is a terminal, where someone is watching it. All
+ * output is written when the program exits, and before anything is written to {@link System#err},
+ * so that messages on the two streams stay in order. The progress line is instead written to {@link
+ * #progressStream()}, because it is redrawn several times a second.
+ */
+final class OutputSink extends OutputStream {
+
+  /** The size of the buffer, in bytes. */
+  private static final int BUFFER_SIZE = 1 << 16;
+
+  /** The longest time that output may stay in the buffer, in nanoseconds. */
+  private static final long MAX_FLUSH_DELAY_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+  /** Standard error, without writing the buffered output first; set by {@link #install}. */
+  private static @Nullable PrintStream progressStream = null;
+
+  /** Where to write the output. */
+  private final OutputStream out;
+
+  /** If true, {@link #flush} writes the output immediately. */
+  private final boolean interactive;
+
+  /** Output that has not yet been written to {@link #out}. */
+  private final byte[] buffer = new byte[BUFFER_SIZE];
+
+  /** The number of bytes in {@link #buffer}. */
+  private int count = 0;
+
+  /** The value of {@link System#nanoTime} when the buffer was last written. */
+  private long lastWrite = System.nanoTime();
+
+  /**
+   * Creates an OutputSink.
+   *
+   * @param out where to write the output
+   * @param interactive if true, {@link #flush} writes the output immediately
+   */
+  private OutputSink(OutputStream out, boolean interactive) {
+    this.out = out;
+    this.interactive = interactive;
+  }
+
+  /**
+   * Replaces {@link System#out} by a stream that writes, through an OutputSink, to standard output.
+   * The sink is written out periodically by a background thread, and when the program exits.
+   */
+  static void install() {
+    OutputSink sink = new OutputSink(new FileOutputStream(FileDescriptor.out), isTerminal());
+    System.setOut(new PrintStream(sink, false, charset("stdout.encoding")));
+    OutputStream err = new FileOutputStream(FileDescriptor.err);
+    progressStream = new PrintStream(err, false, charset("stderr.encoding"));
+    System.setErr(
+        new PrintStream(
+            new OutputStream() {
+              @Override
+              public void write(int b) throws IOException {
+                sink.writeBuffer();
+                err.write(b);
+              }
+
+              @Override
+              public void write(byte[] b, int off, int len) throws IOException {
+                sink.writeBuffer();
+                err.write(b, off, len);
+              }
+            },
+            true,
+            charset("stderr.encoding")));
+    ScheduledExecutorService flusher =
+        Executors.newSingleThreadScheduledExecutor(
+            r -> {
+              Thread t = new Thread(r, "mvc-output");
+              t.setDaemon(true);
+              return t;
+            });
+    flusher.scheduleAtFixedRate(
+        sink::writeIfStale, MAX_FLUSH_DELAY_NANOS, MAX_FLUSH_DELAY_NANOS, TimeUnit.NANOSECONDS);
+    Runtime.getRuntime().addShutdownHook(new Thread(sink::writeQuietly, "mvc-output-exit"));
+  }
+
+  /**
+   * Returns the stream on which to draw a progress line. It is standard error, but unlike {@link
+   * System#err} it does not write the buffered standard output first. That is not needed for
+   * ordering: when standard output is a terminal, it is written after each clone anyway.
+   *
+   * @return the stream on which to draw a progress line
+   */
+  static PrintStream progressStream() {
+    PrintStream result = progressStream;
+    return (result != null) ? result : System.err;
+  }
+
+  /**
+   * Returns true if standard input and output are a terminal.
+   *
+   * @return true if standard input and output are a terminal
+   */
+  private static boolean isTerminal() {
+    Console console = System.console();
+    if (console == null) {
+      return false;
+    }
+    try {
+      // Since JDK 22, there is a console even if standard output is redirected.
+      Method isTerminal = Console.class.getMethod("isTerminal");
+      return Boolean.TRUE.equals(isTerminal.invoke(console));
+    } catch (NoSuchMethodException e) {
+      // Before JDK 22, there is a console only if standard input and output are a terminal.
+      return true;
+    } catch (ReflectiveOperationException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Returns the character set named by a system property, such as {@code stdout.encoding}, or the
+   * default character set if the property is not set.
+   *
+   * @param property the name of a system property
+   * @return the character set named by the property, or the default character set
+   */
+  private static Charset charset(String property) {
+    String name = System.getProperty(property);
+    if (name != null) {
+      try {
+        return Charset.forName(name);
+      } catch (IllegalCharsetNameException | UnsupportedCharsetException e) {
+        // Use the default.
+      }
+    }
+    return Charset.defaultCharset();
+  }
+
+  @Override
+  public synchronized void write(int b) throws IOException {
+    if (count == BUFFER_SIZE) {
+      writeBuffer();
+    }
+    buffer[count++] = (byte) b;
+  }
+
+  @Override
+  public synchronized void write(byte[] b, int off, int len) throws IOException {
+    if (len > BUFFER_SIZE - count) {
+      writeBuffer();
+    }
+    if (len >= BUFFER_SIZE) {
+      out.write(b, off, len);
+    } else {
+      System.arraycopy(b, off, buffer, count, len);
+      count += len;
+    }
+  }
+
+  /**
+   * Writes the buffered output if standard output is a terminal, or if the output has been
+   * buffered for long enough; otherwise, leaves it for later.
+   */
+  @Override
+  public synchronized void flush() throws IOException {
+    if (interactive || System.nanoTime() - lastWrite >= MAX_FLUSH_DELAY_NANOS) {
+      writeBuffer();
+    }
+  }
+
+  /**
+   * Writes the buffered output and flushes the underlying stream.
+   *
+   * @throws IOException if the output cannot be written
+   */
+  private synchronized void writeBuffer() throws IOException {
+    if (count > 0) {
+      out.write(buffer, 0, count);
+      count = 0;
+      out.flush();
+    }
+    lastWrite = System.nanoTime();
+  }
+
+  /** Writes the buffered output if it has been buffered for long enough. */
+  private void writeIfStale() {
+    try {
+      flush();
+    } catch (IOException e) {
+      // Standard output has been closed; there is nowhere to report the problem.
+    }
+  }
+
+  /** Writes the buffered output, ignoring errors. */
+  private void writeQuietly() {
+    try {
+      writeBuffer();
+    } catch (IOException e) {
+      // Standard output has been closed; there is nowhere to report the problem.
+    }
+  }
+}
@@ -0,0 +1,291 @@
+package org.plumelib.multiversioncontrol;
+
+import java.io.PrintStream;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The progress line for {@code --progress}, such as
+ *
+ * <pre>
+ * 412/1000 done, 8 running, 2 failed, 1 timed out, ETA 3m12s</pre>
+ *
+ * It is printed to standard error and redrawn in place, by a background thread, at most once per
+ * {@link #REFRESH_MILLIS}.
+ *
+ * <p>The estimated time remaining is the sum of the expected durations of the clones that have not
+ * finished, divided by the number of threads. A clone's expected duration is taken from the {@link
+ * DurationHistory}; a clone with no history is expected to take the mean time of the clones that
+ * have finished in this run.
+ *
+ * <p>Clones are identified by their position, from 0, in the order in which they are processed.
+ * The state of each clone is kept in arrays, so that tracking a large number of clones takes
+ * little memory.
+ *
+ * <p>Output for standard output must be printed by {@link #printAbove}, which erases the progress
+ * line first. It holds the same lock as the background thread, so the progress line is never
+ * interleaved with other output.
+ */
+final class Progress {
+
+  /** The minimum time between redraws of the progress line, in milliseconds. */
+  private static final long REFRESH_MILLIS = 250;
+
+  /** The value of {@link #states} for a clone that has not started, or will be retried. */
+  private static final byte PENDING = 0;
+
+  /** The value of {@link #states} for a clone that is being processed. */
+  private static final byte RUNNING = 1;
+
+  /** The value of {@link #states} for a clone that has finished. */
+  private static final byte FINISHED = 2;
+
+  /** The value of {@link #results} for a clone whose commands all succeeded, on its latest try. */
+  private static final byte SUCCEEDED = 0;
+
+  /** The value of {@link #results} for a clone for which some command failed, on its latest try. */
+  private static final byte FAILED = 1;
+
+  /** The value of {@link #results} for a clone for which some command timed out. */
+  private static final byte TIMED_OUT = 2;
+
+  /** Where to print the progress line. */
+  private final PrintStream err;
+
+  /** The number of clones. */
+  private final int total;
+
+  /** The number of clones that are processed at once. */
+  private final int jobs;
+
+  /** For each clone, its expected duration, in nanoseconds, or -1 if it is not known. */
+  private final long[] estimates;
+
+  /** For each clone, {@link #PENDING}, {@link #RUNNING}, or {@link #FINISHED}. */
+  private final byte[] states;
+
+  /** For each clone, {@link #SUCCEEDED}, {@link #FAILED}, or {@link #TIMED_OUT}. */
+  private final byte[] results;
+
+  /** For each running clone, the value of {@link System#nanoTime} when it started. */
+  private final long[] startTimes;
+
+  /** The number of clones that have not finished. */
+  private int pending;
+
+  /** The number of clones that are running. */
+  private int running = 0;
+
+  /** The number of clones for which some command failed, on their latest try. */
+  private int failed = 0;
+
+  /** The number of clones for which some command timed out, on their latest try. */
+  private int timedOut = 0;
+
+  /** The number of clones that were run (not taken from a cache) and have finished. */
+  private int measured = 0;
+
+  /** The total duration of the clones counted by {@link #measured}, in nanoseconds. */
+  private long measuredNanos = 0;
+
+  /** The length of the progress line that is currently displayed, or 0 if none is. */
+  private int displayedLength = 0;
+
+  /** Redraws the progress line periodically. */
+  private final ScheduledExecutorService refresher =
+      Executors.newSingleThreadScheduledExecutor(
+          r -> {
+            Thread t = new Thread(r, "mvc-progress");
+            t.setDaemon(true);
+            return t;
+          });
+
+  /**
+   * Creates a Progress. Call {@link #start} to display it.
+   *
+   * @param estimates for each clone, in the order in which they are processed, its expected
+   *     duration in nanoseconds, or -1 if it is not known
+   * @param jobs the number of clones that are processed at once
+   * @param err where to print the progress line
+   */
+  Progress(long[] estimates, int jobs, PrintStream err) {
+    this.err = err;
+    this.total = estimates.length;
+    this.jobs = Math.max(1, jobs);
+    this.estimates = estimates;
+    this.states = new byte[total];
+    this.results = new byte[total];
+    this.startTimes = new long[total];
+    this.pending = total;
+  }
+
+  /** Starts displaying the progress line. */
+  void start() {
+    refresher.scheduleAtFixedRate(this::redraw, 0, REFRESH_MILLIS, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Notes that processing of a clone has started.
+   *
+   * @param position the position of the clone
+   */
+  synchronized void started(int position) {
+    states[position] = RUNNING;
+    startTimes[position] = System.nanoTime();
+    running++;
+  }
+
+  /**
+   * Notes that a clone has finished. If {@link #started} was not called for it, its result was
+   * taken from a cache.
+   *
+   * @param position the position of the clone
+   * @param commands the commands that were run for the clone
+   */
+  synchronized void finished(int position, List<CommandRecord> commands) {
+    if (states[position] == RUNNING) {
+      measuredNanos += System.nanoTime() - startTimes[position];
+      measured++;
+      running--;
+    }
+    if (commands.stream().anyMatch(CommandRecord::timedOut)) {
+      setResult(position, TIMED_OUT);
+    } else if (commands.stream().anyMatch(r -> r.exitValue() != 0)) {
+      setResult(position, FAILED);
+    } else {
+      setResult(position, SUCCEEDED);
+    }
+    states[position] = FINISHED;
+    pending--;
+  }
+
+  /**
+   * Sets the result of a clone, and updates the counts of failed and timed-out clones.
+   *
+   * @param position the position of the clone
+   * @param result {@link #SUCCEEDED}, {@link #FAILED}, or {@link #TIMED_OUT}
+   */
+  private synchronized void setResult(int position, byte result) {
+    if (results[position] == FAILED) {
+      failed--;
+    } else if (results[position] == TIMED_OUT) {
+      timedOut--;
+    }
+    results[position] = result;
+    if (result == FAILED) {
+      failed++;
+    } else if (result == TIMED_OUT) {
+      timedOut++;
+    }
+  }
+
+  /**
+   * Notes that a clone that has finished will be processed again.
+   *
+   * @param position the position of the clone
+   */
+  synchronized void retrying(int position) {
+    if (states[position] == FINISHED) {
+      states[position] = PENDING;
+      pending++;
+    }
+  }
+
+  /**
+   * Erases the progress line, then runs {@code print}, which prints output for one clone. The
+   * progress line is redrawn at the next refresh.
+   *
+   * @param print prints output for one clone
+   */
+  synchronized void printAbove(Runnable print) {
+    erase();
+    print.run();
+  }
+
+  /** Stops redrawing the progress line, and leaves its final state on the screen. */
+  void stop() {
+    refresher.shutdownNow();
+    synchronized (this) {
+      redraw();
+      err.println();
+      err.flush();
+      displayedLength = 0;
+    }
+  }
+
+  /** Erases the progress line, if it is displayed. */
+  private synchronized void erase() {
+    if (displayedLength > 0) {
+      err.print("\r" + " ".repeat(displayedLength) + "\r");
+      err.flush();
+      displayedLength = 0;
+    }
+  }
+
+  /** Draws the progress line, replacing the one that is displayed. */
+  private synchronized void redraw() {
+    String line =
+        String.format(
+            "%d/%d done, %d running, %d failed, %d timed out",
+            total - pending, total, running, failed, timedOut);
+    long etaNanos = etaNanos();
+    if (etaNanos >= 0) {
+      line += ", ETA " + formatDuration(etaNanos);
+    }
+    int padding = Math.max(0, displayedLength - line.length());
+    err.print("\r" + line + " ".repeat(padding));
+    err.flush();
+    displayedLength = line.length();
+  }
+
+  /**
+   * Returns the estimated time until all the clones have finished, or -1 if all have finished or
+   * there is no basis for an estimate.
+   *
+   * @return the estimated time remaining, in nanoseconds, or -1
+   */
+  private synchronized long etaNanos() {
+    long meanNanos = (measured == 0) ? -1 : measuredNanos / measured;
+    long now = System.nanoTime();
+    long remaining = 0;
+    int clones = 0;
+    for (int i = 0; i < total; i++) {
+      if (states[i] == FINISHED) {
+        continue;
+      }
+      long expected = (estimates[i] < 0) ? meanNanos : estimates[i];
+      if (expected < 0) {
+        return -1;
+      }
+      if (states[i] == RUNNING) {
+        expected = Math.max(0, expected - (now - startTimes[i]));
+      }
+      remaining += expected;
+      clones++;
+    }
+    if (clones == 0) {
+      return -1;
+    }
+    return remaining / Math.min(jobs, clones);
+  }
+
+  /**
+   * Formats a duration briefly, such as "3m12s".
+   *
+   * @param nanos a duration, in nanoseconds
+   * @return the duration, formatted for people to read
+   */
+  private static String formatDuration(long nanos) {
+    Duration d = Duration.ofNanos(nanos);
+    if (d.toHours() > 0) {
+      return String.format("%dh%02dm", d.toHours(), d.toMinutesPart());
+    } else if (d.toMinutes() > 0) {
+      return String.format("%dm%02ds", d.toMinutes(), d.toSecondsPart());
+    } else {
+      return d.toSeconds() + "s";
+    }
+  }
+}
@@ -0,0 +1,108 @@
+package org.plumelib.multiversioncontrol;
+
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Operations on repository URLs, such as the {@code repository} field of a {@link
+ * MultiVersionControl.Checkout}. Different spellings of the same URL are common: a clone may have
+ * been made from "https://github.com/org/repo.git" and another from
+ * "https://GitHub.com/org/repo/", and a third from "git@github.com:org/repo".
+ */
+final class RepositoryUrls {
+
+  /** Matches an scp-like git URL, such as "git@github.com:org/repo". */
+  private static final Pattern SCP_LIKE = Pattern.compile("^(?:([^@/:]+)@)?([^/:]+):(?!//)(.*)$");
+
+  /** Matches a URL with a scheme and an authority, such as "https://user@host:port/path". */
+  private static final Pattern WITH_SCHEME =
+      Pattern.compile("^([A-Za-z][A-Za-z0-9+.-]*)://(?:([^@/]*)@)?([^/]*)(.*)$");
+
+  /** The maximum length of the readable part of a name returned by {@link #cacheName}. */
+  private static final int MAX_CACHE_NAME_PREFIX = 80;
+
+  /** Do not instantiate. */
+  private RepositoryUrls() {
+    throw new Error("Do not instantiate");
+  }
+
+  /**
+   * Returns a normalized form of a repository URL, so that different spellings of the same URL
+   * are equal. The scheme and host are lowercased; an scp-like git URL is converted to an ssh URL;
+   * a path is converted to a file URL; and trailing slashes and a trailing ".git" are removed. The
+   * user name is kept, because it may affect which repository the server provides.
+   *
+   * @param url a repository URL
+   * @return the normalized URL
+   */
+  @SuppressWarnings("nullness:dereference.of.nullable") // only non-optional groups are dereferenced
+  static String normalize(String url) {
+    String result = url.trim();
+    Matcher withScheme = WITH_SCHEME.matcher(result);
+    Matcher scpLike = SCP_LIKE.matcher(result);
+    if (withScheme.matches()) {
+      String user = withScheme.group(2);
+      result =
+          withScheme.group(1).toLowerCase(Locale.ROOT)
+              + "://"
+              + (user == null ? "" : user + "@")
+              + withScheme.group(3).toLowerCase(Locale.ROOT)
+              + withScheme.group(4);
+    } else if (result.startsWith("/")) {
+      result = "file://" + result;
+    } else if (scpLike.matches()) {
+      String user = scpLike.group(1);
+      String path = scpLike.group(3);
+      result =
+          "ssh://"
+              + (user == null ? "" : user + "@")
+              + scpLike.group(2).toLowerCase(Locale.ROOT)
+              + (path.startsWith("/") ? "" : "/")
+              + path;
+    }
+    while (result.endsWith("/")) {
+      result = result.substring(0, result.length() - 1);
+    }
+    if (result.endsWith(".git")) {
+      result = result.substring(0, result.length() - ".git".length());
+    }
+    while (result.endsWith("/")) {
+      // "/path/to/repo/.git" is the same repository as "/path/to/repo".
+      result = result.substring(0, result.length() - 1);
+    }
+    return result;
+  }
+
+  /**
+   * Returns the host of a repository, or the empty string for a repository on the local file
+   * system.
+   *
+   * @param normalizedUrl a normalized repository URL, as returned by {@link #normalize}
+   * @return the host of the repository, or ""
+   */
+  static String host(String normalizedUrl) {
+    Matcher withScheme = WITH_SCHEME.matcher(normalizedUrl);
+    if (!withScheme.matches()) {
+      return "";
+    }
+    String hostAndPort = withScheme.group(3);
+    return (hostAndPort == null) ? "" : hostAndPort;
+  }
+
+  /**
+   * Returns a file name for a cache that holds a copy of the given repository. The name is
+   * readable, and distinct URLs yield distinct names.
+   *
+   * @param normalizedUrl a normalized repository URL, as returned by {@link #normalize}
+   * @return a file name for a copy of the repository
+   */
+  static String cacheName(String normalizedUrl) {
+    String readable =
+        normalizedUrl.replaceFirst("^[a-z]+://", "").replaceAll("[^A-Za-z0-9._-]+", "_");
+    if (readable.length() > MAX_CACHE_NAME_PREFIX) {
+      readable = readable.substring(readable.length() - MAX_CACHE_NAME_PREFIX);
+    }
+    return readable + "-" + String.format("%08x", normalizedUrl.hashCode());
+  }
+}
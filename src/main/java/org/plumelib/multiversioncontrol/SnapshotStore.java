@@ -0,0 +1,350 @@
+package org.plumelib.multiversioncontrol;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collection;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.plumelib.multiversioncontrol.MultiVersionControl.Checkout;
+
+/**
+ * A compact store of one snapshot per clone, used to report only the clones whose state changed
+ * since the previous run. A snapshot records the clone's HEAD and whether it has uncommitted,
+ * unpushed, or shelved/stashed changes.
+ *
+ * <p>The store is a binary file that is read in one piece rather than parsed. It consists of a
+ * header followed by fixed-size records sorted by key, so looking up a clone is a binary search in
+ * the file's contents, and opening the store costs one read even for 100,000 clones. (The file is
+ * not memory-mapped, because on Windows a mapped file cannot be replaced.) Each record holds:
+ *
+ * <ul>
+ *   <li>a 64-bit hash of the clone's key (its type, canonical directory, and module),
+ *   <li>a 64-bit hash of the clone's HEAD (the empty string if HEAD is unknown), and
+ *   <li>a byte of flags.
+ * </ul>
+ *
+ * A new store is written by merging the updated snapshots into the old records, in one pass.
+ * Records for clones that mvc no longer knows about are dropped.
+ */
+final class SnapshotStore {
+
+  /** The magic number at the start of a snapshot file ("MVCS"). */
+  private static final int MAGIC = 0x4d564353;
+
+  /** The version of the file format. Change it if the format changes. */
+  private static final int VERSION = 1;
+
+  /** The size of the header, in bytes: magic number, version, and record count. */
+  private static final int HEADER_SIZE = 16;
+
+  /** The size of one record, in bytes: key hash, HEAD hash, flags, and padding. */
+  private static final int RECORD_SIZE = 24;
+
+  /** Flag: the clone has uncommitted changes or untracked files. */
+  static final byte DIRTY = 1;
+
+  /** Flag: the clone has commits that have not been pushed. */
+  static final byte UNPUSHED = 2;
+
+  /** Flag: the clone has shelved or stashed changes. */
+  static final byte SHELVED = 4;
+
+  /** The file from which the store was read and to which it will be written. */
+  private final File file;
+
+  /** The contents of the file, or null if there was no (valid) file. */
+  private final @Nullable ByteBuffer old;
+
+  /** The number of records in {@link #old}. */
+  private final int oldCount;
+
+  /** The keys of the snapshots recorded during this run, parallel to {@link #newValues}. */
+  private long[] newKeys = new long[64];
+
+  /** The HEAD hashes and flags of the snapshots recorded during this run. */
+  private long[] newValues = new long[64];
+
+  /** The number of snapshots recorded during this run. */
+  private int newCount = 0;
+
+  /**
+   * Creates a SnapshotStore.
+   *
+   * @param file the file from which the store was read and to which it will be written
+   * @param old the contents of the file, or null
+   * @param oldCount the number of records in {@code old}
+   */
+  private SnapshotStore(File file, @Nullable ByteBuffer old, int oldCount) {
+    this.file = file;
+    this.old = old;
+    this.oldCount = oldCount;
+  }
+
+  /**
+   * Opens the snapshot store in the given file. If the file does not exist or is not a valid
+   * snapshot file, the store is empty.
+   *
+   * @param file the snapshot file
+   * @return the snapshot store
+   */
+  static SnapshotStore open(File file) {
+    try {
+      ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+      int size = buffer.capacity();
+      if (size >= HEADER_SIZE) {
+        int count = buffer.getInt(8);
+        if (buffer.getInt(0) == MAGIC
+            && buffer.getInt(4) == VERSION
+            && count >= 0
+            && HEADER_SIZE + (long) count * RECORD_SIZE == size) {
+          return new SnapshotStore(file, buffer, count);
+        }
+      }
+      System.err.println("Ignoring invalid snapshot file " + file);
+    } catch (NoSuchFileException e) {
+      // No snapshots yet.
+    } catch (IOException e) {
+      System.err.println("Problem reading snapshot file " + file + ": " + e.getMessage());
+    }
+    return new SnapshotStore(file, null, 0);
+  }
+
+  /**
+   * Records the current snapshot of a clone, and returns true if it differs from the snapshot
+   * recorded by the previous run (or if there was none).
+   *
+   * @param c a clone
+   * @param statusOutput the filtered output of the status command for the clone
+   * @return true if the clone's state changed since the previous run
+   */
+  synchronized boolean update(Checkout c, String statusOutput) {
+    long key = key(c);
+    String head = head(c);
+    long value = (hash(head == null ? "" : head) & ~0xffL) | flags(statusOutput);
+    if (newCount == newKeys.length) {
+      newKeys = Arrays.copyOf(newKeys, newCount * 2);
+      newValues = Arrays.copyOf(newValues, newCount * 2);
+    }
+    newKeys[newCount] = key;
+    newValues[newCount] = value;
+    newCount++;
+    int index = find(key);
+    return index < 0 || oldValue(index) != value;
+  }
+
+  /**
+   * Writes the store to its file: the snapshots recorded during this run, plus the old snapshots of
+   * the known clones that were not processed during this run. The file is replaced atomically.
+   *
+   * @param known all the clones that mvc knows about, including those not processed during this run
+   * @throws IOException if the file cannot be written
+   */
+  synchronized void write(Collection<Checkout> known) throws IOException {
+    long[] knownKeys = new long[known.size()];
+    int knownCount = 0;
+    for (Checkout c : known) {
+      knownKeys[knownCount++] = key(c);
+    }
+    Arrays.sort(knownKeys, 0, knownCount);
+
+    // Sort this run's snapshots by key, keeping the last snapshot for any duplicated key.
+    Integer[] order = new Integer[newCount];
+    for (int i = 0; i < newCount; i++) {
+      order[i] = i;
+    }
+    Arrays.sort(order, (i, j) -> Long.compare(newKeys[i], newKeys[j]));
+
+    Path path = file.toPath().toAbsolutePath();
+    Path dir = path.getParent();
+    if (dir == null) {
+      throw new IOException("No parent directory for " + path);
+    }
+    Files.createDirectories(dir);
+    Path tmp = Files.createTempFile(dir, file.getName(), ".tmp");
+    long maxSize = HEADER_SIZE + ((long) oldCount + newCount) * RECORD_SIZE;
+    if (maxSize > Integer.MAX_VALUE) {
+      throw new IOException("Too many snapshots: " + (oldCount + newCount));
+    }
+    int count = 0;
+    try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+      ByteBuffer out = ByteBuffer.allocate((int) maxSize);
+      out.position(HEADER_SIZE);
+      int oldIndex = 0;
+      int newIndex = 0;
+      while (oldIndex < oldCount || newIndex < newCount) {
+        long oldKey = oldIndex < oldCount ? oldKey(oldIndex) : Long.MAX_VALUE;
+        long newKey = newIndex < newCount ? newKeys[order[newIndex]] : Long.MAX_VALUE;
+        if (newIndex < newCount && newKey <= oldKey) {
+          // Skip over earlier snapshots with the same key.
+          while (newIndex + 1 < newCount && newKeys[order[newIndex + 1]] == newKey) {
+            newIndex++;
+          }
+          putRecord(out, newKey, newValues[order[newIndex]]);
+          newIndex++;
+          if (oldKey == newKey) {
+            oldIndex++;
+          }
+          count++;
+        } else {
+          if (Arrays.binarySearch(knownKeys, 0, knownCount, oldKey) >= 0) {
+            putRecord(out, oldKey, oldValue(oldIndex));
+            count++;
+          }
+          oldIndex++;
+        }
+      }
+      out.putInt(0, MAGIC);
+      out.putInt(4, VERSION);
+      out.putInt(8, count);
+      out.putInt(12, 0);
+      out.flip();
+      while (out.hasRemaining()) {
+        channel.write(out);
+      }
+      channel.force(false);
+    }
+    Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * Writes a record at the current position of the buffer.
+   *
+   * @param out the buffer
+   * @param key the key hash
+   * @param value the HEAD hash and flags
+   */
+  private static void putRecord(ByteBuffer out, long key, long value) {
+    out.putLong(key);
+    out.putLong(value);
+    out.putLong(0);
+  }
+
+  /**
+   * Returns the key hash of a clone.
+   *
+   * @param c a clone
+   * @return the hash of the clone's type, canonical directory, and module
+   */
+  private static long key(Checkout c) {
+    return hash(c.repoType + " " + c.canonicalDirectory + " " + c.module);
+  }
+
+  /**
+   * Returns the index of the old record with the given key, or -1 if there is none.
+   *
+   * @param key a key hash
+   * @return the index of the record with the key, or -1
+   */
+  private int find(long key) {
+    int low = 0;
+    int high = oldCount - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      long midKey = oldKey(mid);
+      if (midKey < key) {
+        low = mid + 1;
+      } else if (midKey > key) {
+        high = mid - 1;
+      } else {
+        return mid;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Returns the key hash of an old record.
+   *
+   * @param index the index of a record in {@link #old}
+   * @return the key hash of the record
+   */
+  private long oldKey(int index) {
+    assert old != null : "@AssumeAssertion(nullness): oldCount > 0 only if old != null";
+    return old.getLong(HEADER_SIZE + index * RECORD_SIZE);
+  }
+
+  /**
+   * Returns the HEAD hash and flags of an old record.
+   *
+   * @param index the index of a record in {@link #old}
+   * @return the HEAD hash and flags of the record
+   */
+  private long oldValue(int index) {
+    assert old != null : "@AssumeAssertion(nullness): oldCount > 0 only if old != null";
+    return old.getLong(HEADER_SIZE + index * RECORD_SIZE + 8);
+  }
+
+  /**
+   * Returns the HEAD of a clone, read without running any version control program, or null if it
+   * cannot be determined.
+   *
+   * @param c a clone
+   * @return an identifier for the clone's current revision, or null
+   */
+  private static @Nullable String head(Checkout c) {
+    switch (c.repoType) {
+      case GIT -> {
+        // For a linked worktree, submodule, or separate git directory, .git is a file.
+        File gitDir = GitDir.find(c.directory);
+        return (gitDir == null) ? null : GitDir.head(gitDir);
+      }
+      case HG -> {
+        return HgDir.workingParent(new File(c.directory, ".hg"));
+      }
+      default -> {
+        // BZR, CVS, and SVN keep the revision in a form that is not worth parsing here; the flags
+        // still capture local changes.
+        return null;
+      }
+    }
+  }
+
+  /**
+   * Returns the flags that describe the status output of a clone.
+   *
+   * @param statusOutput the filtered output of the status command
+   * @return the flags for the output
+   */
+  static byte flags(String statusOutput) {
+    byte result = 0;
+    for (String line : statusOutput.split("\n", -1)) {
+      if (line.isEmpty()) {
+        continue;
+      }
+      if (line.startsWith("unpushed ")) {
+        result |= UNPUSHED;
+      } else if (line.startsWith("shelved ") || line.startsWith("stashed ")) {
+        result |= SHELVED;
+      } else {
+        result |= DIRTY;
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Returns a 64-bit hash of a string.
+   *
+   * @param s a string
+   * @return a 64-bit hash of the string
+   */
+  private static long hash(String s) {
+    // FNV-1a, followed by a final mix so that the low bits (which hold the flags) are not needed
+    // to tell hashes apart.
+    long h = 0xcbf29ce484222325L;
+    for (int i = 0; i < s.length(); i++) {
+      h = (h ^ s.charAt(i)) * 0x100000001b3L;
+    }
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    return h;
+  }
+}
@@ -0,0 +1,44 @@
+package org.plumelib.multiversioncontrol;
+
+import org.apache.commons.exec.ProcessDestroyer;
+
+/**
+ * Records when a process was started. Commons Exec starts the process on a thread of its own, and
+ * it passes the process to the executor's {@link ProcessDestroyer} immediately after starting it,
+ * so this is the earliest point at which the start can be observed. It does not destroy anything.
+ */
+final class SpawnTimer implements ProcessDestroyer {
+
+  /** The value of {@link System#nanoTime} when the process was started, or 0 if it was not. */
+  private volatile long spawnedAt = 0;
+
+  /** Creates a SpawnTimer. */
+  SpawnTimer() {}
+
+  /**
+   * Returns how long after {@code startNanos} the process was started, or 0 if it was not started.
+   *
+   * @param startNanos a value of {@link System#nanoTime} from before the process was started
+   * @return the time to start the process, in nanoseconds
+   */
+  long spawnNanos(long startNanos) {
+    long spawned = spawnedAt;
+    return (spawned == 0) ? 0 : spawned - startNanos;
+  }
+
+  @Override
+  public boolean add(Process process) {
+    spawnedAt = System.nanoTime();
+    return true;
+  }
+
+  @Override
+  public boolean remove(Process process) {
+    return true;
+  }
+
+  @Override
+  public int size() {
+    return 0;
+  }
+}
@@ -0,0 +1,468 @@
+package org.plumelib.multiversioncontrol;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.plumelib.multiversioncontrol.MultiVersionControl.Checkout;
+
+/**
+ * A cache of the filtered output of the status command, for each clone. A cached result is reused
+ * as long as the clone's fingerprint is unchanged and the result is not too old.
+ *
+ * <p>A fingerprint is a hash of the modification times of the files that record the state of the
+ * clone (such as {@code .git/HEAD}, {@code .git/index}, and the refs), and of the modification
+ * times of the directories of the working tree. Computing it requires no subprocess. Creating,
+ * deleting, or renaming a file changes the modification time of its directory, but editing an
+ * existing file does not, and such an edit is not noticed until the cached result expires.
+ *
+ * <p>For git and Mercurial, only the directories that contain tracked files (according to the
+ * index or the dirstate) are examined. The status command reports an untracked directory as a
+ * whole, so the files in it do not matter, and ignored directories such as {@code build} and
+ * {@code node_modules} can be large.
+ *
+ * <p>The cache file is plain text. Each line holds a clone's key, its fingerprint, the time the
+ * result was computed, and the Base64-encoded result.
+ */
+final class StatusCache {
+
+  /** The first line of a cache file. Change it if the format of the file changes. */
+  private static final String HEADER = "# mvc status cache, version 1";
+
+  /** Entries older than this are dropped when the cache is written. */
+  private static final Duration EXPIRY = Duration.ofDays(7);
+
+  /**
+   * The maximum number of directories to examine in a working tree. A clone with more directories
+   * than this is not cached, because computing its fingerprint would be too expensive.
+   */
+  private static final int MAX_DIRECTORIES = 20_000;
+
+  /** A fingerprint value indicating that no fingerprint could be computed. */
+  static final long NO_FINGERPRINT = 0;
+
+  /**
+   * A cached result.
+   *
+   * @param fingerprint the fingerprint of the clone when the result was computed
+   * @param timeMillis when the result was computed, in milliseconds since the epoch
+   * @param output the filtered output of the status command
+   */
+  private static record Entry(long fingerprint, long timeMillis, String output) {}
+
+  /** The file from which the cache was read and to which it will be written. */
+  private final File file;
+
+  /**
+   * The command-line settings that affect the output of the status command. If they differ from
+   * those stored in the file, all the cached results are discarded.
+   */
+  private final String settings;
+
+  /** Maps a clone's key to its cached result. */
+  private final Map<String, Entry> entries;
+
+  /** True if {@link #entries} has changed since the file was read. */
+  private boolean changed = false;
+
+  /**
+   * Creates a new StatusCache.
+   *
+   * @param file the file from which the cache was read and to which it will be written
+   * @param settings the command-line settings that affect the output of the status command
+   * @param entries the cached results
+   */
+  private StatusCache(File file, String settings, Map<String, Entry> entries) {
+    this.file = file;
+    this.settings = settings;
+    this.entries = entries;
+  }
+
+  /**
+   * Reads the cache from a file. Returns an empty cache if the file does not exist, cannot be
+   * read, or was written with different settings.
+   *
+   * @param file the cache file
+   * @param settings the command-line settings that affect the output of the status command
+   * @return the cache
+   */
+  static StatusCache read(File file, String settings) {
+    Map<String, Entry> entries = new LinkedHashMap<>();
+    try (BufferedReader reader = Files.newBufferedReader(file.toPath(), UTF_8)) {
+      String header = reader.readLine();
+      String settingsLine = reader.readLine();
+      if (HEADER.equals(header) && settings.equals(settingsLine)) {
+        for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+          String[] fields = line.split("\t", -1);
+          if (fields.length != 4) {
+            continue;
+          }
+          try {
+            long fingerprint = Long.parseUnsignedLong(fields[1], 16);
+            long timeMillis = Long.parseLong(fields[2]);
+            String output = new String(Base64.getDecoder().decode(fields[3]), UTF_8);
+            entries.put(fields[0], new Entry(fingerprint, timeMillis, output));
+          } catch (IllegalArgumentException e) {
+            // A corrupt line; ignore it.
+          }
+        }
+      }
+    } catch (NoSuchFileException e) {
+      // No cache yet.
+    } catch (IOException e) {
+      System.err.println("Problem reading status cache " + file + ": " + e.getMessage());
+    }
+    return new StatusCache(file, settings, entries);
+  }
+
+  /**
+   * Returns the cached status output for the given clone, or null if there is no valid cached
+   * result.
+   *
+   * @param c a clone
+   * @param maxAge the maximum age of a result that may be returned
+   * @return the cached output of the status command, or null
+   */
+  @Nullable String lookup(Checkout c, Duration maxAge) {
+    Entry entry = entries.get(key(c));
+    if (entry == null) {
+      return null;
+    }
+    if (System.currentTimeMillis() - entry.timeMillis() > maxAge.toMillis()) {
+      return null;
+    }
+    long fingerprint = fingerprint(c);
+    if (fingerprint == NO_FINGERPRINT || fingerprint != entry.fingerprint()) {
+      return null;
+    }
+    return entry.output();
+  }
+
+  /**
+   * Records the status output of a clone. The clone's fingerprint is computed now.
+   *
+   * @param c a clone
+   * @param output the filtered output of the status command
+   */
+  void put(Checkout c, String output) {
+    String key = key(c);
+    long fingerprint = fingerprint(c);
+    if (fingerprint == NO_FINGERPRINT || key.indexOf('\t') != -1 || key.indexOf('\n') != -1) {
+      if (entries.remove(key) != null) {
+        changed = true;
+      }
+      return;
+    }
+    entries.put(key, new Entry(fingerprint, System.currentTimeMillis(), output));
+    changed = true;
+  }
+
+  /**
+   * Writes the cache to its file, if it has changed. The file is replaced atomically, so that
+   * concurrent runs of mvc never see a partially-written file.
+   *
+   * @throws IOException if the file cannot be written
+   */
+  void write() throws IOException {
+    if (!changed) {
+      return;
+    }
+    Path path = file.toPath().toAbsolutePath();
+    Path dir = path.getParent();
+    if (dir == null) {
+      throw new IOException("No parent directory for " + path);
+    }
+    Files.createDirectories(dir);
+    Path tmp = Files.createTempFile(dir, file.getName(), ".tmp");
+    long oldest = System.currentTimeMillis() - EXPIRY.toMillis();
+    Base64.Encoder encoder = Base64.getEncoder();
+    try (BufferedWriter writer = Files.newBufferedWriter(tmp, UTF_8)) {
+      writer.write(HEADER);
+      writer.newLine();
+      writer.write(settings);
+      writer.newLine();
+      for (Map.Entry<String, Entry> mapEntry : entries.entrySet()) {
+        Entry entry = mapEntry.getValue();
+        if (entry.timeMillis() < oldest) {
+          continue;
+        }
+        writer.write(mapEntry.getKey());
+        writer.write('\t');
+        writer.write(Long.toHexString(entry.fingerprint()));
+        writer.write('\t');
+        writer.write(Long.toString(entry.timeMillis()));
+        writer.write('\t');
+        writer.write(encoder.encodeToString(entry.output().getBytes(UTF_8)));
+        writer.newLine();
+      }
+    }
+    Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * Returns the key under which the result for a clone is stored.
+   *
+   * @param c a clone
+   * @return the key for the clone
+   */
+  private static String key(Checkout c) {
+    return c.repoType + " " + c.canonicalDirectory + (c.module == null ? "" : " " + c.module);
+  }
+
+  // //////////////////////////////////////////////////////////////////////
+  // Fingerprints
+  //
+
+  /**
+   * Returns the files that record the state of a clone (as opposed to the state of its working
+   * tree). A directory in this list contributes the times of all the files under it. Returns null
+   * if the clone's metadata directory cannot be found.
+   *
+   * @param c a clone
+   * @return the files that record the state of the clone, or null
+   */
+  private static @Nullable List<File> metadataFiles(Checkout c) {
+    File top = c.directory;
+    return switch (c.repoType) {
+      case BZR ->
+          List.of(
+              new File(top, ".bzr/checkout/dirstate"), new File(top, ".bzr/branch/last-revision"));
+      case CVS -> List.of(); // The CVS/Entries files are examined while walking the tree.
+      case GIT -> {
+        // For a linked worktree, submodule, or separate git directory, .git is a file.
+        File gitDir = GitDir.find(top);
+        if (gitDir == null) {
+          yield null;
+        }
+        File commonDir = GitDir.commonDir(gitDir);
+        yield List.of(
+            new File(gitDir, "HEAD"),
+            new File(gitDir, "index"),
+            new File(commonDir, "packed-refs"),
+            new File(commonDir, "refs"),
+            new File(commonDir, "config"),
+            new File(commonDir, "info/exclude"));
+      }
+      case HG ->
+          List.of(
+              new File(top, ".hg/dirstate"),
+              new File(top, ".hg/bookmarks"),
+              new File(top, ".hg/hgrc"),
+              new File(top, ".hg/shelved"),
+              new File(top, ".hg/store/00changelog.i"),
+              new File(top, ".hg/store/phaseroots"));
+      case SVN -> List.of(new File(top, ".svn/wc.db"), new File(top, ".svn/entries"));
+    };
+  }
+
+  /**
+   * Returns the directories of a clone's working tree that contain tracked files, relative to the
+   * top-level directory and separated by "/". Returns null if they are not known, in which case
+   * every directory of the working tree is examined.
+   *
+   * @param c a clone
+   * @return the directories that contain tracked files, or null
+   */
+  private static @Nullable Set<String> trackedDirectories(Checkout c) {
+    return switch (c.repoType) {
+      case GIT -> {
+        File gitDir = GitDir.find(c.directory);
+        yield (gitDir == null) ? null : GitDir.trackedDirectories(gitDir);
+      }
+      case HG -> HgDir.trackedDirectories(new File(c.directory, ".hg"));
+      default -> null;
+    };
+  }
+
+  /**
+   * Returns a fingerprint of the state of a clone, or {@link #NO_FINGERPRINT} if none can be
+   * computed.
+   *
+   * @param c a clone
+   * @return a fingerprint of the state of the clone
+   */
+  static long fingerprint(Checkout c) {
+    Path top = c.directory.toPath();
+    if (!Files.isDirectory(top)) {
+      return NO_FINGERPRINT;
+    }
+    List<File> metadataFiles = metadataFiles(c);
+    if (metadataFiles == null) {
+      return NO_FINGERPRINT;
+    }
+    Fingerprinter fingerprinter = new Fingerprinter(top, trackedDirectories(c));
+    try {
+      for (File metadataFile : metadataFiles) {
+        Path path = metadataFile.toPath();
+        if (Files.isDirectory(path)) {
+          Files.walkFileTree(path, fingerprinter.metadataVisitor());
+        } else {
+          fingerprinter.addFile(path);
+        }
+      }
+      Files.walkFileTree(top, fingerprinter.workingTreeVisitor());
+    } catch (IOException e) {
+      return NO_FINGERPRINT;
+    }
+    if (fingerprinter.directories > MAX_DIRECTORIES) {
+      return NO_FINGERPRINT;
+    }
+    return fingerprinter.hash == NO_FINGERPRINT ? 1 : fingerprinter.hash;
+  }
+
+  /** Accumulates a fingerprint from file names, sizes, and modification times. */
+  private static class Fingerprinter {
+
+    /** The fingerprint so far. */
+    long hash = 0xcbf29ce484222325L;
+
+    /** The number of working-tree directories visited so far. */
+    int directories = 0;
+
+    /** The top-level directory of the working tree. */
+    private final Path top;
+
+    /**
+     * The directories of the working tree that contain tracked files, relative to {@link #top}, or
+     * null to visit every directory.
+     */
+    private final @Nullable Set<String> trackedDirectories;
+
+    /**
+     * Creates a new Fingerprinter.
+     *
+     * @param top the top-level directory of the working tree
+     * @param trackedDirectories the directories of the working tree that contain tracked files,
+     *     relative to {@code top} and separated by "/", or null to visit every directory
+     */
+    Fingerprinter(Path top, @Nullable Set<String> trackedDirectories) {
+      this.top = top;
+      this.trackedDirectories = trackedDirectories;
+    }
+
+    /**
+     * Mixes a value into the fingerprint.
+     *
+     * @param value the value to mix in
+     */
+    void add(long value) {
+      hash = (hash ^ value) * 0x100000001b3L;
+      hash ^= hash >>> 29;
+    }
+
+    /**
+     * Mixes the name, size, and modification time of a file into the fingerprint. A file that does
+     * not exist contributes only its name.
+     *
+     * @param path the file
+     */
+    void addFile(Path path) {
+      add(path.toString().hashCode());
+      try {
+        BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+        add(attrs);
+      } catch (IOException e) {
+        add(-1);
+      }
+    }
+
+    /**
+     * Mixes the size and modification time of a file into the fingerprint.
+     *
+     * @param attrs the attributes of a file
+     */
+    void add(BasicFileAttributes attrs) {
+      add(attrs.size());
+      add(attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS));
+    }
+
+    /**
+     * Returns a visitor that adds every file and directory under a metadata directory.
+     *
+     * @return a visitor for metadata directories
+     */
+    SimpleFileVisitor<Path> metadataVisitor() {
+      return new SimpleFileVisitor<Path>() {
+        @Override
+        public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+          add(dir.toString().hashCode());
+          add(attrs);
+          return FileVisitResult.CONTINUE;
+        }
+
+        @Override
+        public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+          add(file.toString().hashCode());
+          add(attrs);
+          return FileVisitResult.CONTINUE;
+        }
+      };
+    }
+
+    /**
+     * Returns a visitor that adds the directories of a working tree, skipping version control
+     * directories and, if they are known, directories without tracked files. For CVS, it also adds
+     * the {@code CVS/Entries} files.
+     *
+     * @return a visitor for working trees
+     */
+    SimpleFileVisitor<Path> workingTreeVisitor() {
+      return new SimpleFileVisitor<Path>() {
+        @Override
+        public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+          Path name = dir.getFileName();
+          String nameString = (name == null) ? "" : name.toString();
+          switch (nameString) {
+            case ".bzr", ".git", ".hg", ".svn" -> {
+              return FileVisitResult.SKIP_SUBTREE;
+            }
+            case "CVS" -> {
+              addFile(dir.resolve("Entries"));
+              addFile(dir.resolve("Entries.Log"));
+              return FileVisitResult.SKIP_SUBTREE;
+            }
+            default -> {
+              if (trackedDirectories != null
+                  && !dir.equals(top)
+                  && !trackedDirectories.contains(
+                      top.relativize(dir).toString().replace(File.separatorChar, '/'))) {
+                // Untracked or ignored.  Creating or deleting it changes its parent's time.
+                return FileVisitResult.SKIP_SUBTREE;
+              }
+              if (++directories > MAX_DIRECTORIES) {
+                return FileVisitResult.TERMINATE;
+              }
+              add(dir.toString().hashCode());
+              add(attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS));
+              return FileVisitResult.CONTINUE;
+            }
+          }
+        }
+
+        @Override
+        public FileVisitResult visitFileFailed(Path file, IOException e) {
+          // For example, a directory that is not readable.
+          add(file.toString().hashCode());
+          return FileVisitResult.CONTINUE;
+        }
+      };
+    }
+  }
+}
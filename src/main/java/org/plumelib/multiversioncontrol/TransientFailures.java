@@ -0,0 +1,66 @@
+package org.plumelib.multiversioncontrol;
+
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Recognizes the output of a version control command that failed for a reason that may go away if
+ * the command is run again, such as a dropped network connection or an overloaded server. Failures
+ * such as merge conflicts, authentication errors, and missing repositories are not transient.
+ *
+ * <p>The messages of the different version control systems are distinct, so the output of a
+ * command is matched against all of them.
+ */
+final class TransientFailures {
+
+  /** Messages that indicate a transient failure, for each version control system. */
+  private static final List<String> MESSAGES =
+      List.of(
+          // CVS
+          "end of file from server",
+          // Git.  "unable to access" and "RPC failed" also report failures such as HTTP 403 and
+          // 404 and certificate problems, and "the remote end hung up unexpectedly" and "early EOF"
+          // also follow a refused push or a permission error.  So only network causes are matched.
+          "fatal: unable to access '.*': (Could not resolve host|Failed to connect"
+              + "|Connection timed out|Operation timed out|HTTP/2 stream"
+              + "|The requested URL returned error: 5[0-9][0-9])",
+          "RPC failed; (HTTP 5[0-9][0-9]|curl (18|28|56|92))",
+          "fetch-pack: unexpected disconnect while reading sideband packet",
+          "Connection to .* closed by remote host",
+          "client_loop: send disconnect",
+          "Connection reset by peer",
+          "Temporary failure in name resolution",
+          "kex_exchange_identification",
+          "ssh: connect to host .* port [0-9]+: (Connection refused|Connection timed out"
+              + "|Operation timed out|Network is unreachable)",
+          // Mercurial
+          "abort: error:",
+          "abort: HTTP Error 50[234]",
+          "abort: stream ended unexpectedly",
+          "abort: no suitable response from remote hg",
+          // Subversion.  E170013, "Unable to connect to a repository", is followed by the cause,
+          // which may be an authentication error or a bad URL, so only the causes are matched.
+          "svn: Network connection closed unexpectedly",
+          "svn: E000104", // Connection reset by peer
+          "svn: E000110", // Connection timed out
+          "svn: E000111", // Connection refused
+          "svn: E175012"); // Connection timed out
+
+  /** Matches any of {@link #MESSAGES}. */
+  private static final Pattern TRANSIENT = Pattern.compile(String.join("|", MESSAGES));
+
+  /** Do not instantiate. */
+  private TransientFailures() {
+    throw new Error("Do not instantiate");
+  }
+
+  /**
+   * Returns true if the output of a failed command indicates that it may succeed if run again.
+   *
+   * @param output the unfiltered output of a command that failed
+   * @return true if the failure is probably transient
+   */
+  static boolean isTransient(String output) {
+    return TRANSIENT.matcher(output).find();
+  }
+}
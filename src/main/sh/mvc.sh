@@ -0,0 +1,41 @@
+#!/bin/sh
+
+# Runs mvc from the fat jar, with JVM settings that favor fast startup.
+# Arguments are passed to mvc; for example:  mvc.sh status
+#
+# If build/libs/mvc.jsa exists (created by `./gradlew appCds`), the JVM maps the classes that mvc
+# usually loads from that class-data sharing archive.  An archive that does not match the jar or
+# the JVM (for example, after a rebuild without re-running `./gradlew appCds`) is ignored.
+#
+# This script may be symbolically linked from a directory on your PATH.
+# Set JAVA_HOME to choose the JVM; it should be the one that created the archive.
+
+script=$(readlink -f "$0")
+root=$(cd "$(dirname "$script")/../../.." && pwd)
+
+# The fat jar; if there are several, the most recently built one.
+# shellcheck disable=SC2012 # The jar names contain no unusual characters.
+jar=$(ls -t "$root"/build/libs/multi-version-control*-all.jar 2>/dev/null | head -n 1)
+if [ -z "$jar" ]; then
+  echo "$0: no fat jar in $root/build/libs; run: ./gradlew shadowJar" >&2
+  exit 2
+fi
+
+if [ -n "$JAVA_HOME" ]; then
+  java="$JAVA_HOME/bin/java"
+else
+  java=java
+fi
+
+# mvc runs briefly and spends most of its time waiting for version control commands, so the
+# optimizing compiler and a parallel garbage collector cost more at startup than they save.
+set -- -XX:TieredStopAtLevel=1 -XX:+UseSerialGC -cp "$jar" \
+  org.plumelib.multiversioncontrol.MultiVersionControl "$@"
+
+archive="$root/build/libs/mvc.jsa"
+if [ -f "$archive" ]; then
+  exec "$java" -XX:SharedArchiveFile="$archive" -Xshare:auto \
+    -Xlog:cds=off -Xlog:cds+dynamic=off "$@"
+else
+  exec "$java" "$@"
+fi